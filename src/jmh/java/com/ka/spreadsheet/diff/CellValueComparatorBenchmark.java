@@ -0,0 +1,76 @@
+package com.ka.spreadsheet.diff;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Comparison of pairs of cell values of one kind, a quarter of them differing, through a
+ * CellValueComparator built once as the differ does.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CellValueComparatorBenchmark {
+
+  private static final int NUM_PAIRS = 1 << 12;
+
+  @Param({"number", "number_precision", "formula", "string"})
+  public String kind;
+
+  private CellValue[] values1;
+  private CellValue[] values2;
+  private CellValueComparator comparator;
+
+  @Setup
+  public void setUp() {
+    comparator =
+        new CellValueComparator(false, "number_precision".equals(kind) ? 0.0001 : null);
+    Random random = new Random(42);
+    values1 = new CellValue[NUM_PAIRS];
+    values2 = new CellValue[NUM_PAIRS];
+    for (int i = 0; i < NUM_PAIRS; i++) {
+      boolean differ = random.nextInt(4) == 0;
+      if ("formula".equals(kind)) {
+        String formula = "SUM(A" + (i + 1) + ":C" + (i + 1) + ")";
+        values1[i] = CellValue.ofNumber(true, formula, i);
+        values2[i] = CellValue.ofNumber(true, differ ? formula + "*2" : new String(formula), i);
+      } else if ("string".equals(kind)) {
+        String string = "value " + random.nextInt(1000);
+        values1[i] = CellValue.ofString(false, null, string);
+        values2[i] = CellValue.ofString(false, null, differ ? string + "!" : new String(string));
+      } else {
+        double number = random.nextInt(100000) / 8.0;
+        values1[i] = CellValue.ofNumber(false, null, number);
+        values2[i] = CellValue.ofNumber(false, null, differ ? number + 0.00001 : number);
+      }
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(NUM_PAIRS)
+  public int comparator() {
+    int numEqual = 0;
+    for (int i = 0; i < NUM_PAIRS; i++) {
+      if (comparator.equal(values1[i], values2[i])) {
+        numEqual++;
+      }
+    }
+    return numEqual;
+  }
+}
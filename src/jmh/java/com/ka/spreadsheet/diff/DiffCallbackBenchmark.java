@@ -0,0 +1,199 @@
+package com.ka.spreadsheet.diff;
+
+import java.io.Writer;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PatternLayout;
+import org.apache.log4j.WriterAppender;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reporting a diff of differing and extra cells, as a workbook with a few changed columns gives,
+ * to each diff formatter writing to a sink which discards what it is given. Formatting and
+ * buffering is all that is timed.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DiffCallbackBenchmark {
+
+  private static final int NUM_ROWS = 2000;
+  private static final int NUM_COLS = 5;
+  private static final int NUM_CELLS = NUM_ROWS * NUM_COLS;
+
+  @Param({"excel_cmp", "unified", "logger", "logger_unified", "async", "max_diffs"})
+  public String callback;
+
+  private CellPos[] cells1;
+  private CellPos[] cells2;
+  // whether the cell is only in the first / second workbook, otherwise in both and differing
+  private boolean[] extra1;
+  private boolean[] extra2;
+
+  @Setup
+  public void setUp() {
+    Logger displayLogger = Logger.getLogger("DisplayLogger");
+    displayLogger.removeAllAppenders();
+    displayLogger.setAdditivity(false);
+    WriterAppender appender = new WriterAppender(new PatternLayout("%m%n"), new NullWriter());
+    appender.setThreshold(Level.DEBUG);
+    displayLogger.addAppender(appender);
+
+    ISheet sheet = new BenchmarkSheet("Sheet1");
+    Random random = new Random(42);
+    cells1 = new CellPos[NUM_CELLS];
+    cells2 = new CellPos[NUM_CELLS];
+    extra1 = new boolean[NUM_CELLS];
+    extra2 = new boolean[NUM_CELLS];
+    for (int i = 0; i < NUM_ROWS; i++) {
+      for (int j = 0; j < NUM_COLS; j++) {
+        int k = i * NUM_COLS + j;
+        // the last columns of some rows are only in one workbook
+        extra1[k] = (j == NUM_COLS - 1) && (i % 3 == 0);
+        extra2[k] = (j == NUM_COLS - 1) && (i % 3 == 1);
+        cells1[k] = new CellPos(sheet, new BenchmarkCell(i, j,
+            CellValue.ofNumber(false, null, random.nextInt(100000) / 8.0)));
+        cells2[k] = new CellPos(sheet, new BenchmarkCell(i, j,
+            CellValue.ofString(false, null, "s" + random.nextInt(1000))));
+      }
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(NUM_CELLS)
+  public void report() {
+    SpreadSheetDiffCallback diffCallback = newCallback();
+    diffCallback.init("file1.xlsx", "file2.xlsx");
+    for (int k = 0; k < NUM_CELLS; k++) {
+      if (extra1[k]) {
+        diffCallback.reportExtraCell(true, cells1[k]);
+      } else if (extra2[k]) {
+        diffCallback.reportExtraCell(false, cells2[k]);
+      } else {
+        diffCallback.reportDiffCell(cells1[k], cells2[k]);
+      }
+    }
+    diffCallback.reportWorkbooksDiffer(true);
+    diffCallback.finish();
+    if (diffCallback instanceof AsyncSpreadSheetDiffCallback) {
+      ((AsyncSpreadSheetDiffCallback) diffCallback).close();
+    }
+  }
+
+  private SpreadSheetDiffCallback newCallback() {
+    if ("excel_cmp".equals(callback)) {
+      return new StdoutSpreadSheetDiffCallback(OutputSink.toWriter(new NullWriter()));
+    } else if ("unified".equals(callback)) {
+      return new UnifiedDiffSpreadSheetDiffCallback(OutputSink.toWriter(new NullWriter()));
+    } else if ("logger".equals(callback)) {
+      return new LoggerSpreadSheetDiffCallback();
+    } else if ("logger_unified".equals(callback)) {
+      return new LoggerUnifiedDiffSpreadSheetDiffCallback();
+    } else if ("async".equals(callback)) {
+      return new AsyncSpreadSheetDiffCallback(
+          new StdoutSpreadSheetDiffCallback(OutputSink.toWriter(new NullWriter())));
+    } else if ("max_diffs".equals(callback)) {
+      // never reached, only the cost of counting is added
+      return new MaxDiffsSpreadSheetDiffCallback(
+          new StdoutSpreadSheetDiffCallback(OutputSink.toWriter(new NullWriter())),
+          Integer.MAX_VALUE);
+    }
+    throw new IllegalArgumentException("Unknown callback " + callback);
+  }
+
+  private static class BenchmarkSheet implements ISheet {
+
+    private final String name;
+
+    BenchmarkSheet(String name) {
+      this.name = name;
+    }
+
+    @Override
+    public String getName() {
+      return name;
+    }
+
+    @Override
+    public int getSheetIndex() {
+      return 0;
+    }
+
+    @Override
+    public Iterator<IRow> getRowIterator() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ICellCursor getCellCursor(@Nullable SheetIgnores ignores) {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  private static class BenchmarkCell implements ICell {
+
+    private final int rowIdx;
+    private final int colIdx;
+    private final CellValue value;
+
+    BenchmarkCell(int rowIdx, int colIdx, CellValue value) {
+      this.rowIdx = rowIdx;
+      this.colIdx = colIdx;
+      this.value = value;
+    }
+
+    @Override
+    public int getRowIndex() {
+      return rowIdx;
+    }
+
+    @Override
+    public int getColumnIndex() {
+      return colIdx;
+    }
+
+    @Override
+    public CellValue getValue() {
+      return value;
+    }
+  }
+
+  private static class NullWriter extends Writer {
+
+    @Override
+    public void write(char[] cbuf, int off, int len) {
+    }
+
+    @Override
+    public void write(String str, int off, int len) {
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+}
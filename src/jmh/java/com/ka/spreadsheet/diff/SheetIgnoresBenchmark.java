@@ -0,0 +1,95 @@
+package com.ka.spreadsheet.diff;
+
+import static com.ka.spreadsheet.diff.SpreadSheetUtils.CELL_INTERNAL_TO_USER;
+import static com.ka.spreadsheet.diff.SpreadSheetUtils.COL_INTERNAL_TO_USER;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Checking cells against the ignores of a sheet with many row, column and cell ranges, as the
+ * cursor does for every cell read.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SheetIgnoresBenchmark {
+
+  private static final int NUM_PROBES = 1 << 12;
+  private static final int MAX_ROW = 100000;
+  private static final int MAX_COL = 16384;
+
+  @Param({"10", "1000"})
+  public int numRanges;
+
+  private SheetIgnores ignores;
+  private int[] rows;
+  private int[] cols;
+
+  @Setup
+  public void setUp() {
+    Random random = new Random(42);
+    StringBuilder rowSpec = new StringBuilder();
+    StringBuilder colSpec = new StringBuilder();
+    StringBuilder cellSpec = new StringBuilder();
+    for (int i = 0; i < numRanges; i++) {
+      String sep = (i == 0) ? "" : ",";
+      int row = random.nextInt(MAX_ROW);
+      rowSpec.append(sep).append(row + 1).append('-').append(row + 1 + random.nextInt(10));
+      int col = random.nextInt(MAX_COL);
+      colSpec.append(sep).append(COL_INTERNAL_TO_USER(col));
+      int cellRow = random.nextInt(MAX_ROW);
+      int cellCol = random.nextInt(MAX_COL - 5);
+      cellSpec.append(sep).append(CELL_INTERNAL_TO_USER(cellRow, cellCol)).append('-')
+          .append(CELL_INTERNAL_TO_USER(cellRow + random.nextInt(20), cellCol + 5));
+    }
+    ignores = SheetIgnores.newSheetIgnore("Sheet1:" + rowSpec + ":" + colSpec + ":" + cellSpec);
+    rows = new int[NUM_PROBES];
+    cols = new int[NUM_PROBES];
+    for (int i = 0; i < NUM_PROBES; i++) {
+      rows[i] = random.nextInt(MAX_ROW);
+      cols[i] = random.nextInt(MAX_COL);
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(NUM_PROBES)
+  public int isIgnored() {
+    int numIgnored = 0;
+    for (int i = 0; i < NUM_PROBES; i++) {
+      if (ignores.isRowIgnored(rows[i]) || ignores.isColIgnored(cols[i])
+          || ignores.isCellIgnored(rows[i], cols[i])) {
+        numIgnored++;
+      }
+    }
+    return numIgnored;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(NUM_PROBES)
+  public int isCellIgnored() {
+    int numIgnored = 0;
+    for (int i = 0; i < NUM_PROBES; i++) {
+      if (ignores.isCellIgnored(rows[i], cols[i])) {
+        numIgnored++;
+      }
+    }
+    return numIgnored;
+  }
+}
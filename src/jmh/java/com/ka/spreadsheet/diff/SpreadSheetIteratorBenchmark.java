@@ -0,0 +1,114 @@
+package com.ka.spreadsheet.diff;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Walking all the cells of a loaded workbook, through a SpreadSheetIterator which creates a
+ * CellPos per cell, and through the SpreadSheetCursor the differ uses. Loading is not timed, only
+ * readers whose sheets can be read again are covered.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SpreadSheetIteratorBenchmark {
+
+  private static final int NUM_ROWS = 10000;
+  private static final int NUM_COLS = 10;
+  private static final int NUM_CELLS = NUM_ROWS * NUM_COLS;
+
+  @Param({"xls", "xlsx", "xlsx_streaming"})
+  public String reader;
+
+  private File file;
+  private ISpreadSheet spreadSheet;
+  private WorkbookIgnores ignores;
+
+  @Setup
+  public void setUp() throws Exception {
+    boolean xls = "xls".equals(reader);
+    file = File.createTempFile("iterator", xls ? ".xls" : ".xlsx");
+    writeWorkbook(xls ? new HSSFWorkbook() : new XSSFWorkbook(), file);
+    spreadSheet = SpreadSheetFormat.detect(file).load(file, reader.endsWith("_streaming"));
+    ignores = WorkbookIgnores.parseWorkbookIgnores(new String[0], "--ignore1");
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    spreadSheet.close();
+    file.delete();
+  }
+
+  /**
+   * Numbers, strings, booleans and formulas in the proportions of a typical report.
+   */
+  private static void writeWorkbook(Workbook workbook, File file) throws Exception {
+    Random random = new Random(42);
+    Sheet sheet = workbook.createSheet("Sheet1");
+    for (int i = 0; i < NUM_ROWS; i++) {
+      Row row = sheet.createRow(i);
+      for (int j = 0; j < NUM_COLS; j++) {
+        int kind = random.nextInt(10);
+        if (kind < 6) {
+          row.createCell(j).setCellValue(random.nextInt(100000) / 8.0);
+        } else if (kind < 8) {
+          row.createCell(j).setCellValue("s" + random.nextInt(1000));
+        } else if (kind < 9) {
+          row.createCell(j).setCellValue(random.nextBoolean());
+        } else {
+          row.createCell(j).setCellFormula("A" + (i + 1) + "*2");
+        }
+      }
+    }
+    OutputStream out = new FileOutputStream(file);
+    try {
+      workbook.write(out);
+    } finally {
+      out.close();
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(NUM_CELLS)
+  public void iterator(Blackhole blackhole) {
+    SpreadSheetIterator iterator = new SpreadSheetIterator(spreadSheet, ignores);
+    while (iterator.hasNext()) {
+      blackhole.consume(iterator.next().getCellValue());
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(NUM_CELLS)
+  public void cursor(Blackhole blackhole) {
+    SpreadSheetCursor cursor = new SpreadSheetCursor(spreadSheet, ignores);
+    while (cursor.advance()) {
+      blackhole.consume(cursor.getCellValue());
+    }
+  }
+}
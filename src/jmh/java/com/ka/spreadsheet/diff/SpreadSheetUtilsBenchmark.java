@@ -0,0 +1,90 @@
+package com.ka.spreadsheet.diff;
+
+import static com.ka.spreadsheet.diff.SpreadSheetUtils.CELL_INTERNAL_TO_USER;
+import static com.ka.spreadsheet.diff.SpreadSheetUtils.CELL_USER_TO_INTERNAL;
+import static com.ka.spreadsheet.diff.SpreadSheetUtils.COL_INTERNAL_TO_USER;
+import static com.ka.spreadsheet.diff.SpreadSheetUtils.COL_USER_TO_INTERNAL;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Conversions between internal indexes and A1 references, done for every reported cell and for
+ * every ignore spec parsed.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SpreadSheetUtilsBenchmark {
+
+  private static final int NUM_CELLS = 1 << 10;
+
+  private int[] rows;
+  private int[] cols;
+  private String[] colRefs;
+  private String[] cellRefs;
+
+  @Setup
+  public void setUp() {
+    Random random = new Random(42);
+    rows = new int[NUM_CELLS];
+    cols = new int[NUM_CELLS];
+    colRefs = new String[NUM_CELLS];
+    cellRefs = new String[NUM_CELLS];
+    for (int i = 0; i < NUM_CELLS; i++) {
+      rows[i] = random.nextInt(1 << 20);
+      // mostly one and two letter columns, as in most sheets
+      cols[i] = random.nextInt((i % 8 == 0) ? 16384 : 702);
+      colRefs[i] = COL_INTERNAL_TO_USER(cols[i]);
+      cellRefs[i] = CELL_INTERNAL_TO_USER(rows[i], cols[i]);
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(NUM_CELLS)
+  public void colInternalToUser(Blackhole blackhole) {
+    for (int i = 0; i < NUM_CELLS; i++) {
+      blackhole.consume(COL_INTERNAL_TO_USER(cols[i]));
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(NUM_CELLS)
+  public void cellInternalToUser(Blackhole blackhole) {
+    for (int i = 0; i < NUM_CELLS; i++) {
+      blackhole.consume(CELL_INTERNAL_TO_USER(rows[i], cols[i]));
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(NUM_CELLS)
+  public void colUserToInternal(Blackhole blackhole) {
+    for (int i = 0; i < NUM_CELLS; i++) {
+      blackhole.consume(COL_USER_TO_INTERNAL(colRefs[i]));
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(NUM_CELLS)
+  public void cellUserToInternal(Blackhole blackhole) {
+    for (int i = 0; i < NUM_CELLS; i++) {
+      blackhole.consume(CELL_USER_TO_INTERNAL(cellRefs[i]));
+    }
+  }
+}
@@ -0,0 +1,266 @@
+package com.ka.spreadsheet.diff;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Reports to another callback from a thread of its own, so that formatting and printing the diff
+ * overlaps with reading and comparing the workbooks.
+ *
+ * The calls are published, in order, into a bounded ring buffer which the reporting thread
+ * drains. There is a single producer, the thread making the calls, and a single consumer, so each
+ * side only writes its own counter. When the buffer is empty the consumer parks until the
+ * producer publishes again and unparks it, so an idle diff costs no cpu. When the buffer is full
+ * the producer waits for the consumer to catch up. finish() returns once the other callback has
+ * finished, and rethrows anything it failed with.
+ *
+ * The value of a reported cell is read before it is published, since the readers are not safe to
+ * read from another thread while they move on through the workbook.
+ *
+ * isDone() is always false, as the other callback is only called from the reporting thread. Wrap
+ * this callback to stop early instead.
+ */
+public class AsyncSpreadSheetDiffCallback implements SpreadSheetDiffCallback {
+
+  private static final int DEFAULT_CAPACITY = 1 << 12;
+
+  // how long to busy wait, then yield, before parking when the buffer is full or empty. Busy
+  // waiting on a single core only delays the other side
+  private static final int SPINS = (Runtime.getRuntime().availableProcessors() > 1) ? 100 : 0;
+  private static final int YIELDS = 100;
+  private static final long PARK_NANOS = 50000;
+
+  private static final int INIT = 0;
+  private static final int FINISH = 1;
+  private static final int DIFF_CELL = 2;
+  private static final int EXTRA_CELL_IN_1 = 3;
+  private static final int EXTRA_CELL_IN_2 = 4;
+  private static final int MACRO_ONLY_IN_1 = 5;
+  private static final int MACRO_ONLY_IN_2 = 6;
+  private static final int WORKBOOKS_DIFFER = 7;
+  private static final int WORKBOOKS_MATCH = 8;
+
+  private final SpreadSheetDiffCallback delegate;
+  private final int mask;
+  private final int[] kinds;
+  private final Object[] firsts;
+  private final Object[] seconds;
+  // next slot the consumer reads, only written by the consumer
+  private final AtomicLong head = new AtomicLong();
+  // next slot the producer writes, only written by the producer
+  private final AtomicLong tail = new AtomicLong();
+  // last head seen by the producer, saves reading the consumer's counter for every call
+  private long headSeen;
+  private final Thread consumer;
+  // set by the consumer before it parks on an empty buffer, for the producer to unpark it
+  private volatile boolean consumerParked;
+  // set by close() to stop the consumer, which isn't interrupted as an interrupt would close the
+  // FileChannel of an OutputSink it may be writing to
+  private volatile boolean closed;
+  private volatile Throwable failure;
+  private boolean finishPublished;
+
+  public AsyncSpreadSheetDiffCallback(SpreadSheetDiffCallback delegate) {
+    this(delegate, DEFAULT_CAPACITY);
+  }
+
+  /**
+   * capacity is rounded up to a power of two.
+   */
+  public AsyncSpreadSheetDiffCallback(SpreadSheetDiffCallback delegate, int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("Illegal capacity " + capacity);
+    }
+    this.delegate = delegate;
+    int size = Integer.highestOneBit(capacity);
+    if (size < capacity) {
+      size <<= 1;
+    }
+    this.mask = size - 1;
+    this.kinds = new int[size];
+    this.firsts = new Object[size];
+    this.seconds = new Object[size];
+    this.consumer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        consume();
+      }
+    }, "diff-reporter");
+    consumer.setDaemon(true);
+    consumer.start();
+  }
+
+  @Override
+  public void init(String file1, String file2) {
+    publish(INIT, file1, file2);
+  }
+
+  @Override
+  public void finish() {
+    publish(FINISH, null, null);
+    finishPublished = true;
+    awaitConsumer();
+    if (failure != null) {
+      rethrowFailure();
+    }
+  }
+
+  @Override
+  public void reportDiffCell(CellPos c1, CellPos c2) {
+    publish(DIFF_CELL, c1.detach(), c2.detach());
+  }
+
+  @Override
+  public void reportExtraCell(boolean inFirstSpreadSheet, CellPos c) {
+    publish(inFirstSpreadSheet ? EXTRA_CELL_IN_1 : EXTRA_CELL_IN_2, c.detach(), null);
+  }
+
+  @Override
+  public void reportMacroOnlyIn(boolean inFirstSpreadSheet) {
+    publish(inFirstSpreadSheet ? MACRO_ONLY_IN_1 : MACRO_ONLY_IN_2, null, null);
+  }
+
+  @Override
+  public void reportWorkbooksDiffer(boolean differ) {
+    publish(differ ? WORKBOOKS_DIFFER : WORKBOOKS_MATCH, null, null);
+  }
+
+  /**
+   * Stops the reporting thread if finish() was never called, e.g. because the diff failed, and
+   * waits for it to stop. Does nothing after finish().
+   */
+  public void close() {
+    if (!finishPublished) {
+      closed = true;
+      LockSupport.unpark(consumer);
+      awaitConsumer();
+    }
+  }
+
+  private void publish(int kind, Object first, Object second) {
+    long t = tail.get();
+    if (t - headSeen > mask) {
+      int waits = 0;
+      while (t - (headSeen = head.get()) > mask) {
+        if (failure != null) {
+          rethrowFailure();
+        }
+        waits = idle(waits);
+      }
+    }
+    int slot = (int) t & mask;
+    kinds[slot] = kind;
+    firsts[slot] = first;
+    seconds[slot] = second;
+    // volatile write, the slot is visible to the consumer before the new tail, and the new tail
+    // before consumerParked is read, so that a consumer about to park sees it or is unparked
+    tail.set(t + 1);
+    if (consumerParked) {
+      LockSupport.unpark(consumer);
+    }
+  }
+
+  private void consume() {
+    long h = head.get();
+    int waits = 0;
+    try {
+      while (true) {
+        long t = tail.get();
+        if (h == t) {
+          if (closed) {
+            return;
+          }
+          if (waits < SPINS + YIELDS) {
+            waits = idle(waits);
+          } else {
+            consumerParked = true;
+            if ((tail.get() == h) && !closed) {
+              LockSupport.park(this);
+            }
+            consumerParked = false;
+          }
+          continue;
+        }
+        waits = 0;
+        for (; h < t; h++) {
+          int slot = (int) h & mask;
+          int kind = kinds[slot];
+          Object first = firsts[slot];
+          Object second = seconds[slot];
+          firsts[slot] = null;
+          seconds[slot] = null;
+          head.lazySet(h + 1);
+          dispatch(kind, first, second);
+          if (kind == FINISH) {
+            return;
+          }
+        }
+      }
+    } catch (Throwable e) {
+      failure = e;
+    }
+  }
+
+  private void dispatch(int kind, Object first, Object second) {
+    switch (kind) {
+      case INIT:
+        delegate.init((String) first, (String) second);
+        break;
+      case FINISH:
+        delegate.finish();
+        break;
+      case DIFF_CELL:
+        delegate.reportDiffCell((CellPos) first, (CellPos) second);
+        break;
+      case EXTRA_CELL_IN_1:
+      case EXTRA_CELL_IN_2:
+        delegate.reportExtraCell(kind == EXTRA_CELL_IN_1, (CellPos) first);
+        break;
+      case MACRO_ONLY_IN_1:
+      case MACRO_ONLY_IN_2:
+        delegate.reportMacroOnlyIn(kind == MACRO_ONLY_IN_1);
+        break;
+      case WORKBOOKS_DIFFER:
+      case WORKBOOKS_MATCH:
+        delegate.reportWorkbooksDiffer(kind == WORKBOOKS_DIFFER);
+        break;
+      default:
+        throw new IllegalStateException("Unknown diff event " + kind);
+    }
+  }
+
+  private static int idle(int waits) {
+    if (waits < SPINS) {
+      // busy wait
+    } else if (waits < SPINS + YIELDS) {
+      Thread.yield();
+    } else {
+      LockSupport.parkNanos(PARK_NANOS);
+    }
+    return waits + 1;
+  }
+
+  private void awaitConsumer() {
+    boolean interrupted = false;
+    while (true) {
+      try {
+        consumer.join();
+        break;
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void rethrowFailure() {
+    if (failure instanceof RuntimeException) {
+      throw (RuntimeException) failure;
+    } else if (failure instanceof Error) {
+      throw (Error) failure;
+    }
+    throw new RuntimeException("Failed to report the diff: " + failure.getMessage(), failure);
+  }
+}
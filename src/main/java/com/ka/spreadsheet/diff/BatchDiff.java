@@ -0,0 +1,354 @@
+package com.ka.spreadsheet.diff;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+/**
+ * Diffs many pairs of workbooks in one run, either the files with the same relative path in two
+ * directories or the pairs listed in a manifest, so that JVM startup, class loading and JIT
+ * warmup are paid once instead of once per pair. Pairs are diffed on a fixed pool of
+ * --batch_threads threads, each one to a file of its own in the --output directory, and a
+ * summary of all of them is written to summary.json in the same directory, in pair order.
+ *
+ * Pairs whose files have the same bytes are not loaded at all. Every other pair is diffed with
+ * the same flags and ignores, as SpreadSheetDiffer would diff it on its own.
+ */
+class BatchDiff {
+
+  static final String SUMMARY_FILENAME = "summary.json";
+
+  private static final String OUTPUT_SUFFIX = ".diff";
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  enum Status {
+    /** The files have the same bytes. */
+    IDENTICAL,
+    /** The workbooks were diffed and match. */
+    MATCH,
+    DIFFER,
+    ONLY_IN_1,
+    ONLY_IN_2,
+    ERROR
+  }
+
+  /**
+   * A pair of files to diff, either one null for a file only in one directory.
+   */
+  static class Pair {
+
+    final String name;
+    @Nullable
+    final File file1;
+    @Nullable
+    final File file2;
+    /** Relative to the output directory. */
+    final String outputName;
+    Status status;
+    long millis;
+    @Nullable
+    String error;
+
+    Pair(String name, @Nullable File file1, @Nullable File file2, String outputName) {
+      this.name = name;
+      this.file1 = file1;
+      this.file2 = file2;
+      this.outputName = outputName;
+    }
+  }
+
+  private BatchDiff() {
+  }
+
+  /**
+   * The workbooks with the same path relative to dir1 and dir2, sorted by path, and those only in
+   * one of them.
+   */
+  static List<Pair> pairsOfDirectories(File dir1, File dir2) {
+    for (File dir : new File[] {dir1, dir2}) {
+      if (!dir.isDirectory()) {
+        throw new IllegalArgumentException("Not a directory: " + dir);
+      }
+    }
+    Map<String, File[]> files = new TreeMap<String, File[]>();
+    listWorkbooks(dir1, "", files, 0);
+    listWorkbooks(dir2, "", files, 1);
+    List<Pair> pairs = new ArrayList<Pair>();
+    for (Map.Entry<String, File[]> entry : files.entrySet()) {
+      pairs.add(new Pair(entry.getKey(), entry.getValue()[0], entry.getValue()[1],
+          entry.getKey() + OUTPUT_SUFFIX));
+    }
+    return pairs;
+  }
+
+  private static void listWorkbooks(File dir, String prefix, Map<String, File[]> files,
+      int side) {
+    File[] children = dir.listFiles();
+    if (children == null) {
+      throw new IllegalArgumentException("Failed to list " + dir);
+    }
+    Arrays.sort(children);
+    for (File child : children) {
+      String name = prefix + child.getName();
+      if (child.isDirectory()) {
+        listWorkbooks(child, name + "/", files, side);
+      } else if (isWorkbook(child)) {
+        File[] pair = files.get(name);
+        if (pair == null) {
+          pair = new File[2];
+          files.put(name, pair);
+        }
+        pair[side] = child;
+      }
+    }
+  }
+
+  /**
+   * By name, leaving out the lock files office suites keep next to open documents.
+   */
+  private static boolean isWorkbook(File file) {
+    String name = file.getName().toLowerCase();
+    return file.isFile() && !name.startsWith("~$") && !name.startsWith(".~lock.")
+        && (name.endsWith(".xls") || name.endsWith(".xlsx") || name.endsWith(".xlsm")
+            || name.endsWith(".ods"));
+  }
+
+  /**
+   * The pairs of a manifest, a line per pair with the paths of both files separated by a tab.
+   * Blank lines and lines starting with # are skipped, relative paths are relative to the
+   * manifest.
+   */
+  static List<Pair> pairsOfManifest(File manifest) throws IOException {
+    File dir = manifest.getParentFile();
+    List<Pair> pairs = new ArrayList<Pair>();
+    BufferedReader reader =
+        new BufferedReader(new InputStreamReader(new FileInputStream(manifest), UTF_8));
+    try {
+      String line;
+      int lineNumber = 0;
+      while ((line = reader.readLine()) != null) {
+        lineNumber++;
+        if (line.trim().isEmpty() || line.startsWith("#")) {
+          continue;
+        }
+        String[] paths = line.split("\t");
+        if (paths.length != 2) {
+          throw new IllegalArgumentException("Expected two tab separated paths at line "
+              + lineNumber + " of " + manifest + ": " + line);
+        }
+        File file1 = resolve(dir, paths[0]);
+        File file2 = resolve(dir, paths[1]);
+        // numbered, files of different pairs may have the same name
+        pairs.add(new Pair(paths[0], file1, file2,
+            (pairs.size() + 1) + "_" + file1.getName() + OUTPUT_SUFFIX));
+      }
+    } finally {
+      reader.close();
+    }
+    return pairs;
+  }
+
+  private static File resolve(File dir, String path) {
+    File file = new File(path);
+    return (file.isAbsolute() || (dir == null)) ? file : new File(dir, path);
+  }
+
+  /**
+   * Diffs the pairs into the --output directory and writes the summary. Returns 0 if all pairs
+   * match, 1 if any differ or has a file only in one directory, -1 if any failed.
+   */
+  static int run(List<Pair> pairs) throws Exception {
+    final File outputDir = Flags.OUTPUT;
+    final DiffOptions options = DiffOptions.fromFlags();
+    if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+      throw new IOException("Failed to create " + outputDir);
+    }
+    long startNanos = System.nanoTime();
+    int numThreads = (Flags.BATCH_THREADS != null)
+        ? Flags.BATCH_THREADS : Runtime.getRuntime().availableProcessors();
+    ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, numThreads));
+    try {
+      List<Future<?>> diffs = new ArrayList<Future<?>>();
+      for (final Pair pair : pairs) {
+        diffs.add(executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() {
+            diff(pair, outputDir, options);
+            return null;
+          }
+        }));
+      }
+      for (Future<?> diff : diffs) {
+        try {
+          diff.get();
+        } catch (ExecutionException e) {
+          // diff() fails the pair instead of throwing, only Errors get here
+          if (e.getCause() instanceof Error) {
+            throw (Error) e.getCause();
+          }
+          throw e;
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    Map<Status, Integer> counts = new EnumMap<Status, Integer>(Status.class);
+    for (Status status : Status.values()) {
+      counts.put(status, 0);
+    }
+    for (Pair pair : pairs) {
+      counts.put(pair.status, counts.get(pair.status) + 1);
+    }
+    int ret = (counts.get(Status.ERROR) > 0) ? -1
+        : ((counts.get(Status.DIFFER) + counts.get(Status.ONLY_IN_1)
+            + counts.get(Status.ONLY_IN_2) > 0) ? 1 : 0);
+    long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    OutputSink summary = OutputSink.toFile(new File(outputDir, SUMMARY_FILENAME));
+    try {
+      writeSummary(pairs, counts, ret, millis, summary);
+    } finally {
+      summary.close();
+    }
+    if (!Flags.QUIET) {
+      System.out.println("Diffed " + pairs.size() + " pairs: " + counts.get(Status.IDENTICAL)
+          + " identical, " + counts.get(Status.MATCH) + " match, " + counts.get(Status.DIFFER)
+          + " differ, " + counts.get(Status.ONLY_IN_1) + " only in first, "
+          + counts.get(Status.ONLY_IN_2) + " only in second, " + counts.get(Status.ERROR)
+          + " failed");
+    }
+    if (Flags.DEBUG) {
+      System.err.println("Diffed " + pairs.size() + " pairs in " + millis + " ms");
+    }
+    return ret;
+  }
+
+  /**
+   * Sets the status of the pair, writing its diff to a file of the output directory if it is
+   * diffed, nothing with --quiet.
+   */
+  private static void diff(Pair pair, File outputDir, DiffOptions options) {
+    long startNanos = System.nanoTime();
+    File output = null;
+    try {
+      if (pair.file1 == null) {
+        pair.status = Status.ONLY_IN_2;
+      } else if (pair.file2 == null) {
+        pair.status = Status.ONLY_IN_1;
+      } else if (pair.file1.isFile() && pair.file2.isFile()
+          && UnchangedSheets.sameBytes(pair.file1, pair.file2)) {
+        pair.status = Status.IDENTICAL;
+      } else {
+        int ret;
+        if (Flags.QUIET) {
+          // the options stop at the first difference
+          ret = new SpreadSheetDiffer().diff(pair.file1, pair.file2, options,
+              new SpreadSheetDiffCallbackBase() {});
+        } else {
+          output = new File(outputDir, pair.outputName);
+          File parent = output.getParentFile();
+          if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Failed to create " + parent);
+          }
+          OutputSink out = OutputSink.toFile(output);
+          try {
+            ret = SpreadSheetDiffer.doDiff(pair.file1, pair.file2, out);
+          } finally {
+            out.close();
+          }
+        }
+        if (ret < 0) {
+          // the file was printed to stderr
+          throw new IOException("Missing or unreadable file");
+        }
+        pair.status = (ret == 0) ? Status.MATCH : Status.DIFFER;
+      }
+    } catch (Exception e) {
+      if (Flags.DEBUG) {
+        e.printStackTrace(System.err);
+      }
+      pair.status = Status.ERROR;
+      pair.error = (e.getMessage() != null) ? e.getMessage() : e.toString();
+      if (output != null) {
+        // the diff so far, if any, would pass for the whole diff
+        output.delete();
+      }
+    }
+    pair.millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+  }
+
+  private static void writeSummary(List<Pair> pairs, Map<Status, Integer> counts, int ret,
+      long millis, OutputSink out) {
+    out.println("{");
+    out.println("  \"pairs\": [");
+    for (int i = 0; i < pairs.size(); i++) {
+      Pair pair = pairs.get(i);
+      StringBuilder line = new StringBuilder("    {\"name\": ").append(jsonString(pair.name));
+      line.append(", \"file1\": ").append(jsonString(pathOf(pair.file1)));
+      line.append(", \"file2\": ").append(jsonString(pathOf(pair.file2)));
+      line.append(", \"status\": ").append(jsonString(pair.status.name().toLowerCase()));
+      boolean diffed = (pair.status == Status.MATCH) || (pair.status == Status.DIFFER);
+      line.append(", \"output\": ")
+          .append(jsonString((diffed && !Flags.QUIET) ? pair.outputName : null));
+      line.append(", \"millis\": ").append(pair.millis);
+      if (pair.error != null) {
+        line.append(", \"error\": ").append(jsonString(pair.error));
+      }
+      out.println(line.append((i < pairs.size() - 1) ? "}," : "}").toString());
+    }
+    out.println("  ],");
+    StringBuilder line = new StringBuilder("  \"counts\": {");
+    for (Status status : Status.values()) {
+      line.append((status.ordinal() == 0) ? "" : ", ")
+          .append(jsonString(status.name().toLowerCase())).append(": ").append(counts.get(status));
+    }
+    out.println(line.append("},").toString());
+    out.println("  \"millis\": " + millis + ",");
+    out.println("  \"exit_code\": " + ((ret < 0) ? 255 : ret));
+    out.println("}");
+  }
+
+  @Nullable
+  private static String pathOf(@Nullable File file) {
+    return (file == null) ? null : file.getPath();
+  }
+
+  private static String jsonString(@Nullable String s) {
+    if (s == null) {
+      return "null";
+    }
+    StringBuilder json = new StringBuilder("\"");
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if ((c == '"') || (c == '\\')) {
+        json.append('\\').append(c);
+      } else if (c == '\n') {
+        json.append("\\n");
+      } else if (c == '\t') {
+        json.append("\\t");
+      } else if (c < 0x20) {
+        json.append(String.format("\\u%04x", (int) c));
+      } else {
+        json.append(c);
+      }
+    }
+    return json.append('"').toString();
+  }
+}
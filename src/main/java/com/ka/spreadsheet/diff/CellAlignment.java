@@ -0,0 +1,159 @@
+package com.ka.spreadsheet.diff;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+/**
+ * Alignment of the rows and / or the columns of the sheets of two workbooks, from the hashes of
+ * their rows and columns, so that inserted and deleted rows or columns are reported as extra cells
+ * instead of shifting all the cells after them. See {@link SequenceAlignment}.
+ *
+ * The sheets are then walked by aligned row and column: the same for two paired rows or columns,
+ * and one of its own for an extra row or column. Rows or columns matched in whole are skipped, as
+ * long as the other dimension isn't aligned too. Their hashes are of the cells at their actual
+ * positions, which don't tell whether they are the same at aligned positions.
+ */
+class CellAlignment {
+
+  private final Map<Integer, SequenceAlignment> rows;
+  private final Map<Integer, SequenceAlignment> columns;
+
+  private CellAlignment(Map<Integer, SequenceAlignment> rows,
+      Map<Integer, SequenceAlignment> columns) {
+    this.rows = rows;
+    this.columns = columns;
+  }
+
+  /**
+   * Aligns the sheets with cells in both workbooks, the others are walked by row and column
+   * index.
+   */
+  static CellAlignment align(WorkbookIndex index1, WorkbookIndex index2, boolean alignRows,
+      boolean alignColumns) {
+    Map<Integer, SequenceAlignment> rows = new HashMap<Integer, SequenceAlignment>();
+    Map<Integer, SequenceAlignment> columns = new HashMap<Integer, SequenceAlignment>();
+    for (int sheetIdx : index1.sheetIndexes()) {
+      if (index2.rows(sheetIdx) == null) {
+        continue;
+      }
+      if (alignRows) {
+        rows.put(sheetIdx, SequenceAlignment.align(index1.rows(sheetIdx),
+            index1.rowHashes(sheetIdx), index2.rows(sheetIdx), index2.rowHashes(sheetIdx)));
+      }
+      if (alignColumns) {
+        columns.put(sheetIdx, SequenceAlignment.align(index1.columns(sheetIdx),
+            index1.columnHashes(sheetIdx), index2.columns(sheetIdx),
+            index2.columnHashes(sheetIdx)));
+      }
+    }
+    return new CellAlignment(rows, columns);
+  }
+
+  /**
+   * Filters out the rows of a workbook matched with the same row in the other one, null if none
+   * can be.
+   */
+  @Nullable
+  RowFilter matchedRows(final boolean inFirstSpreadSheet) {
+    if (!columns.isEmpty()) {
+      return null;
+    }
+    return new RowFilter() {
+      @Override
+      public boolean skipRow(int sheetIdx, int rowIdx) {
+        SequenceAlignment sheet = rows.get(sheetIdx);
+        return (sheet != null) && sheet.isMatched(inFirstSpreadSheet, rowIdx);
+      }
+    };
+  }
+
+  /**
+   * Filters out the columns of a workbook matched with the same column in the other one, null if
+   * none can be.
+   */
+  @Nullable
+  ColumnFilter matchedColumns(final boolean inFirstSpreadSheet) {
+    if (!rows.isEmpty()) {
+      return null;
+    }
+    return new ColumnFilter() {
+      @Override
+      public boolean skipColumn(int sheetIdx, int colIdx) {
+        SequenceAlignment sheet = columns.get(sheetIdx);
+        return (sheet != null) && sheet.isMatched(inFirstSpreadSheet, colIdx);
+      }
+    };
+  }
+
+  /**
+   * Returns a cursor whose row and column indexes are the aligned ones, for the cells to be merged
+   * by aligned position. The cells it reports keep their own position.
+   */
+  ISpreadSheetCursor alignedCursor(final ISpreadSheetCursor cursor,
+      final boolean inFirstSpreadSheet) {
+    return new ISpreadSheetCursor() {
+
+      private int sheetIdx = -1;
+      private SequenceAlignment sheetRows;
+      private SequenceAlignment sheetColumns;
+      private int lastRowIdx = -1;
+      private int alignedRowIdx;
+
+      @Override
+      public boolean advance() {
+        if (!cursor.advance()) {
+          return false;
+        }
+        if (cursor.getSheetIndex() != sheetIdx) {
+          sheetIdx = cursor.getSheetIndex();
+          sheetRows = rows.get(sheetIdx);
+          sheetColumns = columns.get(sheetIdx);
+          lastRowIdx = -1;
+        }
+        return true;
+      }
+
+      @Override
+      public ISheet getSheet() {
+        return cursor.getSheet();
+      }
+
+      @Override
+      public int getSheetIndex() {
+        return cursor.getSheetIndex();
+      }
+
+      @Override
+      public int getRowIndex() {
+        int rowIdx = cursor.getRowIndex();
+        if (sheetRows == null) {
+          return rowIdx;
+        }
+        if (rowIdx != lastRowIdx) {
+          alignedRowIdx = sheetRows.alignedIndex(inFirstSpreadSheet, rowIdx);
+          lastRowIdx = rowIdx;
+        }
+        return alignedRowIdx;
+      }
+
+      @Override
+      public int getColumnIndex() {
+        int colIdx = cursor.getColumnIndex();
+        return (sheetColumns == null) ? colIdx
+            : sheetColumns.alignedIndex(inFirstSpreadSheet, colIdx);
+      }
+
+      @Override
+      public CellValue getCellValue() {
+        return cursor.getCellValue();
+      }
+
+      @Override
+      public CellPos toCellPos() {
+        return cursor.toCellPos();
+      }
+    };
+  }
+}
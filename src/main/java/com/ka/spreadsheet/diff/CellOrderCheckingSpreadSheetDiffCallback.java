@@ -0,0 +1,92 @@
+package com.ka.spreadsheet.diff;
+
+/**
+ * Passes the calls on to another callback, asserting that the cells are reported in the order
+ * callbacks may rely on for the options of the diff: differing cells at the same position and
+ * all cells in {sheet, row, column} order, or each workbook's cells in order on their own with
+ * aligned rows / columns, or only the first workbook's with key columns. Only installed when
+ * assertions are enabled.
+ */
+class CellOrderCheckingSpreadSheetDiffCallback implements SpreadSheetDiffCallback {
+
+  private final SpreadSheetDiffCallback delegate;
+  private final boolean alignRows;
+  private final boolean alignColumns;
+  private final boolean keyed;
+  private CellPos previousCell = null;
+  private CellPos previousCell1 = null;
+  private CellPos previousCell2 = null;
+
+  CellOrderCheckingSpreadSheetDiffCallback(SpreadSheetDiffCallback delegate, boolean alignRows,
+      boolean alignColumns, boolean keyed) {
+    this.delegate = delegate;
+    this.alignRows = alignRows;
+    this.alignColumns = alignColumns;
+    this.keyed = keyed;
+  }
+
+  @Override
+  public void init(String file1, String file2) {
+    delegate.init(file1, file2);
+  }
+
+  @Override
+  public void finish() {
+    delegate.finish();
+  }
+
+  @Override
+  public void reportDiffCell(CellPos c1, CellPos c2) {
+    assert (c1.getRowIndex() == c2.getRowIndex() || alignRows || keyed)
+      && (c1.getColumnIndex() == c2.getColumnIndex() || alignColumns) : "Cells are not at the same position. Cell 1="
+      + c1.getCellPosition() + ", cell 2=" + c2.getCellPosition();
+    checkOrder(aligned() ? previousCell1 : previousCell, c1);
+    if (!keyed) {
+      checkOrder(aligned() ? previousCell2 : previousCell, c2);
+    }
+    previousCell = c1;
+    previousCell1 = c1;
+    previousCell2 = c2;
+    delegate.reportDiffCell(c1, c2);
+  }
+
+  @Override
+  public void reportExtraCell(boolean inFirstSpreadSheet, CellPos c) {
+    if (inFirstSpreadSheet || !keyed) {
+      checkOrder(aligned() ? (inFirstSpreadSheet ? previousCell1 : previousCell2)
+          : previousCell, c);
+    }
+    previousCell = c;
+    if (inFirstSpreadSheet) {
+      previousCell1 = c;
+    } else {
+      previousCell2 = c;
+    }
+    delegate.reportExtraCell(inFirstSpreadSheet, c);
+  }
+
+  private boolean aligned() {
+    return alignRows || alignColumns || keyed;
+  }
+
+  private static void checkOrder(CellPos previousCell, CellPos c) {
+    assert previousCell == null || c.compareCellPositions(previousCell) > 0 :
+      "Cell-ordering contract violated.  Previous=" + previousCell.getCellPosition()
+      + ", current=" + c.getCellPosition();
+  }
+
+  @Override
+  public void reportMacroOnlyIn(boolean inFirstSpreadSheet) {
+    delegate.reportMacroOnlyIn(inFirstSpreadSheet);
+  }
+
+  @Override
+  public void reportWorkbooksDiffer(boolean differ) {
+    delegate.reportWorkbooksDiffer(differ);
+  }
+
+  @Override
+  public boolean isDone() {
+    return delegate.isDone();
+  }
+}
@@ -8,10 +8,16 @@ public class CellPos {
 
   private final ISheet sheet;
   private final ICell cell;
+  private final boolean withoutFormula;
 
   public CellPos(ISheet sheet, ICell cell) {
+    this(sheet, cell, false);
+  }
+
+  private CellPos(ISheet sheet, ICell cell, boolean withoutFormula) {
     this.sheet = sheet;
     this.cell = cell;
+    this.withoutFormula = withoutFormula;
   }
 
   public String getSheetName() {
@@ -45,12 +51,34 @@ public class CellPos {
 
   public CellValue getCellValue() {
     try {
-      return cell.getValue();
+      CellValue value = cell.getValue();
+      return withoutFormula ? value.withoutFormula() : value;
     } catch (Exception e) {
       throw new RuntimeException("Error reading Cell at " + getCellPosition() + ": " + e.getMessage(), e);
     }
   }
 
+  /**
+   * Returns the same cell, whose value has no formula.
+   */
+  CellPos withoutFormula() {
+    return new CellPos(sheet, cell, true);
+  }
+
+  /**
+   * Returns a copy which holds the value of the cell, and so no longer reads the workbook.
+   */
+  CellPos detach() {
+    return detached(sheet, cell.getRowIndex(), cell.getColumnIndex(), getCellValue());
+  }
+
+  /**
+   * Returns a cell of the sheet which holds its value, and so doesn't read the workbook.
+   */
+  static CellPos detached(ISheet sheet, int rowIdx, int colIdx, CellValue value) {
+    return new CellPos(sheet, new DetachedCell(rowIdx, colIdx, value));
+  }
+
   /**
    * Compare positions in {Sheet, Row, Column} order.
    * Returns -/0/+ as in Comparable.compareTo().
@@ -65,4 +93,32 @@ public class CellPos {
     }
     return c;
   }
+
+  private static class DetachedCell implements ICell {
+
+    private final int rowIdx;
+    private final int colIdx;
+    private final CellValue value;
+
+    DetachedCell(int rowIdx, int colIdx, CellValue value) {
+      this.rowIdx = rowIdx;
+      this.colIdx = colIdx;
+      this.value = value;
+    }
+
+    @Override
+    public int getRowIndex() {
+      return rowIdx;
+    }
+
+    @Override
+    public int getColumnIndex() {
+      return colIdx;
+    }
+
+    @Override
+    public CellValue getValue() {
+      return value;
+    }
+  }
 }
@@ -1,52 +1,128 @@
 package com.ka.spreadsheet.diff;
 
+import javax.annotation.Nullable;
+
+/**
+ * Value of a cell: its formula if any, plus a value tagged with its type. Numbers and booleans
+ * are held as primitives, so reading and comparing them doesn't box.
+ */
 public class CellValue {
 
+  public enum Type {
+    NULL,
+    NUMBER,
+    BOOLEAN,
+    STRING
+  }
+
   private final boolean hasFormula;
   private final String formula;
-  private final Object value;
+  private final Type type;
+  private final double number;
+  private final boolean bool;
+  private final String string;
 
-  public CellValue(boolean hasFormula, String formula, Object value) {
+  private CellValue(boolean hasFormula, String formula, Type type, double number, boolean bool,
+      String string) {
     this.hasFormula = hasFormula;
     this.formula = formula;
-    this.value = value;
+    this.type = type;
+    this.number = number;
+    this.bool = bool;
+    this.string = string;
   }
 
-  @Override
-  public String toString() {
-    if (hasFormula && !Flags.DIFF_IGNORE_FORMULAS) {
-      return String.valueOf(formula);
+  /**
+   * value is expected to be a Double, a Boolean, a String or null. Any other object is kept as
+   * its string representation.
+   */
+  public CellValue(boolean hasFormula, String formula, @Nullable Object value) {
+    this.hasFormula = hasFormula;
+    this.formula = formula;
+    if (value == null) {
+      this.type = Type.NULL;
+      this.number = 0;
+      this.bool = false;
+      this.string = null;
+    } else if (value instanceof Double) {
+      this.type = Type.NUMBER;
+      this.number = (Double) value;
+      this.bool = false;
+      this.string = null;
+    } else if (value instanceof Boolean) {
+      this.type = Type.BOOLEAN;
+      this.number = 0;
+      this.bool = (Boolean) value;
+      this.string = null;
     } else {
-      return String.valueOf(value);
+      this.type = Type.STRING;
+      this.number = 0;
+      this.bool = false;
+      this.string = value.toString();
     }
   }
 
-  public boolean compare(CellValue other) {
-    if (!Flags.DIFF_IGNORE_FORMULAS) {
-      if (hasFormula ^ other.hasFormula) {
-        return false;
-      } else if (hasFormula) {
-        if (formula == null) {
-          return other.formula == null;
-        } else {
-          return formula.equals(other.formula);
-        }
-      }
+  public static CellValue ofNumber(boolean hasFormula, String formula, double value) {
+    return new CellValue(hasFormula, formula, Type.NUMBER, value, false, null);
+  }
+
+  public static CellValue ofBoolean(boolean hasFormula, String formula, boolean value) {
+    return new CellValue(hasFormula, formula, Type.BOOLEAN, 0, value, null);
+  }
+
+  public static CellValue ofString(boolean hasFormula, String formula, @Nullable String value) {
+    return (value == null) ? new CellValue(hasFormula, formula, Type.NULL, 0, false, null)
+        : new CellValue(hasFormula, formula, Type.STRING, 0, false, value);
+  }
+
+  public boolean hasFormula() {
+    return hasFormula;
+  }
+
+  public String getFormula() {
+    return formula;
+  }
+
+  public Type getType() {
+    return type;
+  }
+
+  public double getNumber() {
+    return number;
+  }
+
+  public boolean getBoolean() {
+    return bool;
+  }
+
+  public String getString() {
+    return string;
+  }
+
+  /**
+   * The same value without its formula, e.g. to show the value of a formula cell.
+   */
+  public CellValue withoutFormula() {
+    return hasFormula ? new CellValue(false, null, type, number, bool, string) : this;
+  }
+
+  /**
+   * The formula if any, the value otherwise.
+   */
+  @Override
+  public String toString() {
+    if (hasFormula) {
+      return String.valueOf(formula);
     }
-    if (value == null) {
-      return other.value == null;
-    } else if (other.value == null) {
-      return false;
-    } else { // both not null
-      if (value.equals(other.value)) {
-        return true;
-      }
-      if ((Flags.DIFF_NUMERIC_PRECISION != null)
-          && (value instanceof Double) && (other.value instanceof Double)
-          && (Math.abs((Double) value - (Double) other.value) < Flags.DIFF_NUMERIC_PRECISION)) {
-        return true;
-      }
-      return false;
+    switch (type) {
+      case NUMBER:
+        return String.valueOf(number);
+      case BOOLEAN:
+        return String.valueOf(bool);
+      case STRING:
+        return string;
+      default:
+        return "null";
     }
   }
 }
@@ -0,0 +1,57 @@
+package com.ka.spreadsheet.diff;
+
+import javax.annotation.Nullable;
+
+/**
+ * Decides whether two cell values are the same, according to the diff options. Options are
+ * resolved once when the comparator is built instead of being looked up for every cell.
+ *
+ * Formulas are compared instead of values unless formulas are ignored. Values of different
+ * types never match. Numbers match when they are the same double or, if a precision is given,
+ * closer than the precision.
+ */
+public final class CellValueComparator {
+
+  private final boolean compareFormulas;
+  private final boolean hasPrecision;
+  private final double precision;
+
+  public CellValueComparator(boolean ignoreFormulas, @Nullable Double numericPrecision) {
+    this.compareFormulas = !ignoreFormulas;
+    this.hasPrecision = numericPrecision != null;
+    this.precision = (numericPrecision != null) ? numericPrecision : 0;
+  }
+
+  public boolean equal(CellValue v1, CellValue v2) {
+    if (compareFormulas) {
+      if (v1.hasFormula() ^ v2.hasFormula()) {
+        return false;
+      } else if (v1.hasFormula()) {
+        return (v1.getFormula() == null) ? (v2.getFormula() == null)
+            : v1.getFormula().equals(v2.getFormula());
+      }
+    }
+    if (v1.getType() != v2.getType()) {
+      return false;
+    }
+    switch (v1.getType()) {
+      case NUMBER:
+        return equalNumbers(v1.getNumber(), v2.getNumber());
+      case BOOLEAN:
+        return v1.getBoolean() == v2.getBoolean();
+      case STRING:
+        return v1.getString().equals(v2.getString());
+      default:
+        return true;
+    }
+  }
+
+  /**
+   * Same equality as Double.equals() (NaN matches NaN, 0.0 doesn't match -0.0), then the
+   * precision if any.
+   */
+  private boolean equalNumbers(double d1, double d2) {
+    return (Double.doubleToLongBits(d1) == Double.doubleToLongBits(d2))
+        || (hasPrecision && (Math.abs(d1 - d2) < precision));
+  }
+}
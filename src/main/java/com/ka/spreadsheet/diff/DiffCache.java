@@ -0,0 +1,192 @@
+package com.ka.spreadsheet.diff;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import javax.annotation.Nullable;
+
+/**
+ * Directory of {@link WorkbookIndex}es, so that a workbook diffed again, typically a baseline,
+ * doesn't need to be read in full to tell which of its sheets and rows changed.
+ *
+ * An entry is keyed by the path of the workbook and the options it was indexed with. It holds the
+ * size, modification time and SHA-256 of the file, and is used if the size and either the time or
+ * the content hash still match. Entries are evicted least recently used first, by their own
+ * modification time which a hit refreshes, once the directory is over its maximum size.
+ */
+class DiffCache {
+
+  static final long DEFAULT_MAX_BYTES = 256L << 20;
+
+  private static final int MAGIC = 0x58434D50;
+  private static final int VERSION = 2;
+  private static final String SUFFIX = ".idx";
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  private final File dir;
+  private final long maxBytes;
+
+  DiffCache(File dir, long maxBytes) {
+    this.dir = dir;
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Returns the index of the workbook if it is cached for these options, null otherwise.
+   */
+  @Nullable
+  WorkbookIndex load(File file, String options) {
+    File entry = entryFile(file, options);
+    if (!entry.isFile()) {
+      return null;
+    }
+    try {
+      DataInputStream in = new DataInputStream(
+          new BufferedInputStream(new FileInputStream(entry), BUFFER_SIZE));
+      try {
+        if ((in.readInt() != MAGIC) || (in.readInt() != VERSION)
+            || (in.readLong() != file.length())) {
+          return null;
+        }
+        long lastModified = in.readLong();
+        byte[] contentHash = new byte[in.readInt()];
+        in.readFully(contentHash);
+        if ((lastModified != file.lastModified())
+            && !Arrays.equals(contentHash, contentHash(file))) {
+          return null;
+        }
+        WorkbookIndex index = WorkbookIndex.read(in);
+        entry.setLastModified(System.currentTimeMillis());
+        return index;
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      // unreadable entry, it will be replaced
+      return null;
+    }
+  }
+
+  /**
+   * Caches the index of the workbook for these options, then evicts entries as needed.
+   */
+  void store(File file, String options, WorkbookIndex index) throws IOException {
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Failed to create cache directory " + dir);
+    }
+    File entry = entryFile(file, options);
+    // written aside and renamed, so that a concurrent diff never reads a partial entry
+    File tmp = File.createTempFile("index", ".tmp", dir);
+    try {
+      long length = file.length();
+      long lastModified = file.lastModified();
+      byte[] contentHash = contentHash(file);
+      DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(new FileOutputStream(tmp), BUFFER_SIZE));
+      try {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(length);
+        out.writeLong(lastModified);
+        out.writeInt(contentHash.length);
+        out.write(contentHash);
+        index.write(out);
+      } finally {
+        out.close();
+      }
+      if (!tmp.renameTo(entry) && (!entry.delete() || !tmp.renameTo(entry))) {
+        throw new IOException("Failed to write cache entry " + entry);
+      }
+    } finally {
+      tmp.delete();
+    }
+    evict();
+  }
+
+  private void evict() {
+    File[] entries = dir.listFiles(new FileFilter() {
+      @Override
+      public boolean accept(File file) {
+        return file.isFile() && file.getName().endsWith(SUFFIX);
+      }
+    });
+    if (entries == null) {
+      return;
+    }
+    long totalBytes = 0;
+    for (File entry : entries) {
+      totalBytes += entry.length();
+    }
+    Arrays.sort(entries, new Comparator<File>() {
+      @Override
+      public int compare(File f1, File f2) {
+        long t1 = f1.lastModified();
+        long t2 = f2.lastModified();
+        return (t1 < t2) ? -1 : ((t1 == t2) ? 0 : 1);
+      }
+    });
+    for (int i = 0; (i < entries.length) && (totalBytes > maxBytes); i++) {
+      long length = entries[i].length();
+      if (entries[i].delete()) {
+        totalBytes -= length;
+      }
+    }
+  }
+
+  private File entryFile(File file, String options) {
+    String path;
+    try {
+      path = file.getCanonicalPath();
+    } catch (IOException e) {
+      path = file.getAbsolutePath();
+    }
+    MessageDigest digest = newDigest();
+    digest.update((path + "\n" + options).getBytes(UTF_8));
+    return new File(dir, toHex(digest.digest()) + SUFFIX);
+  }
+
+  private static byte[] contentHash(File file) throws IOException {
+    MessageDigest digest = newDigest();
+    InputStream in = new FileInputStream(file);
+    try {
+      byte[] buf = new byte[BUFFER_SIZE];
+      int read;
+      while ((read = in.read(buf)) != -1) {
+        digest.update(buf, 0, read);
+      }
+    } finally {
+      in.close();
+    }
+    return digest.digest();
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not available", e);
+    }
+  }
+
+  private static String toHex(byte[] bytes) {
+    StringBuilder hex = new StringBuilder();
+    for (byte b : bytes) {
+      hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    }
+    return hex.toString();
+  }
+}
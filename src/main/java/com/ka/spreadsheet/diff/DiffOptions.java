@@ -0,0 +1,299 @@
+package com.ka.spreadsheet.diff;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+/**
+ * Options of a diff, see the diff flags of the same names. Immutable, so that the same options
+ * may be shared by diffs running at the same time, see
+ * {@link SpreadSheetDiffer#diff(File, File, DiffOptions, SpreadSheetDiffCallback)}.
+ *
+ * Build with {@link #builder()}, every option defaults to how excel_cmp diffs without flags.
+ */
+public final class DiffOptions {
+
+  private static final WorkbookIgnores NO_IGNORES = WorkbookIgnores.of();
+
+  public static final DiffOptions DEFAULT = builder().build();
+
+  @Nullable
+  private final Double numericPrecision;
+  private final boolean ignoreFormulas;
+  private final boolean streaming;
+  private final boolean parallel;
+  private final boolean alignRows;
+  private final boolean alignColumns;
+  @Nullable
+  private final Map<String, int[]> keyColumns;
+  @Nullable
+  private final Long keyMemoryBytes;
+  @Nullable
+  private final File cacheDir;
+  private final long cacheMaxBytes;
+  @Nullable
+  private final Integer maxDiffs;
+  private final WorkbookIgnores ignores1;
+  private final WorkbookIgnores ignores2;
+  private final boolean debug;
+
+  private DiffOptions(Builder builder) {
+    this.numericPrecision = builder.numericPrecision;
+    this.ignoreFormulas = builder.ignoreFormulas;
+    this.streaming = builder.streaming;
+    this.parallel = builder.parallel;
+    this.alignRows = builder.alignRows;
+    this.alignColumns = builder.alignColumns;
+    this.keyColumns = (builder.keyColumns != null)
+        ? Collections.unmodifiableMap(new HashMap<String, int[]>(builder.keyColumns)) : null;
+    this.keyMemoryBytes = builder.keyMemoryBytes;
+    this.cacheDir = builder.cacheDir;
+    this.cacheMaxBytes = builder.cacheMaxBytes;
+    this.maxDiffs = builder.maxDiffs;
+    this.ignores1 = builder.ignores1;
+    this.ignores2 = builder.ignores2;
+    this.debug = builder.debug;
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /**
+   * The options given by the diff flags last parsed.
+   */
+  static DiffOptions fromFlags() {
+    Builder builder = builder()
+        .numericPrecision(Flags.DIFF_NUMERIC_PRECISION)
+        .ignoreFormulas(Flags.DIFF_IGNORE_FORMULAS)
+        .streaming(Flags.STREAMING)
+        .parallel(Flags.PARALLEL)
+        .alignRows(Flags.ALIGN_ROWS)
+        .alignColumns(Flags.ALIGN_COLUMNS)
+        .keyMemoryBytes((Flags.KEY_MEMORY_MB != null) ? (Flags.KEY_MEMORY_MB << 20) : null)
+        .cacheDir(Flags.CACHE_DIR)
+        .cacheMaxBytes((Flags.CACHE_MAX_MB != null) ? (Flags.CACHE_MAX_MB << 20)
+            : DiffCache.DEFAULT_MAX_BYTES)
+        .maxDiffs(Flags.QUIET ? Integer.valueOf(1) : Flags.MAX_DIFFS)
+        .ignores1(Flags.WORKBOOK_IGNORES1)
+        .ignores2(Flags.WORKBOOK_IGNORES2)
+        .debug(Flags.DEBUG);
+    if (Flags.KEY_COLUMNS != null) {
+      for (Map.Entry<String, int[]> entry : Flags.KEY_COLUMNS.entrySet()) {
+        builder.keyColumns(entry.getKey(), entry.getValue());
+      }
+    }
+    return builder.build();
+  }
+
+  /**
+   * Numbers closer than it match, null if numbers only match when the same.
+   */
+  @Nullable
+  public Double getNumericPrecision() {
+    return numericPrecision;
+  }
+
+  public boolean isIgnoreFormulas() {
+    return ignoreFormulas;
+  }
+
+  public boolean isStreaming() {
+    return streaming;
+  }
+
+  public boolean isParallel() {
+    return parallel;
+  }
+
+  public boolean isAlignRows() {
+    return alignRows;
+  }
+
+  public boolean isAlignColumns() {
+    return alignColumns;
+  }
+
+  /**
+   * Whether the rows of some sheets are matched by key columns instead of by position.
+   */
+  public boolean hasKeyColumns() {
+    return keyColumns != null;
+  }
+
+  /**
+   * The sorted key columns of the sheet, those given for no sheet name if it has none of its own,
+   * or null if its rows are matched by position.
+   */
+  @Nullable
+  int[] keyColumnsOf(String sheetName) {
+    if (keyColumns == null) {
+      return null;
+    }
+    int[] columns = keyColumns.get(sheetName);
+    return (columns != null) ? columns : keyColumns.get("");
+  }
+
+  /**
+   * Bytes the keys of a sheet may take in memory, null for a quarter of the heap.
+   */
+  @Nullable
+  public Long getKeyMemoryBytes() {
+    return keyMemoryBytes;
+  }
+
+  @Nullable
+  public File getCacheDir() {
+    return cacheDir;
+  }
+
+  /**
+   * Bytes the cache directory is kept under, least recently used indexes being removed first.
+   */
+  public long getCacheMaxBytes() {
+    return cacheMaxBytes;
+  }
+
+  /**
+   * How many differing / extra cells are reported before the diff stops, null for all of them.
+   */
+  @Nullable
+  public Integer getMaxDiffs() {
+    return maxDiffs;
+  }
+
+  public WorkbookIgnores getIgnores1() {
+    return ignores1;
+  }
+
+  public WorkbookIgnores getIgnores2() {
+    return ignores2;
+  }
+
+  /**
+   * Whether to print timings of the steps of a diff to stderr.
+   */
+  public boolean isDebug() {
+    return debug;
+  }
+
+  public static class Builder {
+
+    private Double numericPrecision;
+    private boolean ignoreFormulas;
+    private boolean streaming;
+    private boolean parallel;
+    private boolean alignRows;
+    private boolean alignColumns;
+    private Map<String, int[]> keyColumns;
+    private Long keyMemoryBytes;
+    private File cacheDir;
+    private long cacheMaxBytes = DiffCache.DEFAULT_MAX_BYTES;
+    private Integer maxDiffs;
+    private WorkbookIgnores ignores1 = NO_IGNORES;
+    private WorkbookIgnores ignores2 = NO_IGNORES;
+    private boolean debug;
+
+    private Builder() {
+    }
+
+    public Builder numericPrecision(@Nullable Double numericPrecision) {
+      this.numericPrecision = numericPrecision;
+      return this;
+    }
+
+    public Builder ignoreFormulas(boolean ignoreFormulas) {
+      this.ignoreFormulas = ignoreFormulas;
+      return this;
+    }
+
+    public Builder streaming(boolean streaming) {
+      this.streaming = streaming;
+      return this;
+    }
+
+    public Builder parallel(boolean parallel) {
+      this.parallel = parallel;
+      return this;
+    }
+
+    public Builder alignRows(boolean alignRows) {
+      this.alignRows = alignRows;
+      return this;
+    }
+
+    public Builder alignColumns(boolean alignColumns) {
+      this.alignColumns = alignColumns;
+      return this;
+    }
+
+    /**
+     * Matches the rows of the sheet by the values of these columns, 0 based, "" for the sheets
+     * without any of their own. May be called for several sheets.
+     */
+    public Builder keyColumns(String sheetName, int... columns) {
+      if (columns.length == 0) {
+        throw new IllegalArgumentException("No key columns for sheet " + sheetName);
+      }
+      int[] sortedColumns = columns.clone();
+      Arrays.sort(sortedColumns);
+      if (keyColumns == null) {
+        keyColumns = new HashMap<String, int[]>();
+      }
+      keyColumns.put(sheetName, sortedColumns);
+      return this;
+    }
+
+    public Builder keyMemoryBytes(@Nullable Long keyMemoryBytes) {
+      if ((keyMemoryBytes != null) && (keyMemoryBytes <= 0)) {
+        throw new IllegalArgumentException("Illegal key memory " + keyMemoryBytes);
+      }
+      this.keyMemoryBytes = keyMemoryBytes;
+      return this;
+    }
+
+    public Builder cacheDir(@Nullable File cacheDir) {
+      this.cacheDir = cacheDir;
+      return this;
+    }
+
+    public Builder cacheMaxBytes(long cacheMaxBytes) {
+      if (cacheMaxBytes <= 0) {
+        throw new IllegalArgumentException("Illegal cache size " + cacheMaxBytes);
+      }
+      this.cacheMaxBytes = cacheMaxBytes;
+      return this;
+    }
+
+    public Builder maxDiffs(@Nullable Integer maxDiffs) {
+      if ((maxDiffs != null) && (maxDiffs <= 0)) {
+        throw new IllegalArgumentException("Illegal max diffs " + maxDiffs);
+      }
+      this.maxDiffs = maxDiffs;
+      return this;
+    }
+
+    public Builder ignores1(WorkbookIgnores ignores1) {
+      this.ignores1 = ignores1;
+      return this;
+    }
+
+    public Builder ignores2(WorkbookIgnores ignores2) {
+      this.ignores2 = ignores2;
+      return this;
+    }
+
+    public Builder debug(boolean debug) {
+      this.debug = debug;
+      return this;
+    }
+
+    public DiffOptions build() {
+      return new DiffOptions(this);
+    }
+  }
+}
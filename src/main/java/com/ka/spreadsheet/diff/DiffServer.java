@@ -0,0 +1,252 @@
+package com.ka.spreadsheet.diff;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Diffs the requests of excel_cmp clients in a long running JVM, so that they only pay for
+ * reading and comparing the workbooks, not for JVM startup, class loading and JIT warmup.
+ *
+ * The server listens on a loopback port, which it writes along with a random secret to the
+ * daemon file, readable by its owner only. A request is a line of text per field: the secret,
+ * the working directory of the client, then the args as given to excel_cmp, one per line,
+ * ending with an empty line. The response streams back what the diff prints, each line
+ * prefixed with "o " for stdout or "e " for stderr, and ends with a "x <exit status>" line.
+ *
+ * Requests are diffed one at a time: a request is parsed into the global flags as if run on its
+ * own, and its diff prints to System.out and System.err, which are redirected to the client for
+ * the time of the diff. A client has to send its request within REQUEST_TIMEOUT_MILLIS, so that
+ * one which stalls doesn't hold up the requests queued behind it. Each diff closes its workbooks,
+ * so that a long running server doesn't run out of file descriptors.
+ */
+class DiffServer {
+
+  private static final Charset CHARSET = Charset.defaultCharset();
+  private static final int SECRET_BYTES = 16;
+  private static final int BACKLOG = 50;
+  private static final int REQUEST_TIMEOUT_MILLIS = 10000;
+
+  private final String secret;
+
+  DiffServer(String secret) {
+    this.secret = secret;
+  }
+
+  static File defaultDaemonFile() {
+    return new File(new File(System.getProperty("user.home"), ".excel_cmp"), "daemon");
+  }
+
+  /**
+   * Serves requests until the JVM is stopped, then deletes the daemon file.
+   */
+  static int run(final File daemonFile) throws IOException {
+    ServerSocket serverSocket = new ServerSocket(0, BACKLOG, InetAddress.getLoopbackAddress());
+    try {
+      DiffServer server = new DiffServer(newSecret());
+      writeDaemonFile(daemonFile, serverSocket.getLocalPort(), server.secret);
+      Runtime.getRuntime().addShutdownHook(new Thread("delete-daemon-file") {
+        @Override
+        public void run() {
+          daemonFile.delete();
+        }
+      });
+      System.out.println("Serving diffs on " + serverSocket.getLocalSocketAddress()
+          + ", see " + daemonFile);
+      while (true) {
+        Socket socket = serverSocket.accept();
+        try {
+          server.serve(socket);
+        } catch (IOException e) {
+          System.err.println("Failed to serve a request: " + e.getMessage());
+        } finally {
+          socket.close();
+        }
+      }
+    } finally {
+      serverSocket.close();
+    }
+  }
+
+  private static String newSecret() {
+    byte[] bytes = new byte[SECRET_BYTES];
+    new SecureRandom().nextBytes(bytes);
+    StringBuilder secret = new StringBuilder();
+    for (byte b : bytes) {
+      secret.append(String.format("%02x", b));
+    }
+    return secret.toString();
+  }
+
+  /**
+   * Writes "<port> <secret>" to the file, readable by its owner only where the file system
+   * allows it, replacing the file of a server which is gone.
+   */
+  private static void writeDaemonFile(File daemonFile, int port, String secret)
+      throws IOException {
+    File dir = daemonFile.getAbsoluteFile().getParentFile();
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Failed to create " + dir);
+    }
+    File tmp = File.createTempFile("daemon", ".tmp", dir);
+    try {
+      try {
+        Files.setPosixFilePermissions(tmp.toPath(), PosixFilePermissions.fromString("rw-------"));
+      } catch (UnsupportedOperationException e) {
+        tmp.setReadable(false, false);
+        tmp.setReadable(true, true);
+      }
+      Files.write(tmp.toPath(), (port + " " + secret + "\n").getBytes(CHARSET));
+      Files.move(tmp.toPath(), daemonFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      tmp.delete();
+    }
+  }
+
+  /**
+   * Reads a request from the socket and diffs it, with System.out and System.err streamed back
+   * to the client for the time of the diff.
+   */
+  void serve(Socket socket) throws IOException {
+    socket.setSoTimeout(REQUEST_TIMEOUT_MILLIS);
+    BufferedReader in =
+        new BufferedReader(new InputStreamReader(socket.getInputStream(), CHARSET));
+    Response response = new Response(socket.getOutputStream());
+    String requestSecret = in.readLine();
+    if ((requestSecret == null) || !MessageDigest.isEqual(
+        requestSecret.getBytes(CHARSET), secret.getBytes(CHARSET))) {
+      response.exit("Wrong secret, see the daemon file of the server", -1);
+      return;
+    }
+    String dir = in.readLine();
+    List<String> args = new ArrayList<String>();
+    String arg;
+    while (((arg = in.readLine()) != null) && !arg.isEmpty()) {
+      args.add(arg);
+    }
+    if ((dir == null) || (arg == null)) {
+      response.exit("Incomplete request", -1);
+      return;
+    }
+    for (String a : args) {
+      if (a.startsWith("--server")) {
+        response.exit("--server can't be requested from a server", -1);
+        return;
+      }
+    }
+
+    PrintStream out = new PrintStream(response.stream('o'), true);
+    PrintStream err = new PrintStream(response.stream('e'), true);
+    PrintStream oldOut = System.out;
+    PrintStream oldErr = System.err;
+    int ret;
+    try {
+      System.setOut(out);
+      System.setErr(err);
+      File workingDir = new File(dir);
+      ret = SpreadSheetDiffer.doDiff(args.toArray(new String[args.size()]),
+          isWorkingDir(workingDir) ? null : workingDir);
+    } finally {
+      System.setOut(oldOut);
+      System.setErr(oldErr);
+      out.close();
+      err.close();
+    }
+    response.exit(ret);
+  }
+
+  private static boolean isWorkingDir(File dir) throws IOException {
+    return dir.getCanonicalFile().equals(new File(".").getCanonicalFile());
+  }
+
+  /**
+   * Prefixes the lines of stdout and stderr, writing each line whole, through a buffer which is
+   * flushed whenever the diff flushes System.out or System.err.
+   */
+  private static class Response {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final OutputStream out;
+
+    Response(OutputStream out) {
+      this.out = new BufferedOutputStream(out, BUFFER_SIZE);
+    }
+
+    OutputStream stream(final char prefix) {
+      return new OutputStream() {
+
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+        @Override
+        public void write(int b) throws IOException {
+          write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+          int end = off + len;
+          for (int i = off; i < end; i++) {
+            if (b[i] == '\n') {
+              line.write(b, off, i + 1 - off);
+              writeLine(prefix, line);
+              off = i + 1;
+            }
+          }
+          line.write(b, off, end - off);
+        }
+
+        @Override
+        public void flush() throws IOException {
+          Response.this.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+          if (line.size() > 0) {
+            line.write('\n');
+            writeLine(prefix, line);
+          }
+        }
+      };
+    }
+
+    private synchronized void writeLine(char prefix, ByteArrayOutputStream line)
+        throws IOException {
+      out.write(prefix);
+      out.write(' ');
+      line.writeTo(out);
+      line.reset();
+    }
+
+    synchronized void flush() throws IOException {
+      out.flush();
+    }
+
+    synchronized void exit(String error, int ret) throws IOException {
+      out.write(("e " + error + "\n").getBytes(CHARSET));
+      exit(ret);
+    }
+
+    synchronized void exit(int ret) throws IOException {
+      out.write(("x " + (ret & 0xff) + "\n").getBytes(CHARSET));
+      out.flush();
+    }
+  }
+}
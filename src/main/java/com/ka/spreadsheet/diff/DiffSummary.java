@@ -0,0 +1,72 @@
+package com.ka.spreadsheet.diff;
+
+import static com.ka.spreadsheet.diff.SpreadSheetUtils.COL_INTERNAL_TO_USER;
+import static com.ka.spreadsheet.diff.SpreadSheetUtils.ROW_INTERNAL_TO_USER;
+
+import java.util.BitSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Sheets, rows and columns in which cells were reported, for the summary printed at the end of a
+ * diff. The summary lists the rows and columns of all the sheets together, so they are kept as a
+ * single java.util.BitSet each over their internal index, taking a bit per row up to the last one
+ * reported whatever the number of sheets, e.g. 128 KB for a million rows. They are only turned
+ * into text when rendered: sorted, with runs of consecutive rows or columns shown as ranges.
+ */
+class DiffSummary {
+
+  /** Runs at least this long are rendered as first-last. */
+  private static final int MIN_RANGE_LENGTH = 3;
+
+  private final Set<String> sheetNames = new LinkedHashSet<String>();
+  private final BitSet rows = new BitSet();
+  private final BitSet cols = new BitSet();
+  private String lastSheetName;
+
+  void add(String sheetName, int rowIdx, int colIdx) {
+    if (!sheetName.equals(lastSheetName)) {
+      sheetNames.add(sheetName);
+      lastSheetName = sheetName;
+    }
+    rows.set(rowIdx);
+    cols.set(colIdx);
+  }
+
+  String renderSheets() {
+    return sheetNames.toString();
+  }
+
+  String renderRows() {
+    return render(rows, false);
+  }
+
+  String renderCols() {
+    return render(cols, true);
+  }
+
+  private static String render(BitSet bits, boolean columns) {
+    StringBuilder sb = new StringBuilder("[");
+    int start = bits.nextSetBit(0);
+    while (start >= 0) {
+      int end = bits.nextClearBit(start) - 1;
+      if (sb.length() > 1) {
+        sb.append(", ");
+      }
+      if (end - start + 1 >= MIN_RANGE_LENGTH) {
+        sb.append(label(start, columns)).append('-').append(label(end, columns));
+      } else {
+        sb.append(label(start, columns));
+        if (end > start) {
+          sb.append(", ").append(label(end, columns));
+        }
+      }
+      start = bits.nextSetBit(end + 1);
+    }
+    return sb.append(']').toString();
+  }
+
+  private static String label(int idx, boolean column) {
+    return column ? COL_INTERNAL_TO_USER(idx) : String.valueOf(ROW_INTERNAL_TO_USER(idx));
+  }
+}
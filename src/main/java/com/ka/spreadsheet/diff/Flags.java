@@ -1,6 +1,12 @@
 package com.ka.spreadsheet.diff;
 
+import static com.ka.spreadsheet.diff.SpreadSheetUtils.COL_USER_TO_INTERNAL;
+
 import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 
 public class Flags {
 
@@ -10,11 +16,62 @@ public class Flags {
   // no value, default absent
   private static final String DIFF_IGNORE_FORMULAS_FLAG = "--diff_ignore_formulas";
   private static final String DIFF_FORMAT_FLAG = "--diff_format";
+  // no value, default absent
+  private static final String STREAMING_FLAG = "--streaming";
+  // no value, default absent
+  private static final String PARALLEL_FLAG = "--parallel";
+  // file value, default null (stdout)
+  private static final String OUTPUT_FLAG = "--output";
+  // no value, default absent
+  private static final String ASYNC_FLAG = "--async";
+  // no value, default absent
+  private static final String QUIET_FLAG = "--quiet";
+  // int value, default null (all)
+  private static final String MAX_DIFFS_FLAG = "--max_diffs";
+  // directory value, default null (no cache)
+  private static final String CACHE_DIR_FLAG = "--cache_dir";
+  // long value, default null (256 MB)
+  private static final String CACHE_MAX_MB_FLAG = "--cache_max_mb";
+  // no value, default absent
+  private static final String ALIGN_ROWS_FLAG = "--align_rows";
+  // no value, default absent
+  private static final String ALIGN_COLUMNS_FLAG = "--align_columns";
+  // <sheet-name>:<columns> value, may be repeated, default null (rows matched by position)
+  private static final String KEY_COLUMNS_FLAG = "--key_columns";
+  // long value, default null (a quarter of the heap)
+  private static final String KEY_MEMORY_MB_FLAG = "--key_memory_mb";
+
+  private static final String BATCH_FLAG = "--batch";
+
+  private static final String BATCH_MANIFEST_FLAG = "--batch_manifest";
+
+  private static final String BATCH_THREADS_FLAG = "--batch_threads";
+  // optional file value, default null (no server)
+  private static final String SERVER_FLAG = "--server";
 
   public static boolean DEBUG;
   public static Double DIFF_NUMERIC_PRECISION;
   public static boolean DIFF_IGNORE_FORMULAS;
   public static DiffFormatter DIFF_FORMAT;
+  public static boolean STREAMING;
+  public static boolean PARALLEL;
+  public static File OUTPUT;
+  public static boolean ASYNC;
+  public static boolean QUIET;
+  public static Integer MAX_DIFFS;
+  public static File CACHE_DIR;
+  public static Long CACHE_MAX_MB;
+  public static boolean ALIGN_ROWS;
+  public static boolean ALIGN_COLUMNS;
+  // sorted key columns by sheet name, "" for all sheets
+  public static Map<String, int[]> KEY_COLUMNS;
+  public static Long KEY_MEMORY_MB;
+  // WORKBOOK1 / WORKBOOK2 are directories, or the pairs are listed in BATCH_MANIFEST
+  public static boolean BATCH;
+  public static File BATCH_MANIFEST;
+  public static Integer BATCH_THREADS;
+  // serve diffs to clients instead of diffing, the port is written to this file
+  public static File SERVER;
   public static String LOG_FILENAME;
   public static File WORKBOOK1;
   public static File WORKBOOK2;
@@ -33,6 +90,22 @@ public class Flags {
     DIFF_NUMERIC_PRECISION = null;
     DIFF_IGNORE_FORMULAS = false;
     DIFF_FORMAT = DiffFormatter.EXCEL_CMP;
+    STREAMING = false;
+    PARALLEL = false;
+    OUTPUT = null;
+    ASYNC = false;
+    QUIET = false;
+    MAX_DIFFS = null;
+    CACHE_DIR = null;
+    CACHE_MAX_MB = null;
+    ALIGN_ROWS = false;
+    ALIGN_COLUMNS = false;
+    KEY_COLUMNS = null;
+    KEY_MEMORY_MB = null;
+    BATCH = false;
+    BATCH_MANIFEST = null;
+    BATCH_THREADS = null;
+    SERVER = null;
     WORKBOOK1 = null;
     WORKBOOK2 = null;
     WORKBOOK_IGNORES1 = null;
@@ -57,18 +130,146 @@ public class Flags {
       DIFF_FORMAT = parseFormatFlagValue(idx, args);
       args = removeFlag(idx, args);
     }
-    if (args.length < 2) {
+    idx = findFlag(STREAMING_FLAG, args);
+    if (idx != -1) {
+      STREAMING = true;
+      args = removeFlag(idx, args);
+    }
+    idx = findFlag(PARALLEL_FLAG, args);
+    if (idx != -1) {
+      PARALLEL = true;
+      args = removeFlag(idx, args);
+    }
+    idx = findFlag(OUTPUT_FLAG, args);
+    if (idx != -1) {
+      OUTPUT = new File(parseStringFlagValue(idx, args));
+      args = removeFlag(idx, args);
+    }
+    idx = findFlag(ASYNC_FLAG, args);
+    if (idx != -1) {
+      ASYNC = true;
+      args = removeFlag(idx, args);
+    }
+    idx = findFlag(QUIET_FLAG, args);
+    if (idx != -1) {
+      QUIET = true;
+      args = removeFlag(idx, args);
+    }
+    idx = findFlag(MAX_DIFFS_FLAG, args);
+    if (idx != -1) {
+      MAX_DIFFS = parseIntFlagValue(idx, args);
+      if (MAX_DIFFS <= 0) {
+        throw new IllegalArgumentException("Illegal " + MAX_DIFFS_FLAG + " value: " + MAX_DIFFS);
+      }
+      args = removeFlag(idx, args);
+    }
+    idx = findFlag(CACHE_DIR_FLAG, args);
+    if (idx != -1) {
+      CACHE_DIR = new File(parseStringFlagValue(idx, args));
+      args = removeFlag(idx, args);
+    }
+    idx = findFlag(CACHE_MAX_MB_FLAG, args);
+    if (idx != -1) {
+      CACHE_MAX_MB = (long) parseIntFlagValue(idx, args);
+      if (CACHE_MAX_MB <= 0) {
+        throw new IllegalArgumentException(
+            "Illegal " + CACHE_MAX_MB_FLAG + " value: " + CACHE_MAX_MB);
+      }
+      args = removeFlag(idx, args);
+    }
+    idx = findFlag(ALIGN_ROWS_FLAG, args);
+    if (idx != -1) {
+      ALIGN_ROWS = true;
+      args = removeFlag(idx, args);
+    }
+    idx = findFlag(ALIGN_COLUMNS_FLAG, args);
+    if (idx != -1) {
+      ALIGN_COLUMNS = true;
+      args = removeFlag(idx, args);
+    }
+    while ((idx = findFlag(KEY_COLUMNS_FLAG, args)) != -1) {
+      if (KEY_COLUMNS == null) {
+        KEY_COLUMNS = new HashMap<String, int[]>();
+      }
+      parseKeyColumnsFlagValue(idx, args, KEY_COLUMNS);
+      args = removeFlag(idx, args);
+    }
+    idx = findFlag(KEY_MEMORY_MB_FLAG, args);
+    if (idx != -1) {
+      KEY_MEMORY_MB = (long) parseIntFlagValue(idx, args);
+      if (KEY_MEMORY_MB <= 0) {
+        throw new IllegalArgumentException(
+            "Illegal " + KEY_MEMORY_MB_FLAG + " value: " + KEY_MEMORY_MB);
+      }
+      args = removeFlag(idx, args);
+    }
+    // before --batch, which they start with
+    idx = findFlag(BATCH_MANIFEST_FLAG, args);
+    if (idx != -1) {
+      BATCH = true;
+      BATCH_MANIFEST = new File(parseStringFlagValue(idx, args));
+      args = removeFlag(idx, args);
+    }
+    idx = findFlag(BATCH_THREADS_FLAG, args);
+    if (idx != -1) {
+      BATCH_THREADS = parseIntFlagValue(idx, args);
+      if (BATCH_THREADS <= 0) {
+        throw new IllegalArgumentException(
+            "Illegal " + BATCH_THREADS_FLAG + " value: " + BATCH_THREADS);
+      }
+      args = removeFlag(idx, args);
+    }
+    idx = findFlag(BATCH_FLAG, args);
+    if (idx != -1) {
+      BATCH = true;
+      args = removeFlag(idx, args);
+    }
+    idx = findFlag(SERVER_FLAG, args);
+    if (idx != -1) {
+      SERVER = args[idx].contains("=") ? new File(parseStringFlagValue(idx, args))
+          : DiffServer.defaultDaemonFile();
+      args = removeFlag(idx, args);
+    }
+    if (BATCH) {
+      if (OUTPUT == null) {
+        throw new IllegalArgumentException(
+            BATCH_FLAG + " needs an " + OUTPUT_FLAG + " directory to write the diffs to");
+      }
+      if ((DIFF_FORMAT == DiffFormatter.LOGGER) || (DIFF_FORMAT == DiffFormatter.LOGGER_UNIFIED)) {
+        throw new IllegalArgumentException(
+            BATCH_FLAG + " only writes the excel_cmp and unified formats");
+      }
+    }
+    if (((BATCH_MANIFEST != null) || (SERVER != null)) ? (args.length < 1) : (args.length < 3)) {
       System.out.println(usage());
       return false;
     }
     LOG_FILENAME = args[0];
-    WORKBOOK1 = new File(args[1]);
-    WORKBOOK2 = new File(args[2]);
+    if ((BATCH_MANIFEST == null) && (SERVER == null)) {
+      WORKBOOK1 = new File(args[1]);
+      WORKBOOK2 = new File(args[2]);
+    }
     WORKBOOK_IGNORES1 = WorkbookIgnores.parseWorkbookIgnores(args, "--ignore1");
     WORKBOOK_IGNORES2 = WorkbookIgnores.parseWorkbookIgnores(args, "--ignore2");
     return true;
   }
 
+  /**
+   * Resolves the relative paths of the flags against dir instead of the working directory, for
+   * the requests of a client running in another directory.
+   */
+  static void resolveFiles(File dir) {
+    OUTPUT = resolveFile(dir, OUTPUT);
+    CACHE_DIR = resolveFile(dir, CACHE_DIR);
+    BATCH_MANIFEST = resolveFile(dir, BATCH_MANIFEST);
+    WORKBOOK1 = resolveFile(dir, WORKBOOK1);
+    WORKBOOK2 = resolveFile(dir, WORKBOOK2);
+  }
+
+  private static File resolveFile(File dir, File file) {
+    return ((file == null) || file.isAbsolute()) ? file : new File(dir, file.getPath());
+  }
+
   private static int findFlag(String flag, String[] args) {
     for (int i = 0; i < args.length; i++) {
       if (args[i].startsWith(flag))
@@ -82,6 +283,16 @@ public class Flags {
     return Double.parseDouble(flag.substring(flag.indexOf("=") + 1, flag.length()));
   }
 
+  private static int parseIntFlagValue(int flagIdx, String[] args) {
+    String flag = args[flagIdx];
+    return Integer.parseInt(flag.substring(flag.indexOf("=") + 1, flag.length()));
+  }
+
+  private static String parseStringFlagValue(int flagIdx, String[] args) {
+    String flag = args[flagIdx];
+    return flag.substring(flag.indexOf("=") + 1, flag.length());
+  }
+
   private static DiffFormatter parseFormatFlagValue(int flagIdx, String[] args) {
     String flag = args[flagIdx];
     String value = flag.substring(flag.indexOf("=") + 1, flag.length());
@@ -93,6 +304,34 @@ public class Flags {
     }
   }
 
+  private static void parseKeyColumnsFlagValue(int flagIdx, String[] args,
+      Map<String, int[]> keyColumns) {
+    String flag = args[flagIdx];
+    String value = flag.substring(flag.indexOf("=") + 1, flag.length());
+    int sep = value.lastIndexOf(':');
+    if ((sep == -1) || (sep == value.length() - 1)) {
+      throw new IllegalArgumentException("Illegal " + KEY_COLUMNS_FLAG + " value: " + value);
+    }
+    Set<Integer> cols = new TreeSet<Integer>();
+    for (String rng : value.substring(sep + 1).split(",")) {
+      if (!rng.matches("[A-Z]+(-[A-Z]+)?")) {
+        throw new IllegalArgumentException("Illegal " + KEY_COLUMNS_FLAG + " value: " + value);
+      }
+      String[] rngs = rng.split("-");
+      int col1 = COL_USER_TO_INTERNAL(rngs[0]);
+      int col2 = COL_USER_TO_INTERNAL(rngs[rngs.length - 1]);
+      for (int col = col1; col <= col2; col++) {
+        cols.add(col);
+      }
+    }
+    int[] sortedCols = new int[cols.size()];
+    int i = 0;
+    for (int col : cols) {
+      sortedCols[i++] = col;
+    }
+    keyColumns.put(value.substring(0, sep), sortedCols);
+  }
+
   private static String[] removeFlag(int flagIdx, String[] args) {
     String[] args1 = new String[args.length - 1];
     for (int i = 0; i < flagIdx; i++)
@@ -128,6 +367,38 @@ public class Flags {
         + "\n"
         + "       * --diff_format: by default output is in 'excel_cmp' format, use --diff_format=unified to output in Unified Diff format instead"
         + "\n"
+        + "       * --streaming: read xls / xlsx / xlsm / ods files row by row instead of loading them fully in memory. Use this flag for very large workbooks"
+        + "\n"
+        + "       * --parallel: diff the sheets of the workbooks on all available cores, output is unchanged. Only has an effect on xlsx files read with --streaming, the other readers sharing state between sheets"
+        + "\n"
+        + "       * --output: write the diff to a file instead of stdout, specify this flag as --output=diff.txt. Output is buffered and written a sheet at a time. Has no effect on the logger formats"
+        + "\n"
+        + "       * --async: format and print the diff on a thread of its own while the workbooks are being read and compared, output is unchanged"
+        + "\n"
+        + "       * --quiet: print nothing and stop at the first difference, only the exit status tells whether the workbooks differ"
+        + "\n"
+        + "       * --max_diffs: stop after reporting this many differing / extra cells, specify this flag as --max_diffs=100. The summary only covers the reported cells"
+        + "\n"
+        + "       * --cache_dir: keep hashes of the sheets and rows of the first workbook, the baseline, in this directory, specify this flag as --cache_dir=/tmp/excel_cmp. Diffing the baseline again then skips reading its rows which hash the same as in the second workbook, and loading it at all if they all do. The directory is kept under --cache_max_mb"
+        + "\n"
+        + "       * --cache_max_mb: size the --cache_dir directory is kept under, specify this flag as --cache_max_mb=1024. Defaults to 256"
+        + "\n"
+        + "       * --align_rows: match the rows of each sheet by content, so that inserted / deleted rows are reported as extra rows instead of every row below them differing. Ignored with a warning for xls and ods files read with --streaming"
+        + "\n"
+        + "       * --align_columns: match the columns of each sheet by content, so that inserted / deleted columns are reported as extra columns instead of every column right of them differing. May be combined with --align_rows. Ignored with a warning for xls and ods files read with --streaming"
+        + "\n"
+        + "       * --key_columns: match the rows of a sheet by the values of these columns instead of by position, specify this flag as --key_columns=Sheet1:A,C or --key_columns=:A-B for all sheets. May be repeated for different sheets. Rows with a key only in one workbook are reported as extra rows. Works on any format except xls and ods files read with --streaming"
+        + "\n"
+        + "       * --key_memory_mb: memory the keys of a sheet diffed with --key_columns may take, specify this flag as --key_memory_mb=512. Past it the keys of both workbooks are hash partitioned into temporary files and matched a partition at a time. Defaults to a quarter of the heap"
+        + "\n"
+        + "       * --batch: <file1> and <file2> are directories, the xls / xlsx / xlsm / ods files with the same relative path in both are diffed, several at a time. Needs --output=<directory>, the diff of each pair is written to <directory>/<relative path>.diff and a summary of all pairs to <directory>/summary.json. Byte identical pairs are not loaded. Exits with 0 if all pairs match, 1 if any differ or is only in one directory, 255 if any failed"
+        + "\n"
+        + "       * --batch_manifest: same as --batch, for the pairs of files listed in this file instead of two directories, one pair per line separated by a tab, specify this flag as --batch_manifest=pairs.txt and leave out <file1> and <file2>. Relative paths are relative to the manifest"
+        + "\n"
+        + "       * --batch_threads: how many pairs --batch diffs at a time, specify this flag as --batch_threads=4. Defaults to the number of cores"
+        + "\n"
+        + "       * --server: keep running and diff the requests of excel_cmp clients instead, so that they don't pay for JVM startup and warmup. Leave out <file1> and <file2>. Listens on a loopback port, written with a secret to ~/.excel_cmp/daemon or to the file given as --server=<file>, where the excel_cmp script looks for it. Requests are diffed one at a time, as each one sets the global flags and System.out, and a client has 10 seconds to send its request"
+        + "\n"
         + "\n"
         + "Sheet Ignore Spec:  <sheet-name>:<row-ignore-spec>:<column-ignore-spec>:<cell-ignore-spec>"
         + "\n"
@@ -0,0 +1,151 @@
+package com.ka.spreadsheet.diff;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Rows of the second workbook which differ from those of the first one, when the rows of the
+ * first workbook are hashed in its {@link WorkbookIndex}, typically that of a cached baseline, so
+ * that the first workbook is only read where it changed, if at all.
+ *
+ * The second workbook is read first, each row hashed as the index was built: a row hashing the
+ * same as in the first workbook is done with, the others are kept in {@link SpilledRows}. Then
+ * only the sheets of the first workbook with rows left to diff are read, their readers skipping
+ * the rows known to be the same, and the cells of both are diffed as usual.
+ */
+class HashedRowsDiff {
+
+  private final WorkbookIndex index1;
+  private final UnchangedSheets unchanged;
+  private final boolean compareFormulas;
+  /** By sheet, the rows of the second workbook which hash the same in the first one. */
+  private final Map<Integer, BitSet> sameRows = new HashMap<Integer, BitSet>();
+  private final SpilledRows changedRows2;
+  private final Set<Integer> changedSheets1 = new HashSet<Integer>();
+
+  private HashedRowsDiff(WorkbookIndex index1, UnchangedSheets unchanged,
+      boolean compareFormulas, long memoryBudget) {
+    this.index1 = index1;
+    this.unchanged = unchanged;
+    this.compareFormulas = compareFormulas;
+    this.changedRows2 = new SpilledRows(memoryBudget);
+  }
+
+  /**
+   * Reads the cells of the second workbook the cursor walks, the unchanged sheets left out, and
+   * keeps those of its rows which don't hash the same in the first one. Call delete() once done.
+   */
+  static HashedRowsDiff read(ISpreadSheetCursor cursor2, WorkbookIndex index1,
+      UnchangedSheets unchanged, boolean compareFormulas, long memoryBudget) throws IOException {
+    HashedRowsDiff diff = new HashedRowsDiff(index1, unchanged, compareFormulas, memoryBudget);
+    boolean read = false;
+    try {
+      diff.readRows2(cursor2);
+      read = true;
+    } finally {
+      if (!read) {
+        diff.delete();
+      }
+    }
+    return diff;
+  }
+
+  private void readRows2(ISpreadSheetCursor cursor2) throws IOException {
+    int[] columns = new int[16];
+    CellValue[] values = new CellValue[16];
+    boolean hasCell = cursor2.advance();
+    while (hasCell) {
+      ISheet sheet = cursor2.getSheet();
+      int sheetIdx = cursor2.getSheetIndex();
+      int rowIdx = cursor2.getRowIndex();
+      long hash = WorkbookIndex.SEED;
+      int size = 0;
+      do {
+        CellValue value = cursor2.getCellValue();
+        int colIdx = cursor2.getColumnIndex();
+        hash = WorkbookIndex.mixCell(hash, colIdx,
+            WorkbookIndex.hashValue(value, compareFormulas));
+        if (size == columns.length) {
+          columns = Arrays.copyOf(columns, size * 2);
+          values = Arrays.copyOf(values, size * 2);
+        }
+        columns[size] = colIdx;
+        values[size] = value;
+        size++;
+        hasCell = cursor2.advance();
+      } while (hasCell && (cursor2.getSheetIndex() == sheetIdx)
+          && (cursor2.getRowIndex() == rowIdx));
+      if (index1.hasRow(sheetIdx, rowIdx, hash)) {
+        BitSet rows = sameRows.get(sheetIdx);
+        if (rows == null) {
+          rows = new BitSet();
+          sameRows.put(sheetIdx, rows);
+        }
+        rows.set(rowIdx);
+      } else {
+        changedRows2.add(sheet, rowIdx, size, columns, values);
+      }
+      // the values are held by changedRows2 in serialized form only
+      Arrays.fill(values, 0, size, null);
+    }
+    changedRows2.finish();
+
+    for (int sheetIdx : index1.sheetIndexes()) {
+      if (!unchanged.contains(sheetIdx)) {
+        BitSet rows = sameRows.get(sheetIdx);
+        int numSameRows = (rows == null) ? 0 : rows.cardinality();
+        // the same rows are rows of the sheet in the index, all of them if as many
+        if (numSameRows < index1.rows(sheetIdx).length) {
+          changedSheets1.add(sheetIdx);
+        }
+      }
+    }
+  }
+
+  /**
+   * True if neither workbook has any row left to diff, the first one then need not be read.
+   */
+  boolean isSame() {
+    return changedRows2.isEmpty() && changedSheets1.isEmpty();
+  }
+
+  /**
+   * The sheets of the first workbook with rows left to diff.
+   */
+  Iterator<ISheet> changedSheets1(Iterator<ISheet> sheets1) {
+    return UnchangedSheets.filter(sheets1, changedSheets1, true);
+  }
+
+  /**
+   * Filters out the rows of the first workbook which hash the same in the second one.
+   */
+  RowFilter sameRows() {
+    return new RowFilter() {
+      @Override
+      public boolean skipRow(int sheetIdx, int rowIdx) {
+        BitSet rows = sameRows.get(sheetIdx);
+        return (rows != null) && rows.get(rowIdx);
+      }
+    };
+  }
+
+  /**
+   * A cursor over the cells of the rows of the second workbook left to diff.
+   */
+  ISpreadSheetCursor changedRows2() {
+    return changedRows2.cursor();
+  }
+
+  /**
+   * Deletes the temporary file of the rows left to diff if any.
+   */
+  void delete() {
+    changedRows2.delete();
+  }
+}
@@ -1,18 +1,32 @@
 package com.ka.spreadsheet.diff;
 
+import java.io.Closeable;
 import java.util.Iterator;
 
 import javax.annotation.Nullable;
 
 /**
- * All indexes are zero based
+ * All indexes are zero based. Closing a spreadsheet releases the file it was read from, its sheets
+ * can't be read afterwards.
  */
-public interface ISpreadSheet {
+public interface ISpreadSheet extends Closeable {
 
   Iterator<ISheet> getSheetIterator();
 
   @Nullable
   Boolean hasMacro();
+
+  /**
+   * Whether the sheets may be read from different threads at the same time, i.e. whether each
+   * sheet's rows can be iterated independently of the other sheets.
+   */
+  boolean supportsConcurrentSheets();
+
+  /**
+   * Whether the cells of a sheet may be read again once they have been read, one reader at a time,
+   * e.g. to index the workbook before diffing it.
+   */
+  boolean supportsRereadingSheets();
 }
 
 
@@ -23,6 +37,42 @@ interface ISheet {
   int getSheetIndex();
 
   Iterator<IRow> getRowIterator();
+
+  /**
+   * Same cells as {@link #getRowIterator()}, without a wrapper object per row and cell. Readers
+   * may leave out the rows and cells excluded by ignores to avoid reading them, callers still have
+   * to apply the ignores themselves.
+   */
+  ICellCursor getCellCursor(@Nullable SheetIgnores ignores);
+}
+
+
+/**
+ * Walks the cells of a sheet in place, row by row. The getters describe the current row / cell
+ * and are only valid until the cursor moves.
+ */
+interface ICellCursor {
+
+  /**
+   * Moves to the next row, returns false past the last row.
+   */
+  boolean nextRow();
+
+  int getRowIndex();
+
+  /**
+   * Moves to the next cell of the current row, returns false past its last cell.
+   */
+  boolean nextCell();
+
+  int getColumnIndex();
+
+  CellValue getValue();
+
+  /**
+   * Returns the current cell as an ICell which stays valid after the cursor moves.
+   */
+  ICell toCell();
 }
 
 
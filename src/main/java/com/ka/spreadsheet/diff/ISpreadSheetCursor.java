@@ -0,0 +1,34 @@
+package com.ka.spreadsheet.diff;
+
+/**
+ * Cursor over the cells of a spreadsheet, in {sheet, row, column} order.
+ *
+ * Unlike {@link ISpreadSheetIterator} nothing is allocated per cell: advance() moves the cursor
+ * in place and the getters describe the current cell until the next call to advance(). Use
+ * toCellPos() to keep hold of a cell.
+ */
+public interface ISpreadSheetCursor {
+
+  /**
+   * Moves to the next cell, returns false past the last cell.
+   */
+  boolean advance();
+
+  /**
+   * The sheet of the current cell.
+   */
+  ISheet getSheet();
+
+  int getSheetIndex();
+
+  int getRowIndex();
+
+  int getColumnIndex();
+
+  CellValue getCellValue();
+
+  /**
+   * Returns the current cell as a CellPos which stays valid after the cursor moves.
+   */
+  CellPos toCellPos();
+}
@@ -0,0 +1,211 @@
+package com.ka.spreadsheet.diff;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import com.ka.spreadsheet.diff.KeyedSheetDiff.KeyMatches;
+import com.ka.spreadsheet.diff.KeyedSheetDiff.RowKeyIndex;
+
+/**
+ * Keys of the rows of two sheets, hash partitioned into temporary files, for keyed diffs of
+ * sheets whose keys don't fit in the memory budget. A partition holds the rows of both sheets
+ * whose keys hash to it, each sheet's in row order, so it is matched on its own just like whole
+ * sheets are in memory. A partition whose keys still don't fit is partitioned again on the next
+ * bits of the key hashes, rows with the same key always end up in the same partition.
+ *
+ * A row is written as its index, its hash and its key, the cells themselves are not written.
+ */
+class KeyPartitions {
+
+  private static final int FAN_OUT_BITS = 6;
+  private static final int FAN_OUT = 1 << FAN_OUT_BITS;
+  /** Past it there are no hash bits left to partition on, the partition is matched as is. */
+  private static final int MAX_DEPTH = 64 / FAN_OUT_BITS - 1;
+  private static final int BUFFER_SIZE = 1 << 13;
+
+  private final File dir;
+  private final int depth;
+  private final File[] files1 = new File[FAN_OUT];
+  private final File[] files2 = new File[FAN_OUT];
+  private final DataOutputStream[] outs1 = new DataOutputStream[FAN_OUT];
+  private final DataOutputStream[] outs2 = new DataOutputStream[FAN_OUT];
+  private final int[] sizes1 = new int[FAN_OUT];
+  private final int[] sizes2 = new int[FAN_OUT];
+
+  private KeyPartitions(File dir, int depth) {
+    this.dir = dir;
+    this.depth = depth;
+  }
+
+  /**
+   * Creates the partitions in a temporary directory of their own, delete() removes it.
+   */
+  static KeyPartitions create() throws IOException {
+    return new KeyPartitions(Files.createTempDirectory("excel_cmp_keys").toFile(), 0);
+  }
+
+  void add(boolean inFirstSpreadSheet, String key, int rowIdx, long rowHash) throws IOException {
+    int partition = (int) (WorkbookIndex.mix(0, key) >>> (64 - FAN_OUT_BITS * (depth + 1)))
+        & (FAN_OUT - 1);
+    DataOutputStream[] outs = inFirstSpreadSheet ? outs1 : outs2;
+    if (outs[partition] == null) {
+      File file = File.createTempFile("keys", ".part", dir);
+      (inFirstSpreadSheet ? files1 : files2)[partition] = file;
+      outs[partition] = new DataOutputStream(
+          new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+    }
+    DataOutputStream out = outs[partition];
+    out.writeInt(rowIdx);
+    out.writeLong(rowHash);
+    out.writeInt(key.length());
+    out.writeChars(key);
+    (inFirstSpreadSheet ? sizes1 : sizes2)[partition]++;
+  }
+
+  /**
+   * Matches the rows of each partition in turn, deleting its files once done.
+   */
+  void match(long memoryBudget, KeyMatches matches) throws IOException {
+    close();
+    for (int i = 0; i < FAN_OUT; i++) {
+      if ((files1[i] == null) && (files2[i] == null)) {
+        continue;
+      }
+      matchPartition(i, memoryBudget, matches);
+      deleteFiles(i);
+    }
+  }
+
+  private void matchPartition(int partition, long memoryBudget, KeyMatches matches)
+      throws IOException {
+    RowKeyIndex index = new RowKeyIndex();
+    PartitionReader rows1 = new PartitionReader(files1[partition], sizes1[partition]);
+    try {
+      while (rows1.next()) {
+        index.add(rows1.key, rows1.rowIdx, rows1.rowHash);
+        if ((index.memoryBytes() > memoryBudget) && (depth < MAX_DEPTH)) {
+          KeyPartitions subPartitions = new KeyPartitions(dir, depth + 1);
+          try {
+            index.spillTo(subPartitions);
+            while (rows1.next()) {
+              subPartitions.add(true, rows1.key, rows1.rowIdx, rows1.rowHash);
+            }
+            PartitionReader rows2 = new PartitionReader(files2[partition], sizes2[partition]);
+            try {
+              while (rows2.next()) {
+                subPartitions.add(false, rows2.key, rows2.rowIdx, rows2.rowHash);
+              }
+            } finally {
+              rows2.close();
+            }
+            subPartitions.match(memoryBudget, matches);
+          } finally {
+            subPartitions.delete();
+          }
+          return;
+        }
+      }
+    } finally {
+      rows1.close();
+    }
+    PartitionReader rows2 = new PartitionReader(files2[partition], sizes2[partition]);
+    try {
+      while (rows2.next()) {
+        matches.probe(index, rows2.key, rows2.rowIdx, rows2.rowHash);
+      }
+    } finally {
+      rows2.close();
+    }
+    matches.addUnmatched(index);
+  }
+
+  /**
+   * Deletes the files left, and the directory with the top level partitions.
+   */
+  void delete() {
+    try {
+      close();
+    } catch (IOException e) {
+      // deleted anyway
+    }
+    for (int i = 0; i < FAN_OUT; i++) {
+      deleteFiles(i);
+    }
+    if (depth == 0) {
+      dir.delete();
+    }
+  }
+
+  private void close() throws IOException {
+    for (DataOutputStream[] outs : new DataOutputStream[][] {outs1, outs2}) {
+      for (int i = 0; i < FAN_OUT; i++) {
+        if (outs[i] != null) {
+          outs[i].close();
+          outs[i] = null;
+        }
+      }
+    }
+  }
+
+  private void deleteFiles(int partition) {
+    if (files1[partition] != null) {
+      files1[partition].delete();
+      files1[partition] = null;
+    }
+    if (files2[partition] != null) {
+      files2[partition].delete();
+      files2[partition] = null;
+    }
+  }
+
+  /**
+   * Reads back the rows of a partition file, of which there may be none.
+   */
+  private static class PartitionReader {
+
+    private final DataInputStream in;
+    private int numRowsLeft;
+    private char[] keyChars = new char[64];
+
+    int rowIdx;
+    long rowHash;
+    String key;
+
+    PartitionReader(File file, int numRows) throws IOException {
+      this.in = (file == null) ? null : new DataInputStream(
+          new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+      this.numRowsLeft = (file == null) ? 0 : numRows;
+    }
+
+    boolean next() throws IOException {
+      if (numRowsLeft == 0) {
+        return false;
+      }
+      numRowsLeft--;
+      rowIdx = in.readInt();
+      rowHash = in.readLong();
+      int keyLength = in.readInt();
+      if (keyLength > keyChars.length) {
+        keyChars = new char[Math.max(keyLength, keyChars.length * 2)];
+      }
+      for (int i = 0; i < keyLength; i++) {
+        keyChars[i] = in.readChar();
+      }
+      key = new String(keyChars, 0, keyLength);
+      return true;
+    }
+
+    void close() throws IOException {
+      if (in != null) {
+        in.close();
+      }
+    }
+  }
+}
@@ -0,0 +1,502 @@
+package com.ka.spreadsheet.diff;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+/**
+ * Diff of two sheets whose rows are matched by the values of key columns instead of by position,
+ * e.g. exports of the same table in no stable row order.
+ *
+ * The rows of the first sheet are indexed by key, along with the hash of all their cells, then the
+ * rows of the second sheet probe the index: a row with the same key and hash is the same, one with
+ * the same key and another hash is diffed cell by cell, and one whose key isn't found is extra.
+ * Rows of the first sheet left unmatched are extra too. Rows with the same key in a sheet are
+ * matched in order. Keys of the first sheet outgrowing the memory budget are spilled to disk along
+ * with those of the second sheet, see {@link KeyPartitions}.
+ *
+ * The differences are then reported as the sheets are read again, so sheets have to support being
+ * read more than once: the rows of the first sheet in order, each changed one merged with the row
+ * of the second sheet it matched, then the extra rows of the second sheet in order. Only the cells
+ * of the changed rows of the second sheet are read beforehand, to be read back in the order of the
+ * first sheet, see {@link SpilledRows}.
+ */
+class KeyedSheetDiff {
+
+  private static final char KEY_SEPARATOR = '\u0000';
+
+  private final CellValueComparator comparator;
+  private final SpreadSheetDiffCallback diffCallback;
+  private SpreadSheetCursor cursor1;
+  private boolean hasCell1;
+  private boolean isDiff;
+
+  private KeyedSheetDiff(CellValueComparator comparator, SpreadSheetDiffCallback diffCallback) {
+    this.comparator = comparator;
+    this.diffCallback = diffCallback;
+  }
+
+  /**
+   * Reports the differences between the sheets to the callback until it is done. Returns true if
+   * any difference was found.
+   */
+  static boolean diff(ISheet sheet1, ISheet sheet2, int[] keyColumns, DiffOptions options,
+      CellValueComparator comparator, SpreadSheetDiffCallback diffCallback) throws IOException {
+    boolean compareFormulas = !options.isIgnoreFormulas();
+    long memoryBudget = memoryBudget(options);
+    KeyMatches matches = new KeyMatches();
+    matchRows(new RowReader(sheet1, options.getIgnores1(), keyColumns, compareFormulas),
+        new RowReader(sheet2, options.getIgnores2(), keyColumns, compareFormulas),
+        memoryBudget, matches, sheet1.getName(), options.isDebug());
+    if (matches.rowsToRead1.isEmpty() && matches.rowsToRead2.isEmpty()) {
+      return false;
+    }
+    long[] changedRows = matches.changedRows();
+    BitSet rowsToRead1 = matches.rowsToRead1;
+    BitSet changedRows2 = new BitSet();
+    for (long changedRow : changedRows) {
+      rowsToRead1.set(row1(changedRow));
+      changedRows2.set(row2(changedRow));
+    }
+    BitSet extraRows2 = matches.rowsToRead2;
+    extraRows2.andNot(changedRows2);
+
+    SpilledRows cells2 =
+        SpilledRows.read(sheet2, options.getIgnores2(), changedRows2, memoryBudget);
+    try {
+      KeyedSheetDiff diff = new KeyedSheetDiff(comparator, diffCallback);
+      diff.reportRows1(sheet1, options.getIgnores1(), rowsToRead1, changedRows, sheet2, cells2);
+      if (!diffCallback.isDone()) {
+        diff.reportExtraRows2(sheet2, options.getIgnores2(), extraRows2);
+      }
+      return diff.isDiff;
+    } finally {
+      cells2.delete();
+    }
+  }
+
+  /**
+   * Reports the rows of the first sheet in order, the changed ones diffed with the row of the
+   * second sheet they matched, the others as extra rows.
+   */
+  private void reportRows1(ISheet sheet1, WorkbookIgnores ignores1, BitSet rowIdxs,
+      long[] changedRows, ISheet sheet2, SpilledRows cells2) throws IOException {
+    cursor1 = newCursor(sheet1, ignores1, rowIdxs);
+    hasCell1 = cursor1.advance();
+    int changed = 0;
+    while (hasCell1 && !diffCallback.isDone()) {
+      int rowIdx1 = cursor1.getRowIndex();
+      while ((changed < changedRows.length) && (row1(changedRows[changed]) < rowIdx1)) {
+        changed++;
+      }
+      if ((changed < changedRows.length) && (row1(changedRows[changed]) == rowIdx1)) {
+        // rows hashing differently may still be equal within the numeric precision
+        diffRow1(cells2.get(sheet2.getSheetIndex(), row2(changedRows[changed])));
+      } else {
+        isDiff = true;
+        do {
+          diffCallback.reportExtraCell(true, cursor1.toCellPos());
+        } while (!diffCallback.isDone() && advance1(rowIdx1));
+      }
+    }
+  }
+
+  private void reportExtraRows2(ISheet sheet2, WorkbookIgnores ignores2, BitSet rowIdxs) {
+    SpreadSheetCursor cursor2 = newCursor(sheet2, ignores2, rowIdxs);
+    while (!diffCallback.isDone() && cursor2.advance()) {
+      isDiff = true;
+      diffCallback.reportExtraCell(false, cursor2.toCellPos());
+    }
+  }
+
+  /**
+   * Moves cursor1 to the next cell, returns whether it is still in the row.
+   */
+  private boolean advance1(int rowIdx) {
+    hasCell1 = cursor1.advance();
+    return hasCell1 && (cursor1.getRowIndex() == rowIdx);
+  }
+
+  /**
+   * Merges the cells of the row of cursor1 with those of the row of the second sheet by column,
+   * reporting differing and extra cells until the callback is done.
+   */
+  private void diffRow1(List<CellPos> cells2) {
+    int rowIdx1 = cursor1.getRowIndex();
+    boolean inRow1 = true;
+    int j = 0;
+    while ((inRow1 || (j < cells2.size())) && !diffCallback.isDone()) {
+      CellPos cell2 = (j < cells2.size()) ? cells2.get(j) : null;
+      int c = !inRow1 ? 1
+          : ((cell2 == null) ? -1 : (cursor1.getColumnIndex() - cell2.getColumnIndex()));
+      if (c == 0) {
+        if (!comparator.equal(cursor1.getCellValue(), cell2.getCellValue())) {
+          isDiff = true;
+          diffCallback.reportDiffCell(cursor1.toCellPos(), cell2);
+        }
+        inRow1 = advance1(rowIdx1);
+        j++;
+      } else if (c < 0) {
+        isDiff = true;
+        diffCallback.reportExtraCell(true, cursor1.toCellPos());
+        inRow1 = advance1(rowIdx1);
+      } else {
+        isDiff = true;
+        diffCallback.reportExtraCell(false, cell2);
+        j++;
+      }
+    }
+  }
+
+  private static SpreadSheetCursor newCursor(ISheet sheet, WorkbookIgnores ignores,
+      final BitSet rowIdxs) {
+    return new SpreadSheetCursor(Collections.singletonList(sheet).iterator(), ignores,
+        new RowFilter() {
+          @Override
+          public boolean skipRow(int sheetIdx, int rowIdx) {
+            return !rowIdxs.get(rowIdx);
+          }
+        });
+  }
+
+  private static int row1(long changedRow) {
+    return (int) (changedRow >>> 32);
+  }
+
+  private static int row2(long changedRow) {
+    return (int) changedRow;
+  }
+
+  /**
+   * Matches the rows by key in memory, or, once the keys of the first sheet outgrow the memory
+   * budget, through partitions on disk, see {@link KeyPartitions}.
+   */
+  private static void matchRows(RowReader rows1, RowReader rows2, long memoryBudget,
+      KeyMatches matches, String sheetName, boolean debug) throws IOException {
+    RowKeyIndex index = new RowKeyIndex();
+    while (rows1.next()) {
+      index.add(rows1.key, rows1.rowIdx, rows1.rowHash);
+      if (index.memoryBytes() > memoryBudget) {
+        if (debug) {
+          System.err.println("Keys of sheet " + sheetName + " spilled to disk");
+        }
+        KeyPartitions partitions = KeyPartitions.create();
+        try {
+          index.spillTo(partitions);
+          index = null;
+          while (rows1.next()) {
+            partitions.add(true, rows1.key, rows1.rowIdx, rows1.rowHash);
+          }
+          while (rows2.next()) {
+            partitions.add(false, rows2.key, rows2.rowIdx, rows2.rowHash);
+          }
+          partitions.match(memoryBudget, matches);
+        } finally {
+          partitions.delete();
+        }
+        return;
+      }
+    }
+    while (rows2.next()) {
+      matches.probe(index, rows2.key, rows2.rowIdx, rows2.rowHash);
+    }
+    matches.addUnmatched(index);
+  }
+
+  /**
+   * Bytes the keys of a sheet may take in memory, --key_memory_mb or a quarter of the heap.
+   */
+  private static long memoryBudget(DiffOptions options) {
+    return (options.getKeyMemoryBytes() != null) ? options.getKeyMemoryBytes()
+        : (Runtime.getRuntime().maxMemory() / 4);
+  }
+
+  /**
+   * What matching the rows by key found, the rows to report.
+   */
+  static class KeyMatches {
+
+    // changed rows of the first sheet in the high int, the row of the second sheet they matched in
+    // the low int, in the order they were matched
+    private long[] changedRows = new long[16];
+    private int numChangedRows;
+    // rows of the first sheet without any match
+    final BitSet rowsToRead1 = new BitSet();
+    // rows of the second sheet either changed or without any match
+    final BitSet rowsToRead2 = new BitSet();
+
+    void probe(RowKeyIndex index, String key, int rowIdx, long rowHash) {
+      int entry = index.match(key);
+      if (entry == -1) {
+        rowsToRead2.set(rowIdx);
+      } else if (index.rowHash(entry) != rowHash) {
+        if (numChangedRows == changedRows.length) {
+          changedRows = Arrays.copyOf(changedRows, numChangedRows * 2);
+        }
+        changedRows[numChangedRows++] = ((long) index.row(entry) << 32) | rowIdx;
+        rowsToRead2.set(rowIdx);
+      }
+    }
+
+    /**
+     * Once all the rows of the second sheet probed the index.
+     */
+    void addUnmatched(RowKeyIndex index) {
+      rowsToRead1.or(index.unmatchedRows());
+    }
+
+    /**
+     * The changed rows, in the order of the rows of the first sheet.
+     */
+    long[] changedRows() {
+      long[] sorted = Arrays.copyOf(changedRows, numChangedRows);
+      Arrays.sort(sorted);
+      return sorted;
+    }
+  }
+
+  /**
+   * Walks the rows of a sheet, giving the key and the hash of each one.
+   */
+  private static class RowReader {
+
+    private final SpreadSheetCursor cursor;
+    private final int[] keyColumns;
+    private final boolean compareFormulas;
+    private final CellValue[] keyValues;
+    private final StringBuilder keyBuilder = new StringBuilder();
+    private boolean hasCell;
+
+    int rowIdx;
+    long rowHash;
+    String key;
+
+    RowReader(ISheet sheet, WorkbookIgnores ignores, int[] keyColumns, boolean compareFormulas) {
+      this.cursor = new SpreadSheetCursor(Collections.singletonList(sheet).iterator(), ignores);
+      this.keyColumns = keyColumns;
+      this.compareFormulas = compareFormulas;
+      this.keyValues = new CellValue[keyColumns.length];
+      this.hasCell = cursor.advance();
+    }
+
+    boolean next() {
+      if (!hasCell) {
+        return false;
+      }
+      rowIdx = cursor.getRowIndex();
+      rowHash = 0;
+      Arrays.fill(keyValues, null);
+      do {
+        CellValue value = cursor.getCellValue();
+        int colIdx = cursor.getColumnIndex();
+        rowHash = WorkbookIndex.mix(WorkbookIndex.mix(rowHash, colIdx),
+            WorkbookIndex.hashValue(value, compareFormulas));
+        int k = Arrays.binarySearch(keyColumns, colIdx);
+        if (k >= 0) {
+          keyValues[k] = value;
+        }
+        hasCell = cursor.advance();
+      } while (hasCell && (cursor.getRowIndex() == rowIdx));
+      keyBuilder.setLength(0);
+      for (CellValue value : keyValues) {
+        appendKey(keyBuilder, value);
+        keyBuilder.append(KEY_SEPARATOR);
+      }
+      key = keyBuilder.toString();
+      return true;
+    }
+
+    /**
+     * Appends the value as it is compared, tagged with its type so that e.g. the number 1 and the
+     * string "1" are different keys. An empty cell appends nothing.
+     */
+    private void appendKey(StringBuilder key, @Nullable CellValue value) {
+      if (value == null) {
+        return;
+      }
+      if (compareFormulas && value.hasFormula()) {
+        key.append('=').append(value.getFormula());
+        return;
+      }
+      switch (value.getType()) {
+        case NUMBER:
+          key.append('n').append(value.getNumber());
+          break;
+        case BOOLEAN:
+          key.append('b').append(value.getBoolean());
+          break;
+        case STRING:
+          key.append('s').append(value.getString());
+          break;
+        default:
+          break;
+      }
+    }
+  }
+
+  /**
+   * Rows of a sheet by key, in an open addressing table of key hashes with linear probing. The keys
+   * themselves are kept in a single char array, a lookup compares them to tell colliding keys
+   * apart.
+   */
+  static class RowKeyIndex {
+
+    // by slot, the hash of the key, the first entry with this key plus one, 0 if empty, and the
+    // first entry with this key not matched yet plus one, 0 if all are
+    private long[] slotHashes = new long[64];
+    private int[] slotEntries = new int[64];
+    private int[] slotUnmatched = new int[64];
+    private int numSlotsUsed;
+
+    // by entry, in the order they are added
+    private int[] rows = new int[16];
+    private long[] rowHashes = new long[16];
+    private int[] keyStarts = new int[17];
+    // the next entry with the same key plus one, 0 if none
+    private int[] nextEntries = new int[16];
+    private int[] lastEntries = new int[16];
+    private int size;
+    private char[] keys = new char[256];
+
+    private final BitSet matched = new BitSet();
+
+    void add(String key, int rowIdx, long rowHash) {
+      if (size == rows.length) {
+        rows = Arrays.copyOf(rows, size * 2);
+        rowHashes = Arrays.copyOf(rowHashes, size * 2);
+        keyStarts = Arrays.copyOf(keyStarts, size * 2 + 1);
+        nextEntries = Arrays.copyOf(nextEntries, size * 2);
+        lastEntries = Arrays.copyOf(lastEntries, size * 2);
+      }
+      int keyStart = keyStarts[size];
+      if (keyStart + key.length() > keys.length) {
+        keys = Arrays.copyOf(keys, Math.max(keyStart + key.length(), keys.length * 2));
+      }
+      key.getChars(0, key.length(), keys, keyStart);
+      keyStarts[size + 1] = keyStart + key.length();
+      rows[size] = rowIdx;
+      rowHashes[size] = rowHash;
+
+      long hash = WorkbookIndex.mix(0, key);
+      int slot = find(key, hash);
+      if (slotEntries[slot] == 0) {
+        slotHashes[slot] = hash;
+        slotEntries[slot] = size + 1;
+        slotUnmatched[slot] = size + 1;
+        lastEntries[size] = size;
+        numSlotsUsed++;
+      } else {
+        // duplicate key, chained after the last entry with it
+        int first = slotEntries[slot] - 1;
+        nextEntries[lastEntries[first]] = size + 1;
+        lastEntries[first] = size;
+      }
+      size++;
+      if (numSlotsUsed * 2 > slotEntries.length) {
+        resize();
+      }
+    }
+
+    /**
+     * Matches the first entry with this key not matched yet, returns it or -1 if there is none.
+     * Entries are all added before any is matched.
+     */
+    int match(String key) {
+      int slot = find(key, WorkbookIndex.mix(0, key));
+      int entry = slotUnmatched[slot] - 1;
+      if (entry != -1) {
+        slotUnmatched[slot] = nextEntries[entry];
+        matched.set(entry);
+      }
+      return entry;
+    }
+
+    int row(int entry) {
+      return rows[entry];
+    }
+
+    long rowHash(int entry) {
+      return rowHashes[entry];
+    }
+
+    /**
+     * Bytes taken by the arrays of the index, which are most of it.
+     */
+    long memoryBytes() {
+      return slotHashes.length * 16L + rows.length * 24L + keys.length * 2L;
+    }
+
+    /**
+     * Writes the entries to the partitions in the order they were added, as rows of the first
+     * sheet.
+     */
+    void spillTo(KeyPartitions partitions) throws IOException {
+      for (int entry = 0; entry < size; entry++) {
+        partitions.add(true, new String(keys, keyStarts[entry], keyStarts[entry + 1]
+            - keyStarts[entry]), rows[entry], rowHashes[entry]);
+      }
+    }
+
+    BitSet unmatchedRows() {
+      BitSet unmatched = new BitSet();
+      for (int entry = matched.nextClearBit(0); entry < size;
+          entry = matched.nextClearBit(entry + 1)) {
+        unmatched.set(rows[entry]);
+      }
+      return unmatched;
+    }
+
+    /**
+     * Returns the slot of the key, or the empty slot it would go in.
+     */
+    private int find(String key, long hash) {
+      int mask = slotEntries.length - 1;
+      int slot = (int) (hash ^ (hash >>> 32)) & mask;
+      while ((slotEntries[slot] != 0)
+          && ((slotHashes[slot] != hash) || !keyEquals(slotEntries[slot] - 1, key))) {
+        slot = (slot + 1) & mask;
+      }
+      return slot;
+    }
+
+    private boolean keyEquals(int entry, String key) {
+      int start = keyStarts[entry];
+      if (keyStarts[entry + 1] - start != key.length()) {
+        return false;
+      }
+      for (int i = 0; i < key.length(); i++) {
+        if (keys[start + i] != key.charAt(i)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private void resize() {
+      long[] oldHashes = slotHashes;
+      int[] oldEntries = slotEntries;
+      int[] oldUnmatched = slotUnmatched;
+      slotHashes = new long[oldHashes.length * 2];
+      slotEntries = new int[oldEntries.length * 2];
+      slotUnmatched = new int[oldUnmatched.length * 2];
+      int mask = slotEntries.length - 1;
+      for (int i = 0; i < oldEntries.length; i++) {
+        if (oldEntries[i] == 0) {
+          continue;
+        }
+        // keys are unique among slots, no need to compare them
+        int slot = (int) (oldHashes[i] ^ (oldHashes[i] >>> 32)) & mask;
+        while (slotEntries[slot] != 0) {
+          slot = (slot + 1) & mask;
+        }
+        slotHashes[slot] = oldHashes[i];
+        slotEntries[slot] = oldEntries[i];
+        slotUnmatched[slot] = oldUnmatched[i];
+      }
+    }
+  }
+}
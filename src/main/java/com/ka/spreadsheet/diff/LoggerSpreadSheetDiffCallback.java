@@ -9,18 +9,11 @@ import java.util.Set;
 
 public class LoggerSpreadSheetDiffCallback extends SpreadSheetDiffCallbackBase {
   private static final Logger cleanLogger = LogManager.getLogger("DisplayLogger");
-  private final Set<Object> sheets = new LinkedHashSet<Object>();
-  private final Set<Object> rows = new LinkedHashSet<Object>();
-  private final Set<Object> cols = new LinkedHashSet<Object>();
+  private final DiffSummary diffs = new DiffSummary();
   private final Set<Object> macros = new LinkedHashSet<Object>();
 
-  private final Set<Object> sheets1 = new LinkedHashSet<Object>();
-  private final Set<Object> rows1 = new LinkedHashSet<Object>();
-  private final Set<Object> cols1 = new LinkedHashSet<Object>();
-
-  private final Set<Object> sheets2 = new LinkedHashSet<Object>();
-  private final Set<Object> rows2 = new LinkedHashSet<Object>();
-  private final Set<Object> cols2 = new LinkedHashSet<Object>();
+  private final DiffSummary extras1 = new DiffSummary();
+  private final DiffSummary extras2 = new DiffSummary();
 
   private final Set<Object> macros1 = new LinkedHashSet<Object>();
   private final Set<Object> macros2 = new LinkedHashSet<Object>();
@@ -38,9 +31,9 @@ public class LoggerSpreadSheetDiffCallback extends SpreadSheetDiffCallbackBase {
   @Override
   public void reportWorkbooksDiffer(boolean differ) {
     super.reportWorkbooksDiffer(differ);
-    reportSummary("DIFF", sheets, rows, cols, macros);
-    reportSummary("EXTRA WB1", sheets1, rows1, cols1, macros1);
-    reportSummary("EXTRA WB2", sheets2, rows2, cols2, macros2);
+    reportSummary("DIFF", diffs, macros);
+    reportSummary("EXTRA WB1", extras1, macros1);
+    reportSummary("EXTRA WB2", extras2, macros2);
     cleanLogger.info("-----------------------------------------");
     cleanLogger.info("Excel files " + file1 + " and " + file2 + " "
             + (differ ? "differ" : "match"));
@@ -57,15 +50,8 @@ public class LoggerSpreadSheetDiffCallback extends SpreadSheetDiffCallbackBase {
   @Override
   public void reportExtraCell(boolean inFirstSpreadSheet, CellPos c) {
     super.reportExtraCell(inFirstSpreadSheet, c);
-    if (inFirstSpreadSheet) {
-      sheets1.add(c.getSheetName());
-      rows1.add(c.getRow());
-      cols1.add(c.getColumn());
-    } else {
-      sheets2.add(c.getSheetName());
-      rows2.add(c.getRow());
-      cols2.add(c.getColumn());
-    }
+    (inFirstSpreadSheet ? extras1 : extras2).add(c.getSheetName(), c.getRowIndex(),
+        c.getColumnIndex());
     cleanLogger.info("EXTRA Cell in " + wb(inFirstSpreadSheet) + " " + c.getCellPosition()
         + " => '" + c.getCellValue() + "'");
   }
@@ -73,19 +59,19 @@ public class LoggerSpreadSheetDiffCallback extends SpreadSheetDiffCallbackBase {
   @Override
   public void reportDiffCell(CellPos c1, CellPos c2) {
     super.reportDiffCell(c1, c2);
-    sheets.add(c1.getSheetName());
-    rows.add(c1.getRow());
-    cols.add(c1.getColumn());
+    diffs.add(c1.getSheetName(), c1.getRowIndex(), c1.getColumnIndex());
+    // the cells are at different positions only if they are aligned, see --align_rows
+    String at2 = ((c1.getRowIndex() == c2.getRowIndex())
+        && (c1.getColumnIndex() == c2.getColumnIndex())) ? "" : (c2.getCellPosition() + " => ");
     cleanLogger.info("DIFF  Cell at     " + c1.getCellPosition() + " => '" + c1.getCellValue()
-        + "' v/s '" + c2.getCellValue() + "'");
+        + "' v/s " + at2 + "'" + c2.getCellValue() + "'");
   }
 
-  private void reportSummary(String what, Set<Object> sheets, Set<Object> rows, Set<Object> cols,
-      Set<Object> macros) {
+  private void reportSummary(String what, DiffSummary summary, Set<Object> macros) {
     cleanLogger.info("----------------- " + what + " -------------------");
-    cleanLogger.info("Sheets: " + sheets);
-    cleanLogger.info("Rows: " + rows);
-    cleanLogger.info("Cols: " + cols);
+    cleanLogger.info("Sheets: " + summary.renderSheets());
+    cleanLogger.info("Rows: " + summary.renderRows());
+    cleanLogger.info("Cols: " + summary.renderCols());
     if (!macros.isEmpty()) {
       cleanLogger.info("Macros: " + macros);
     }
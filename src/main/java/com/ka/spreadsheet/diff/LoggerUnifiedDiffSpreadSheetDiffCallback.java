@@ -32,7 +32,7 @@ public class LoggerUnifiedDiffSpreadSheetDiffCallback extends SpreadSheetDiffCal
   private final String lineSeparator = System.getProperty("line.separator");
   private String file1;
   private String file2;
-  private DiffCell prevDiffCell = new DiffCell("", -2, -2, null, null);
+  private DiffCell prevDiffCell = new DiffCell("", -2, -2, -2, -2, null, null);
   private List<DiffCell> currentCellBlock = new ArrayList<DiffCell>();
 
   @Override
@@ -60,6 +60,8 @@ public class LoggerUnifiedDiffSpreadSheetDiffCallback extends SpreadSheetDiffCal
     accumulateAndMaybePrint(new DiffCell(
       c.getSheetName(),
       c.getRowIndex(),
+      c.getRowIndex(),
+      c.getColumnIndex(),
       c.getColumnIndex(),
       (inFirstSpreadSheet ? c.getCellValue() : null),
       (!inFirstSpreadSheet ? c.getCellValue() : null)
@@ -72,7 +74,9 @@ public class LoggerUnifiedDiffSpreadSheetDiffCallback extends SpreadSheetDiffCal
     accumulateAndMaybePrint(new DiffCell(
       c1.getSheetName(),
       c1.getRowIndex(),
+      c2.getRowIndex(),
       c1.getColumnIndex(),
+      c2.getColumnIndex(),
       c1.getCellValue(),
       c2.getCellValue()
     ));
@@ -99,11 +103,11 @@ public class LoggerUnifiedDiffSpreadSheetDiffCallback extends SpreadSheetDiffCal
   }
 
   private boolean isSameRow(DiffCell c1, DiffCell c2) {
-    return c1.rowIndex == c2.rowIndex;
+    return c1.rowIndex == c2.rowIndex && c1.row2Index == c2.row2Index;
   }
 
   private boolean isSameCellBlock(DiffCell c1, DiffCell c2) {
-    return c1.colIndex == (c2.colIndex - 1);
+    return c1.colIndex == (c2.colIndex - 1) && c1.col2Index == (c2.col2Index - 1);
   }
 
   // TODO: Make this handle multiple rows, maybe.  What would that output look like?  This might be a bad idea.
@@ -111,12 +115,12 @@ public class LoggerUnifiedDiffSpreadSheetDiffCallback extends SpreadSheetDiffCal
     if (currentCellBlock.size() > 0) {
       StringBuilder sheet1Lines = new StringBuilder();
       StringBuilder sheet2Lines = new StringBuilder();
-      String cellRange = CELL_INTERNAL_TO_USER(currentCellBlock.get(0).rowIndex, currentCellBlock.get(0).colIndex);
-      if (currentCellBlock.size() > 1) {
-          cellRange = cellRange + "," +
-            CELL_INTERNAL_TO_USER(currentCellBlock.get(0).rowIndex, currentCellBlock.get(currentCellBlock.size()-1).colIndex);
-      }
-      cleanLogger.info("@@ -" + cellRange + " +" + cellRange + " @@");
+      DiffCell first = currentCellBlock.get(0);
+      DiffCell last = currentCellBlock.get(currentCellBlock.size() - 1);
+      String cellRange = cellRange(first.rowIndex, first.colIndex, last.colIndex);
+      // positions differ only if they were aligned, see --align_rows / --align_columns
+      String cellRange2 = cellRange(first.row2Index, first.col2Index, last.col2Index);
+      cleanLogger.info("@@ -" + cellRange + " +" + cellRange2 + " @@");
       int prevCol = -1;
       for (DiffCell rowCell : currentCellBlock) {
         assert currentCellBlock.get(0).rowIndex == rowCell.rowIndex : "printAndEmptyCellBlock() only supports one row at a time.";
@@ -138,17 +142,29 @@ public class LoggerUnifiedDiffSpreadSheetDiffCallback extends SpreadSheetDiffCal
     currentCellBlock = new ArrayList<DiffCell>();
   }
 
+  private String cellRange(int rowIndex, int firstColIndex, int lastColIndex) {
+    String cellRange = CELL_INTERNAL_TO_USER(rowIndex, firstColIndex);
+    if (currentCellBlock.size() > 1) {
+        cellRange = cellRange + "," + CELL_INTERNAL_TO_USER(rowIndex, lastColIndex);
+    }
+    return cellRange;
+  }
+
   private class DiffCell {
     String sheetName;
     int rowIndex;
+    int row2Index;
     int colIndex;
+    int col2Index;
     CellValue c1Value;
     CellValue c2Value;
 
-    public DiffCell(String _sheetName, int _rowIndex, int _colIndex, CellValue _c1Value, CellValue _c2Value) {
+    public DiffCell(String _sheetName, int _rowIndex, int _row2Index, int _colIndex, int _col2Index, CellValue _c1Value, CellValue _c2Value) {
       sheetName = _sheetName;
       rowIndex = _rowIndex;
+      row2Index = _row2Index;
       colIndex = _colIndex;
+      col2Index = _col2Index;
       c1Value = _c1Value;
       c2Value = _c2Value;
     }
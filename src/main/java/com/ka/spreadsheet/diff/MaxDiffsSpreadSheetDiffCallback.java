@@ -0,0 +1,61 @@
+package com.ka.spreadsheet.diff;
+
+/**
+ * Passes the calls on to another callback until maxDiffs differing or extra cells have been
+ * reported, and then tells the caller it is done so that it stops looking for more.
+ */
+public class MaxDiffsSpreadSheetDiffCallback implements SpreadSheetDiffCallback {
+
+  private final SpreadSheetDiffCallback delegate;
+  private final int maxDiffs;
+  private int numDiffs;
+
+  public MaxDiffsSpreadSheetDiffCallback(SpreadSheetDiffCallback delegate, int maxDiffs) {
+    if (maxDiffs <= 0) {
+      throw new IllegalArgumentException("Illegal max diffs " + maxDiffs);
+    }
+    this.delegate = delegate;
+    this.maxDiffs = maxDiffs;
+  }
+
+  @Override
+  public void init(String file1, String file2) {
+    delegate.init(file1, file2);
+  }
+
+  @Override
+  public void finish() {
+    delegate.finish();
+  }
+
+  @Override
+  public void reportDiffCell(CellPos c1, CellPos c2) {
+    if (numDiffs < maxDiffs) {
+      numDiffs++;
+      delegate.reportDiffCell(c1, c2);
+    }
+  }
+
+  @Override
+  public void reportExtraCell(boolean inFirstSpreadSheet, CellPos c) {
+    if (numDiffs < maxDiffs) {
+      numDiffs++;
+      delegate.reportExtraCell(inFirstSpreadSheet, c);
+    }
+  }
+
+  @Override
+  public void reportMacroOnlyIn(boolean inFirstSpreadSheet) {
+    delegate.reportMacroOnlyIn(inFirstSpreadSheet);
+  }
+
+  @Override
+  public void reportWorkbooksDiffer(boolean differ) {
+    delegate.reportWorkbooksDiffer(differ);
+  }
+
+  @Override
+  public boolean isDone() {
+    return (numDiffs >= maxDiffs) || delegate.isDone();
+  }
+}
@@ -0,0 +1,83 @@
+package com.ka.spreadsheet.diff;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+
+/**
+ * Where the diff formatters print to: stdout, or a file written through a channel. Output goes
+ * through a large buffer which is only flushed when the formatter asks for it (at sheet
+ * boundaries and when done) or when full, instead of a synchronized, possibly flushing,
+ * System.out call per line.
+ */
+public class OutputSink implements Closeable {
+
+  private static final int BUFFER_SIZE = 1 << 16;
+  private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+  private final Writer writer;
+  private final boolean ownsStream;
+
+  private OutputSink(Writer writer, boolean ownsStream) {
+    this.writer = new BufferedWriter(writer, BUFFER_SIZE);
+    this.ownsStream = ownsStream;
+  }
+
+  /**
+   * Prints to the current System.out, which is flushed but never closed.
+   */
+  public static OutputSink toStdout() {
+    return new OutputSink(new OutputStreamWriter(System.out), false);
+  }
+
+  /**
+   * Prints to the file, replacing its contents. The file is closed by {@link #close()}.
+   */
+  public static OutputSink toFile(File file) throws IOException {
+    return new OutputSink(Channels.newWriter(new FileOutputStream(file).getChannel(),
+        Charset.defaultCharset().newEncoder(), BUFFER_SIZE), true);
+  }
+
+  /**
+   * Prints to the writer, which is closed by {@link #close()}, e.g. to time the formatters alone.
+   */
+  static OutputSink toWriter(Writer writer) {
+    return new OutputSink(writer, true);
+  }
+
+  public void print(String s) {
+    try {
+      writer.write(s);
+    } catch (IOException e) {
+      throw new RuntimeException("Failed to write diff output: " + e.getMessage(), e);
+    }
+  }
+
+  public void println(String s) {
+    print(s);
+    print(LINE_SEPARATOR);
+  }
+
+  public void flush() {
+    try {
+      writer.flush();
+    } catch (IOException e) {
+      throw new RuntimeException("Failed to write diff output: " + e.getMessage(), e);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (ownsStream) {
+      writer.close();
+    } else {
+      writer.flush();
+    }
+  }
+}
@@ -0,0 +1,193 @@
+package com.ka.spreadsheet.diff;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+/**
+ * Alignment of two sequences of row or column indexes, from the hashes of the rows or columns.
+ *
+ * The hash sequences are diffed with Myers' O(ND) algorithm, once the elements both start and end
+ * with are set aside. Elements matched by the diff are the same. Between two matches, deleted and
+ * inserted elements are paired in order, the others are extra. Sequences needing more than
+ * MAX_EDITS insertions and deletions are paired in order instead.
+ *
+ * Each element gets an aligned index: the same for two matched or paired elements, and one of its
+ * own for an extra element. Aligned indexes are in the order of the elements in both sequences.
+ */
+class SequenceAlignment {
+
+  /** Bounds the time and memory of the diff, to O((N + M) * MAX_EDITS). */
+  static final int MAX_EDITS = 1000;
+
+  private final int[] idxs1;
+  private final int[] idxs2;
+  private final int[] alignedIdxs1;
+  private final int[] alignedIdxs2;
+  private final BitSet matched1;
+  private final BitSet matched2;
+  private int numAlignedIdxs;
+
+  private SequenceAlignment(int[] idxs1, int[] idxs2) {
+    this.idxs1 = idxs1;
+    this.idxs2 = idxs2;
+    this.alignedIdxs1 = new int[idxs1.length];
+    this.alignedIdxs2 = new int[idxs2.length];
+    this.matched1 = new BitSet(idxs1.length);
+    this.matched2 = new BitSet(idxs2.length);
+  }
+
+  /**
+   * idxs1 and idxs2 are sorted, hashes1 and hashes2 are in the same order.
+   */
+  static SequenceAlignment align(int[] idxs1, long[] hashes1, int[] idxs2, long[] hashes2) {
+    SequenceAlignment alignment = new SequenceAlignment(idxs1, idxs2);
+    int n = idxs1.length;
+    int m = idxs2.length;
+    int start = 0;
+    while ((start < n) && (start < m) && (hashes1[start] == hashes2[start])) {
+      start++;
+    }
+    int end1 = n;
+    int end2 = m;
+    while ((end1 > start) && (end2 > start) && (hashes1[end1 - 1] == hashes2[end2 - 1])) {
+      end1--;
+      end2--;
+    }
+    for (int i = 0; i < start; i++) {
+      alignment.match(i, i);
+    }
+    int[] matches = diff(hashes1, start, end1, hashes2, start, end2);
+    int i = start;
+    int j = start;
+    if (matches != null) {
+      for (int k = 0; k < matches.length; k += 2) {
+        alignment.pair(i, matches[k], j, matches[k + 1]);
+        alignment.match(matches[k], matches[k + 1]);
+        i = matches[k] + 1;
+        j = matches[k + 1] + 1;
+      }
+    }
+    alignment.pair(i, end1, j, end2);
+    for (int k = 0; k < n - end1; k++) {
+      alignment.match(end1 + k, end2 + k);
+    }
+    return alignment;
+  }
+
+  boolean isMatched(boolean inFirstSequence, int idx) {
+    int i = Arrays.binarySearch(inFirstSequence ? idxs1 : idxs2, idx);
+    return (i >= 0) && (inFirstSequence ? matched1 : matched2).get(i);
+  }
+
+  int alignedIndex(boolean inFirstSequence, int idx) {
+    int i = Arrays.binarySearch(inFirstSequence ? idxs1 : idxs2, idx);
+    if (i < 0) {
+      throw new IllegalStateException("Index " + idx + " is not aligned");
+    }
+    return (inFirstSequence ? alignedIdxs1 : alignedIdxs2)[i];
+  }
+
+  private void match(int i, int j) {
+    alignedIdxs1[i] = numAlignedIdxs;
+    alignedIdxs2[j] = numAlignedIdxs;
+    numAlignedIdxs++;
+    matched1.set(i);
+    matched2.set(j);
+  }
+
+  /**
+   * Pairs the deleted elements [i1, i2) with the inserted elements [j1, j2) in order, the elements
+   * left over on either side are extra.
+   */
+  private void pair(int i1, int i2, int j1, int j2) {
+    int numPairs = Math.min(i2 - i1, j2 - j1);
+    for (int k = 0; k < numPairs; k++) {
+      alignedIdxs1[i1 + k] = numAlignedIdxs;
+      alignedIdxs2[j1 + k] = numAlignedIdxs;
+      numAlignedIdxs++;
+    }
+    for (int i = i1 + numPairs; i < i2; i++) {
+      alignedIdxs1[i] = numAlignedIdxs++;
+    }
+    for (int j = j1 + numPairs; j < j2; j++) {
+      alignedIdxs2[j] = numAlignedIdxs++;
+    }
+  }
+
+  /**
+   * Myers' diff of a[aStart, aEnd) and b[bStart, bEnd). Returns the matched elements as {a index,
+   * b index} pairs in order, or null if it takes more than MAX_EDITS insertions and deletions.
+   */
+  @Nullable
+  static int[] diff(long[] a, int aStart, int aEnd, long[] b, int bStart, int bEnd) {
+    int n = aEnd - aStart;
+    int m = bEnd - bStart;
+    int maxEdits = Math.min(n + m, MAX_EDITS);
+    int offset = maxEdits + 1;
+    // furthest x reached on each diagonal k = x - y
+    int[] v = new int[2 * maxEdits + 3];
+    // v after each number of edits d, for diagonals -d..d
+    List<int[]> trace = new ArrayList<int[]>();
+    for (int d = 0; d <= maxEdits; d++) {
+      for (int k = -d; k <= d; k += 2) {
+        int x = ((k == -d) || ((k != d) && (v[offset + k - 1] < v[offset + k + 1])))
+            ? v[offset + k + 1] : (v[offset + k - 1] + 1);
+        int y = x - k;
+        while ((x < n) && (y < m) && (a[aStart + x] == b[bStart + y])) {
+          x++;
+          y++;
+        }
+        v[offset + k] = x;
+        if ((x >= n) && (y >= m)) {
+          trace.add(Arrays.copyOfRange(v, offset - d, offset + d + 1));
+          return backtrack(trace, x, y, aStart, bStart);
+        }
+      }
+      trace.add(Arrays.copyOfRange(v, offset - d, offset + d + 1));
+    }
+    return null;
+  }
+
+  /**
+   * Walks the path back from its end, collecting the matches along its diagonal moves.
+   */
+  private static int[] backtrack(List<int[]> trace, int x, int y, int aStart, int bStart) {
+    int[] matches = new int[2 * Math.min(x, y)];
+    int numMatches = 0;
+    for (int d = trace.size() - 1; d >= 0; d--) {
+      int k = x - y;
+      int prevX;
+      int prevY;
+      if (d == 0) {
+        prevX = 0;
+        prevY = 0;
+      } else {
+        int[] prevV = trace.get(d - 1);
+        // prevV holds diagonals -(d - 1)..(d - 1)
+        boolean down = (k == -d)
+            || ((k != d) && (prevV[k - 1 + d - 1] < prevV[k + 1 + d - 1]));
+        int prevK = down ? (k + 1) : (k - 1);
+        prevX = prevV[prevK + d - 1];
+        prevY = prevX - prevK;
+      }
+      while ((x > prevX) && (y > prevY)) {
+        x--;
+        y--;
+        matches[numMatches++] = bStart + y;
+        matches[numMatches++] = aStart + x;
+      }
+      x = prevX;
+      y = prevY;
+    }
+    // collected from the end, as {b, a} pairs
+    int[] pairs = new int[numMatches];
+    for (int i = 0; i < numMatches; i++) {
+      pairs[i] = matches[numMatches - 1 - i];
+    }
+    return pairs;
+  }
+}
@@ -5,69 +5,74 @@ import static com.ka.spreadsheet.diff.SpreadSheetUtils.COL_USER_TO_INTERNAL;
 import static com.ka.spreadsheet.diff.SpreadSheetUtils.ROW_USER_TO_INTERNAL;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
 
+/**
+ * Rows, columns and cells to ignore in a sheet. The ranges are indexed once when parsed, so a
+ * check is a binary search and allocates nothing.
+ */
 public class SheetIgnores {
 
-  private static class Range {
-
-    private final int[] low;
-    private final int[] high;
-
-    Range(int low, int high) {
-      this.low = new int[] {low};
-      this.high = new int[] {high};
-    }
-
-    Range(int low1, int low2, int high1, int high2) {
-      this.low = new int[] {low1, low2};
-      this.high = new int[] {high1, high2};
-    }
-
-    boolean lies_between(int... x) {
-      for (int i = 0; i < x.length; i++) {
-        if (!((low[i] <= x[i]) && (x[i] <= high[i])))
-          return false;
-      }
-      return true;
-    }
-  }
-
+  private String spec;
   private boolean completeIgnore;
-  private boolean rowIgnoresPresent;
-  private boolean colIgnoresPresent;
-  private boolean cellIgnoresPresent;
   private String sheetName;
-  private List<Range> rowIgnores;
-  private List<Range> colIgnores;
-  private List<Range> cellIgnores;
+  private IntervalSet rowIgnores;
+  private IntervalSet colIgnores;
+  private CellRangeIndex cellIgnores;
 
   public String sheetName() {
     return sheetName;
   }
 
+  /**
+   * The ignore spec this was parsed from.
+   */
+  public String spec() {
+    return spec;
+  }
+
   public boolean isWholeSheetIgnored() {
     return completeIgnore;
   }
 
   public boolean isRowIgnored(int row) {
-    return rowIgnoresPresent && isIgnored(rowIgnores, row);
+    return (rowIgnores != null) && rowIgnores.contains(row);
+  }
+
+  /**
+   * True if any row may be ignored, otherwise isRowIgnored() is false for all rows.
+   */
+  public boolean ignoresRows() {
+    return rowIgnores != null;
   }
 
   public boolean isColIgnored(int col) {
-    return colIgnoresPresent && isIgnored(colIgnores, col);
+    return (colIgnores != null) && colIgnores.contains(col);
   }
 
   public boolean isCellIgnored(int row, int col) {
-    return cellIgnoresPresent && isIgnored(cellIgnores, row, col);
+    return (cellIgnores != null) && cellIgnores.contains(row, col);
   }
 
-  public boolean isIgnored(List<Range> rngs, int... pt) {
-    for (Range r : rngs) {
-      if (r.lies_between(pt))
-        return true;
-    }
-    return false;
+  /**
+   * True if all the rows from firstRow to lastRow are ignored.
+   */
+  public boolean areRowsIgnored(int firstRow, int lastRow) {
+    return (rowIgnores != null) && rowIgnores.containsAll(firstRow, lastRow);
+  }
+
+  /**
+   * True if all the columns from firstCol to lastCol are ignored.
+   */
+  public boolean areColsIgnored(int firstCol, int lastCol) {
+    return (colIgnores != null) && colIgnores.containsAll(firstCol, lastCol);
   }
 
   public static SheetIgnores newSheetIgnore(String val) {
@@ -77,37 +82,36 @@ public class SheetIgnores {
   // Assume val is not null & non-empty
   private SheetIgnores parse(String val) {
     String[] parts = val.split(":");
+    spec = val;
     sheetName = parts[0];
     completeIgnore = parts.length == 1;
     if ((parts.length > 1) && (!parts[1].isEmpty())) {
-      rowIgnoresPresent = true;
-      rowIgnores = formRowIgnores(parts[1]);
+      rowIgnores = IntervalSet.of(formRowIgnores(parts[1]));
     }
     if ((parts.length > 2) && (!parts[2].isEmpty())) {
-      colIgnoresPresent = true;
-      colIgnores = formColIgnores(parts[2]);
+      colIgnores = IntervalSet.of(formColIgnores(parts[2]));
     }
     if ((parts.length > 3) && (!parts[3].isEmpty())) {
-      cellIgnoresPresent = true;
-      cellIgnores = formCellIgnores(parts[3]);
+      cellIgnores = CellRangeIndex.of(formCellIgnores(parts[3]));
     }
     if (parts.length > 4)
       throw new IllegalArgumentException("Illegal Sheet Ignores argument " + val);
     return this;
   }
 
-  private static List<Range> formRowIgnores(String val) {
-    List<Range> ret = new ArrayList<Range>();
+  // {low, high}
+  private static List<int[]> formRowIgnores(String val) {
+    List<int[]> ret = new ArrayList<int[]>();
     if (val != null) {
       for (String rng : val.split(",")) {
         String[] rngs = rng.split("-");
         if (rngs.length == 1) { // Single row
           int row = ROW_USER_TO_INTERNAL(Integer.parseInt(rngs[0]));
-          ret.add(new Range(row, row));
+          ret.add(new int[] {row, row});
         } else if (rngs.length == 2) {
           int row1 = ROW_USER_TO_INTERNAL(Integer.parseInt(rngs[0]));
           int row2 = ROW_USER_TO_INTERNAL(Integer.parseInt(rngs[1]));
-          ret.add(new Range(row1, row2));
+          ret.add(new int[] {row1, row2});
         } else {
           throw new IllegalArgumentException("Illegal row ignore specifier " + val);
         }
@@ -116,18 +120,19 @@ public class SheetIgnores {
     return ret;
   }
 
-  private static List<Range> formColIgnores(String val) {
-    List<Range> ret = new ArrayList<Range>();
+  // {low, high}
+  private static List<int[]> formColIgnores(String val) {
+    List<int[]> ret = new ArrayList<int[]>();
     if (val != null) {
       for (String rng : val.split(",")) {
         String[] rngs = rng.split("-");
         if (rngs.length == 1) { // Single col
           int col = COL_USER_TO_INTERNAL(rngs[0]);
-          ret.add(new Range(col, col));
+          ret.add(new int[] {col, col});
         } else if (rngs.length == 2) {
           int col1 = COL_USER_TO_INTERNAL(rngs[0]);
           int col2 = COL_USER_TO_INTERNAL(rngs[1]);
-          ret.add(new Range(col1, col2));
+          ret.add(new int[] {col1, col2});
         } else {
           throw new IllegalArgumentException("Illegal col ignore specifier " + val);
         }
@@ -136,18 +141,19 @@ public class SheetIgnores {
     return ret;
   }
 
-  private static List<Range> formCellIgnores(String val) {
-    List<Range> ret = new ArrayList<Range>();
+  // {row low, col low, row high, col high}
+  private static List<int[]> formCellIgnores(String val) {
+    List<int[]> ret = new ArrayList<int[]>();
     if (val != null) {
       for (String rng : val.split(",")) {
         String[] rngs = rng.split("-");
         if (rngs.length == 1) { // Single cell
           int[] rowcol = CELL_USER_TO_INTERNAL(rngs[0]);
-          ret.add(new Range(rowcol[0], rowcol[1], rowcol[0], rowcol[1]));
+          ret.add(new int[] {rowcol[0], rowcol[1], rowcol[0], rowcol[1]});
         } else if (rngs.length == 2) {
           int[] rowcol1 = CELL_USER_TO_INTERNAL(rngs[0]);
           int[] rowcol2 = CELL_USER_TO_INTERNAL(rngs[1]);
-          ret.add(new Range(rowcol1[0], rowcol1[1], rowcol2[0], rowcol2[1]));
+          ret.add(new int[] {rowcol1[0], rowcol1[1], rowcol2[0], rowcol2[1]});
         } else {
           throw new IllegalArgumentException("Illegal cell ignore specifier " + val);
         }
@@ -156,3 +162,160 @@ public class SheetIgnores {
     return ret;
   }
 }
+
+
+/**
+ * Union of closed int intervals, merged and sorted so that a lookup is a binary search.
+ */
+class IntervalSet {
+
+  private final int[] lows;
+  private final int[] highs;
+
+  private IntervalSet(int[] lows, int[] highs) {
+    this.lows = lows;
+    this.highs = highs;
+  }
+
+  /**
+   * Builds the union of the {low, high} intervals. An interval whose low is greater than its high
+   * is empty.
+   */
+  static IntervalSet of(List<int[]> intervals) {
+    List<int[]> sorted = new ArrayList<int[]>();
+    for (int[] interval : intervals) {
+      if (interval[0] <= interval[1]) {
+        sorted.add(interval);
+      }
+    }
+    Collections.sort(sorted, new Comparator<int[]>() {
+      @Override
+      public int compare(int[] i1, int[] i2) {
+        return (i1[0] < i2[0]) ? -1 : ((i1[0] == i2[0]) ? 0 : 1);
+      }
+    });
+    int[] lows = new int[sorted.size()];
+    int[] highs = new int[sorted.size()];
+    int size = 0;
+    for (int[] interval : sorted) {
+      if ((size > 0) && (interval[0] <= (long) highs[size - 1] + 1)) {
+        highs[size - 1] = Math.max(highs[size - 1], interval[1]);
+      } else {
+        lows[size] = interval[0];
+        highs[size] = interval[1];
+        size++;
+      }
+    }
+    return new IntervalSet(Arrays.copyOf(lows, size), Arrays.copyOf(highs, size));
+  }
+
+  boolean isEmpty() {
+    return lows.length == 0;
+  }
+
+  boolean contains(int x) {
+    int idx = floorIndex(lows, x);
+    return (idx >= 0) && (x <= highs[idx]);
+  }
+
+  boolean containsAll(int low, int high) {
+    int idx = floorIndex(lows, low);
+    return (idx >= 0) && (high <= highs[idx]);
+  }
+
+  /**
+   * Index of the last value of the sorted array which is less than or equal to x, -1 if none.
+   */
+  static int floorIndex(int[] sorted, int x) {
+    int idx = Arrays.binarySearch(sorted, x);
+    return (idx >= 0) ? idx : (-idx - 2);
+  }
+}
+
+
+/**
+ * Union of cell rectangles. The rows are cut into bands at every row where a rectangle starts or
+ * ends, so that all the rows of a band are covered by the same rectangles, and each band holds
+ * the union of the columns of its rectangles. A lookup is a binary search for the band of the row
+ * followed by one in its columns.
+ */
+class CellRangeIndex {
+
+  private final int[] bandStarts;
+  // null for the bands covered by no rectangle, and for the last one which is past every row
+  private final IntervalSet[] bandColumns;
+
+  private CellRangeIndex(int[] bandStarts, IntervalSet[] bandColumns) {
+    this.bandStarts = bandStarts;
+    this.bandColumns = bandColumns;
+  }
+
+  /**
+   * Builds the union of the {row low, col low, row high, col high} rectangles. A rectangle whose
+   * low is greater than its high in either dimension is empty.
+   */
+  static CellRangeIndex of(List<int[]> rects) {
+    List<int[]> nonEmpty = new ArrayList<int[]>();
+    SortedSet<Long> starts = new TreeSet<Long>();
+    for (int[] rect : rects) {
+      if ((rect[0] <= rect[2]) && (rect[1] <= rect[3])) {
+        nonEmpty.add(rect);
+        starts.add((long) rect[0]);
+        starts.add(rect[2] + 1L);
+      }
+    }
+    // a band past Integer.MAX_VALUE can't hold any row
+    starts.remove(Integer.MAX_VALUE + 1L);
+    int[] bandStarts = new int[starts.size()];
+    int i = 0;
+    for (long start : starts) {
+      bandStarts[i++] = (int) start;
+    }
+    // sweep the bands in order, keeping the rectangles which cover the current one
+    List<int[]> byLow = new ArrayList<int[]>(nonEmpty);
+    Collections.sort(byLow, new RectComparator(0));
+    List<int[]> byHigh = new ArrayList<int[]>(nonEmpty);
+    Collections.sort(byHigh, new RectComparator(2));
+    Set<int[]> active = new LinkedHashSet<int[]>();
+    int nextLow = 0;
+    int nextHigh = 0;
+    IntervalSet[] bandColumns = new IntervalSet[bandStarts.length];
+    for (int band = 0; band < bandStarts.length; band++) {
+      while ((nextHigh < byHigh.size()) && (byHigh.get(nextHigh)[2] < bandStarts[band])) {
+        active.remove(byHigh.get(nextHigh++));
+      }
+      while ((nextLow < byLow.size()) && (byLow.get(nextLow)[0] <= bandStarts[band])) {
+        int[] rect = byLow.get(nextLow++);
+        if (rect[2] >= bandStarts[band]) {
+          active.add(rect);
+        }
+      }
+      List<int[]> columns = new ArrayList<int[]>(active.size());
+      for (int[] rect : active) {
+        columns.add(new int[] {rect[1], rect[3]});
+      }
+      IntervalSet set = IntervalSet.of(columns);
+      bandColumns[band] = set.isEmpty() ? null : set;
+    }
+    return new CellRangeIndex(bandStarts, bandColumns);
+  }
+
+  boolean contains(int row, int col) {
+    int band = IntervalSet.floorIndex(bandStarts, row);
+    return (band >= 0) && (bandColumns[band] != null) && bandColumns[band].contains(col);
+  }
+
+  private static class RectComparator implements Comparator<int[]> {
+
+    private final int idx;
+
+    RectComparator(int idx) {
+      this.idx = idx;
+    }
+
+    @Override
+    public int compare(int[] r1, int[] r2) {
+      return (r1[idx] < r2[idx]) ? -1 : ((r1[idx] == r2[idx]) ? 0 : 1);
+    }
+  }
+}
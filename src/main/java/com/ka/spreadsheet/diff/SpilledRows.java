@@ -0,0 +1,372 @@
+package com.ka.spreadsheet.diff;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+/**
+ * Cells of some rows of a workbook, read back a row at a time in any order, for keyed diffs which
+ * report the changed rows of the second sheet in the order of the rows of the first sheet, or all
+ * in {sheet, row} order through a cursor. The rows are kept in memory up to the memory budget, and
+ * in a temporary file past it, so only the row being read back is held as cells.
+ *
+ * A row is written as each of its cells, its column then its value, followed by a -1 column.
+ */
+class SpilledRows {
+
+  private static final int BUFFER_SIZE = 1 << 13;
+  /** Past it the rows are written to a file whatever the budget, as an array holds at most 2 GB. */
+  private static final long MAX_MEMORY_BYTES = 1L << 30;
+
+  private final long memoryBudget;
+  private final Map<Integer, ISheet> sheets = new HashMap<Integer, ISheet>();
+  private final RowBytes row = new RowBytes();
+  private final DataOutputStream rowOut = new DataOutputStream(row);
+
+  // the rows in order by key(), with where each one starts, the last offset being where they end
+  private long[] keys = new long[16];
+  private long[] offsets = new long[17];
+  private int numRows;
+
+  private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+  private OutputStream out = memory;
+  @Nullable
+  private File file;
+
+  private byte[] bytes;
+  @Nullable
+  private RandomAccessFile in;
+
+  SpilledRows(long memoryBudget) {
+    this.memoryBudget = Math.min(memoryBudget, MAX_MEMORY_BYTES);
+  }
+
+  /**
+   * Reads the cells of these rows of the sheet, leaving out the ignored ones.
+   */
+  static SpilledRows read(ISheet sheet, WorkbookIgnores ignores, final BitSet rowIdxs,
+      long memoryBudget) throws IOException {
+    SpilledRows spilledRows = new SpilledRows(memoryBudget);
+    try {
+      if (!rowIdxs.isEmpty()) {
+        SpreadSheetCursor cursor = new SpreadSheetCursor(
+            Collections.singletonList(sheet).iterator(), ignores, new RowFilter() {
+              @Override
+              public boolean skipRow(int sheetIdx, int rowIdx) {
+                return !rowIdxs.get(rowIdx);
+              }
+            });
+        boolean hasCell = cursor.advance();
+        while (hasCell) {
+          int rowIdx = cursor.getRowIndex();
+          spilledRows.row.reset();
+          do {
+            spilledRows.writeCell(cursor.getColumnIndex(), cursor.getCellValue());
+            hasCell = cursor.advance();
+          } while (hasCell && (cursor.getRowIndex() == rowIdx));
+          spilledRows.endRow(sheet, rowIdx);
+        }
+      }
+      spilledRows.finish();
+    } catch (IOException e) {
+      spilledRows.delete();
+      throw e;
+    }
+    return spilledRows;
+  }
+
+  /**
+   * Adds a row of the sheet from its cells in column order. Rows are added in {sheet, row} order,
+   * then finish() is called before any is read back.
+   */
+  void add(ISheet sheet, int rowIdx, int size, int[] columns, CellValue[] values)
+      throws IOException {
+    row.reset();
+    for (int j = 0; j < size; j++) {
+      writeCell(columns[j], values[j]);
+    }
+    endRow(sheet, rowIdx);
+  }
+
+  boolean isEmpty() {
+    return numRows == 0;
+  }
+
+  private void writeCell(int colIdx, CellValue value) throws IOException {
+    rowOut.writeInt(colIdx);
+    writeValue(rowOut, value);
+  }
+
+  private void endRow(ISheet sheet, int rowIdx) throws IOException {
+    rowOut.writeInt(-1);
+    if (numRows == keys.length) {
+      keys = Arrays.copyOf(keys, numRows * 2);
+      offsets = Arrays.copyOf(offsets, numRows * 2 + 1);
+    }
+    if (!sheets.containsKey(sheet.getSheetIndex())) {
+      sheets.put(sheet.getSheetIndex(), sheet);
+    }
+    keys[numRows] = key(sheet.getSheetIndex(), rowIdx);
+    offsets[numRows + 1] = offsets[numRows] + row.size();
+    numRows++;
+    row.writeTo(out);
+    if ((memory != null) && (memory.size() > memoryBudget)) {
+      file = File.createTempFile("excel_cmp_rows", ".tmp");
+      out = new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE);
+      memory.writeTo(out);
+      memory = null;
+    }
+  }
+
+  /**
+   * Sorts by sheet then by row, for sheet and row indexes being non negative.
+   */
+  private static long key(int sheetIdx, int rowIdx) {
+    return ((long) sheetIdx << 32) | rowIdx;
+  }
+
+  void finish() throws IOException {
+    if (memory != null) {
+      bytes = memory.toByteArray();
+      memory = null;
+    } else {
+      out.close();
+      in = new RandomAccessFile(file, "r");
+      bytes = new byte[BUFFER_SIZE];
+    }
+  }
+
+  /**
+   * Returns the cells of the row in column order, none if it wasn't read.
+   */
+  List<CellPos> get(int sheetIdx, int rowIdx) throws IOException {
+    int idx = Arrays.binarySearch(keys, 0, numRows, key(sheetIdx, rowIdx));
+    return (idx < 0) ? Collections.<CellPos>emptyList() : readRow(idx);
+  }
+
+  /**
+   * Returns a cursor over the cells of all the rows, in {sheet, row, column} order.
+   */
+  ISpreadSheetCursor cursor() {
+    return new ISpreadSheetCursor() {
+
+      private int idx = -1;
+      private List<CellPos> cells = Collections.emptyList();
+      private int cellIdx;
+
+      @Override
+      public boolean advance() {
+        while (cellIdx + 1 >= cells.size()) {
+          if (idx + 1 >= numRows) {
+            return false;
+          }
+          idx++;
+          try {
+            cells = readRow(idx);
+          } catch (IOException e) {
+            throw new RuntimeException("Failed to read back rows: " + e.getMessage(), e);
+          }
+          cellIdx = -1;
+        }
+        cellIdx++;
+        return true;
+      }
+
+      @Override
+      public ISheet getSheet() {
+        return sheets.get(getSheetIndex());
+      }
+
+      @Override
+      public int getSheetIndex() {
+        return (int) (keys[idx] >>> 32);
+      }
+
+      @Override
+      public int getRowIndex() {
+        return (int) keys[idx];
+      }
+
+      @Override
+      public int getColumnIndex() {
+        return cells.get(cellIdx).getColumnIndex();
+      }
+
+      @Override
+      public CellValue getCellValue() {
+        return cells.get(cellIdx).getCellValue();
+      }
+
+      @Override
+      public CellPos toCellPos() {
+        return cells.get(cellIdx);
+      }
+    };
+  }
+
+  private List<CellPos> readRow(int idx) throws IOException {
+    int length = (int) (offsets[idx + 1] - offsets[idx]);
+    int start = 0;
+    if (in == null) {
+      start = (int) offsets[idx];
+    } else {
+      if (length > bytes.length) {
+        bytes = new byte[Math.max(length, bytes.length * 2)];
+      }
+      in.seek(offsets[idx]);
+      in.readFully(bytes, 0, length);
+    }
+    DataInputStream rowIn = new DataInputStream(new RowBytesInput(bytes, start, length));
+    ISheet sheet = sheets.get((int) (keys[idx] >>> 32));
+    int rowIdx = (int) keys[idx];
+    List<CellPos> cells = new ArrayList<CellPos>();
+    int colIdx;
+    while ((colIdx = rowIn.readInt()) != -1) {
+      cells.add(CellPos.detached(sheet, rowIdx, colIdx, readValue(rowIn)));
+    }
+    return cells;
+  }
+
+  /**
+   * Deletes the temporary file if any.
+   */
+  void delete() {
+    try {
+      if (in != null) {
+        in.close();
+      } else if (out != memory) {
+        out.close();
+      }
+    } catch (IOException e) {
+      // deleted anyway
+    }
+    if (file != null) {
+      file.delete();
+    }
+  }
+
+  private static void writeValue(DataOutputStream out, CellValue value) throws IOException {
+    out.writeBoolean(value.hasFormula());
+    writeString(out, value.getFormula());
+    out.writeByte(value.getType().ordinal());
+    switch (value.getType()) {
+      case NUMBER:
+        out.writeDouble(value.getNumber());
+        break;
+      case BOOLEAN:
+        out.writeBoolean(value.getBoolean());
+        break;
+      case STRING:
+        writeString(out, value.getString());
+        break;
+      default:
+        break;
+    }
+  }
+
+  private static CellValue readValue(DataInputStream in) throws IOException {
+    boolean hasFormula = in.readBoolean();
+    String formula = readString(in);
+    switch (CellValue.Type.values()[in.readByte()]) {
+      case NUMBER:
+        return CellValue.ofNumber(hasFormula, formula, in.readDouble());
+      case BOOLEAN:
+        return CellValue.ofBoolean(hasFormula, formula, in.readBoolean());
+      case STRING:
+        return CellValue.ofString(hasFormula, formula, readString(in));
+      default:
+        return CellValue.ofString(hasFormula, formula, null);
+    }
+  }
+
+  /**
+   * Strings are written as their length, -1 for null, then their chars, as they may be longer
+   * than writeUTF() allows.
+   */
+  private static void writeString(DataOutputStream out, @Nullable String s) throws IOException {
+    if (s == null) {
+      out.writeInt(-1);
+    } else {
+      out.writeInt(s.length());
+      out.writeChars(s);
+    }
+  }
+
+  @Nullable
+  private static String readString(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length == -1) {
+      return null;
+    }
+    char[] chars = new char[length];
+    for (int i = 0; i < length; i++) {
+      chars[i] = in.readChar();
+    }
+    return new String(chars);
+  }
+
+  /**
+   * The bytes of a row, written a few at a time, without the locking of ByteArrayOutputStream.
+   */
+  private static class RowBytes extends ByteArrayOutputStream {
+
+    @Override
+    public void write(int b) {
+      if (count == buf.length) {
+        buf = Arrays.copyOf(buf, count * 2);
+      }
+      buf[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      if (count + len > buf.length) {
+        buf = Arrays.copyOf(buf, Math.max(count + len, count * 2));
+      }
+      System.arraycopy(b, off, buf, count, len);
+      count += len;
+    }
+  }
+
+  /**
+   * The bytes of a row, read a few at a time, without the locking of ByteArrayInputStream.
+   */
+  private static class RowBytesInput extends ByteArrayInputStream {
+
+    RowBytesInput(byte[] buf, int offset, int length) {
+      super(buf, offset, length);
+    }
+
+    @Override
+    public int read() {
+      return (pos < count) ? (buf[pos++] & 0xFF) : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      if (pos >= count) {
+        return -1;
+      }
+      int n = Math.min(len, count - pos);
+      System.arraycopy(buf, pos, b, off, n);
+      pos += n;
+      return n;
+    }
+  }
+}
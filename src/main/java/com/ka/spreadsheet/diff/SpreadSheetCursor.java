@@ -0,0 +1,282 @@
+package com.ka.spreadsheet.diff;
+
+import static com.ka.spreadsheet.diff.SpreadSheetUtils.CELL_INTERNAL_TO_USER;
+
+import java.util.Iterator;
+
+import javax.annotation.Nullable;
+
+public class SpreadSheetCursor implements ISpreadSheetCursor {
+
+  private final Iterator<ISheet> sheetIterator;
+  private final WorkbookIgnores workbookIgnores;
+  @Nullable
+  private final RowFilter rowFilter;
+  @Nullable
+  private final ColumnFilter columnFilter;
+  private ISheet sheet;
+  private SheetIgnores currSheetIgnores;
+  private ICellCursor cells;
+  private boolean inRow;
+
+  SpreadSheetCursor(ISpreadSheet spreadSheet, WorkbookIgnores workbookIgnores) {
+    this(spreadSheet.getSheetIterator(), workbookIgnores);
+  }
+
+  SpreadSheetCursor(Iterator<ISheet> sheetIterator, WorkbookIgnores workbookIgnores) {
+    this(sheetIterator, workbookIgnores, null);
+  }
+
+  SpreadSheetCursor(Iterator<ISheet> sheetIterator, WorkbookIgnores workbookIgnores,
+      @Nullable RowFilter rowFilter) {
+    this(sheetIterator, workbookIgnores, rowFilter, null);
+  }
+
+  SpreadSheetCursor(Iterator<ISheet> sheetIterator, WorkbookIgnores workbookIgnores,
+      @Nullable RowFilter rowFilter, @Nullable ColumnFilter columnFilter) {
+    this.workbookIgnores = workbookIgnores;
+    this.sheetIterator = sheetIterator;
+    this.rowFilter = rowFilter;
+    this.columnFilter = columnFilter;
+  }
+
+  @Override
+  public boolean advance() {
+    while (true) {
+      if (inRow && cells.nextCell()) {
+        if (!ignoreCol() && !ignoreCell() && !skipColumn()) {
+          return true;
+        }
+      } else if ((cells != null) && cells.nextRow()) {
+        inRow = !ignoreRow() && !skipRow();
+      } else if (sheetIterator.hasNext()) {
+        sheet = sheetIterator.next();
+        currSheetIgnores = workbookIgnores.fetchSheetIgnores(sheet.getName());
+        cells = ignoreSheet() ? null : sheet.getCellCursor(readerIgnores());
+        inRow = false;
+      } else {
+        cells = null;
+        inRow = false;
+        return false;
+      }
+    }
+  }
+
+  @Override
+  public ISheet getSheet() {
+    return sheet;
+  }
+
+  @Override
+  public int getSheetIndex() {
+    return sheet.getSheetIndex();
+  }
+
+  @Override
+  public int getRowIndex() {
+    return cells.getRowIndex();
+  }
+
+  @Override
+  public int getColumnIndex() {
+    return cells.getColumnIndex();
+  }
+
+  @Override
+  public CellValue getCellValue() {
+    try {
+      return cells.getValue();
+    } catch (Exception e) {
+      throw new RuntimeException("Error reading Cell at " + sheet.getName() + "!"
+          + CELL_INTERNAL_TO_USER(getRowIndex(), getColumnIndex()) + ": " + e.getMessage(), e);
+    }
+  }
+
+  @Override
+  public CellPos toCellPos() {
+    return new CellPos(sheet, cells.toCell());
+  }
+
+  /**
+   * The ignores of the sheet, plus the rows of the row filter, so that readers skip those too.
+   */
+  @Nullable
+  private SheetIgnores readerIgnores() {
+    return (rowFilter == null) ? currSheetIgnores
+        : new FilteredSheetIgnores(currSheetIgnores, rowFilter, sheet.getSheetIndex());
+  }
+
+  private boolean ignoreSheet() {
+    return (currSheetIgnores != null) && currSheetIgnores.isWholeSheetIgnored();
+  }
+
+  private boolean ignoreRow() {
+    return (currSheetIgnores != null) && (currSheetIgnores.isRowIgnored(cells.getRowIndex()));
+  }
+
+  private boolean skipRow() {
+    return (rowFilter != null) && rowFilter.skipRow(sheet.getSheetIndex(), cells.getRowIndex());
+  }
+
+  private boolean skipColumn() {
+    return (columnFilter != null)
+        && columnFilter.skipColumn(sheet.getSheetIndex(), cells.getColumnIndex());
+  }
+
+  private boolean ignoreCol() {
+    return (currSheetIgnores != null) && (currSheetIgnores.isColIgnored(cells.getColumnIndex()));
+  }
+
+  private boolean ignoreCell() {
+    return (currSheetIgnores != null)
+        && (currSheetIgnores.isCellIgnored(cells.getRowIndex(), cells.getColumnIndex()));
+  }
+}
+
+
+/**
+ * Rows to leave out of a workbook on top of the ignored ones, e.g. rows known to be the same in
+ * the other workbook.
+ */
+interface RowFilter {
+
+  boolean skipRow(int sheetIdx, int rowIdx);
+}
+
+
+/**
+ * Ignores of a sheet which also ignore the rows of a row filter.
+ */
+class FilteredSheetIgnores extends SheetIgnores {
+
+  @Nullable
+  private final SheetIgnores ignores;
+  private final RowFilter rowFilter;
+  private final int sheetIdx;
+
+  FilteredSheetIgnores(@Nullable SheetIgnores ignores, RowFilter rowFilter, int sheetIdx) {
+    this.ignores = ignores;
+    this.rowFilter = rowFilter;
+    this.sheetIdx = sheetIdx;
+  }
+
+  @Override
+  public String sheetName() {
+    return (ignores != null) ? ignores.sheetName() : null;
+  }
+
+  @Override
+  public String spec() {
+    return (ignores != null) ? ignores.spec() : null;
+  }
+
+  @Override
+  public boolean isWholeSheetIgnored() {
+    return (ignores != null) && ignores.isWholeSheetIgnored();
+  }
+
+  @Override
+  public boolean isRowIgnored(int row) {
+    return ((ignores != null) && ignores.isRowIgnored(row)) || rowFilter.skipRow(sheetIdx, row);
+  }
+
+  @Override
+  public boolean ignoresRows() {
+    return true;
+  }
+
+  @Override
+  public boolean isColIgnored(int col) {
+    return (ignores != null) && ignores.isColIgnored(col);
+  }
+
+  @Override
+  public boolean isCellIgnored(int row, int col) {
+    return (ignores != null) && ignores.isCellIgnored(row, col);
+  }
+
+  @Override
+  public boolean areRowsIgnored(int firstRow, int lastRow) {
+    if ((ignores != null) && ignores.areRowsIgnored(firstRow, lastRow)) {
+      return true;
+    }
+    // stops at the first row kept, e.g. the first of many repeated empty rows
+    for (int row = firstRow; row <= lastRow; row++) {
+      if (!isRowIgnored(row)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public boolean areColsIgnored(int firstCol, int lastCol) {
+    return (ignores != null) && ignores.areColsIgnored(firstCol, lastCol);
+  }
+}
+
+
+/**
+ * Columns to leave out of a workbook on top of the ignored ones, e.g. columns known to be the same
+ * in the other workbook.
+ */
+interface ColumnFilter {
+
+  boolean skipColumn(int sheetIdx, int colIdx);
+}
+
+
+/**
+ * Cell cursor over the row and cell iterators of a sheet, for readers which build their rows and
+ * cells anyway.
+ */
+class RowIteratorCellCursor implements ICellCursor {
+
+  private final Iterator<IRow> rows;
+  private IRow row;
+  private Iterator<ICell> cells;
+  private ICell cell;
+
+  RowIteratorCellCursor(Iterator<IRow> rows) {
+    this.rows = rows;
+  }
+
+  @Override
+  public boolean nextRow() {
+    if (!rows.hasNext()) {
+      return false;
+    }
+    row = rows.next();
+    cells = row.getCellIterator();
+    return true;
+  }
+
+  @Override
+  public int getRowIndex() {
+    return row.getRowIndex();
+  }
+
+  @Override
+  public boolean nextCell() {
+    if (!cells.hasNext()) {
+      return false;
+    }
+    cell = cells.next();
+    return true;
+  }
+
+  @Override
+  public int getColumnIndex() {
+    return cell.getColumnIndex();
+  }
+
+  @Override
+  public CellValue getValue() {
+    return cell.getValue();
+  }
+
+  @Override
+  public ICell toCell() {
+    return cell;
+  }
+}
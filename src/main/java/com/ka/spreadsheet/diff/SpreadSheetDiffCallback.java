@@ -27,8 +27,20 @@ import java.io.File;
  *     afterwards.  Extra will always be at the bottom of the worksheet (e.g.,
  *     if File1_Sheet1 contains A1-B3, and File2_Sheet1 contains A1-C3, then
  *     File2_Sheet1!C1-C3 are extra cells).
+ *  *  With --align_rows / --align_columns the cells of a worksheet are walked
+ *     in the order of their alignment: reportDiffCell() may be given cells in
+ *     different rows / columns, and extra cells may be before those of
+ *     differing cells reported earlier.  The cells of each workbook are still
+ *     reported in order.
+ *  *  With --key_columns the rows of a worksheet with key columns are matched
+ *     by key: reportDiffCell() may be given cells in different rows, the
+ *     cells of the first workbook are reported in order, then the extra rows
+ *     of the second workbook in order.  The cells of the second workbook
+ *     matched with those of the first one follow the order of the first one.
  *  *  Caller will call reportWorkbooksDiffer() will only be called once all
  *     differing and extra cells and any other differences have been reported.
+ *  *  Caller will stop looking for differences once isDone() returns true,
+ *     and go on to call reportWorkbooksDiffer() and finish().
  *  *  Caller will call finish() after calling all other methods, and will
  *     not call any other methods afterwards.
  */
@@ -45,4 +57,12 @@ public interface SpreadSheetDiffCallback {
   void reportMacroOnlyIn(boolean inFirstSpreadSheet);
 
   void reportWorkbooksDiffer(boolean differ);
+
+  /**
+   * Returns true once the callback has seen enough differences, e.g. when only whether the
+   * workbooks differ matters. Never, unless overridden.
+   */
+  default boolean isDone() {
+    return false;
+  }
 }
@@ -6,47 +6,72 @@ import static com.ka.spreadsheet.diff.Flags.WORKBOOK1;
 import static com.ka.spreadsheet.diff.Flags.WORKBOOK2;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Nullable;
 
 import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
-import org.apache.poi.ss.usermodel.Workbook;
-import org.apache.poi.ss.usermodel.WorkbookFactory;
-import org.odftoolkit.simple.SpreadsheetDocument;
 
 
 public class SpreadSheetDiffer {
   private static final Logger logger = LogManager.getLogger(SpreadSheetDiffer.class);
+  private static final boolean CHECK_CELL_ORDER =
+      SpreadSheetDiffer.class.desiredAssertionStatus();
+  /** diffCells checks whether the callback is done every so many same cells, a power of 2. */
+  private static final int SAME_CELLS_PER_DONE_CHECK = 1 << 12;
+
   public static void main(String[] args) {
     int ret = doDiff(args);
     System.exit(ret);
   }
 
   public static int doDiff(String[] args) {
+    return doDiff(args, null);
+  }
+
+  /**
+   * Same as doDiff(args), the relative paths of the args resolved against dir if not null.
+   */
+  static int doDiff(String[] args, @Nullable File dir) {
     int ret = -1;
     try {
       if (Flags.parseFlags(args)) {
+        if (dir != null) {
+          Flags.resolveFiles(dir);
+        }
         LogUtil.initLogging(Flags.LOG_FILENAME);
         LogUtil.initCleanLogging("display" + Flags.LOG_FILENAME);
         logger.info("Hello");
-        SpreadSheetDiffCallback formatter;
-        switch (Flags.DIFF_FORMAT) {
-          case EXCEL_CMP:
-            formatter = new StdoutSpreadSheetDiffCallback();
-            break;
-          case UNIFIED:
-            formatter = new UnifiedDiffSpreadSheetDiffCallback();
-            break;
-          case LOGGER:
-            formatter = new LoggerSpreadSheetDiffCallback();
-            break;
-          case LOGGER_UNIFIED:
-            formatter = new LoggerUnifiedDiffSpreadSheetDiffCallback();
-            break;
-          default:
-            throw new IllegalArgumentException("Unknown diff formatter");
+        if (Flags.SERVER != null) {
+          ret = DiffServer.run(Flags.SERVER);
+        } else if (Flags.BATCH) {
+          ret = BatchDiff.run((Flags.BATCH_MANIFEST != null)
+              ? BatchDiff.pairsOfManifest(Flags.BATCH_MANIFEST)
+              : BatchDiff.pairsOfDirectories(WORKBOOK1, WORKBOOK2));
+        } else {
+          OutputSink out =
+              (Flags.OUTPUT != null) ? OutputSink.toFile(Flags.OUTPUT) : OutputSink.toStdout();
+          try {
+            ret = doDiff(WORKBOOK1, WORKBOOK2, out);
+          } finally {
+            out.close();
+          }
         }
-        ret = doDiff(formatter);
       }
     } catch (Exception e) {
       if (Flags.DEBUG) {
@@ -55,74 +80,271 @@ public class SpreadSheetDiffer {
         System.err.println("Diff failed: " + e.getMessage());
       }
     }
-    return 0;
+    return ret;
+  }
+
+  /**
+   * Diffs the files with the formatter and the options of the flags, printing to out.
+   */
+  static int doDiff(File file1, File file2, OutputSink out) throws Exception {
+    AsyncSpreadSheetDiffCallback asyncFormatter = null;
+    try {
+      SpreadSheetDiffCallback formatter;
+      if (Flags.QUIET) {
+        // only the exit status matters, the options stop at the first difference
+        formatter = new SpreadSheetDiffCallbackBase() {};
+      } else {
+        formatter = newFormatter(out);
+        if (Flags.ASYNC) {
+          formatter = asyncFormatter = new AsyncSpreadSheetDiffCallback(formatter);
+        }
+      }
+      return new SpreadSheetDiffer().diff(file1, file2, DiffOptions.fromFlags(), formatter);
+    } finally {
+      if (asyncFormatter != null) {
+        asyncFormatter.close();
+      }
+    }
+  }
+
+  private static SpreadSheetDiffCallback newFormatter(OutputSink out) {
+    switch (Flags.DIFF_FORMAT) {
+      case EXCEL_CMP:
+        return new StdoutSpreadSheetDiffCallback(out);
+      case UNIFIED:
+        return new UnifiedDiffSpreadSheetDiffCallback(out);
+      case LOGGER:
+        return new LoggerSpreadSheetDiffCallback();
+      case LOGGER_UNIFIED:
+        return new LoggerUnifiedDiffSpreadSheetDiffCallback();
+      default:
+        throw new IllegalArgumentException("Unknown diff formatter");
+    }
   }
 
+  /**
+   * Diffs the workbooks of the flags with their options.
+   */
   public static int doDiff(SpreadSheetDiffCallback diffCallback) throws Exception {
-    if (!verifyFile(WORKBOOK1) || !verifyFile(WORKBOOK2)) {
+    return new SpreadSheetDiffer().diff(WORKBOOK1, WORKBOOK2, DiffOptions.fromFlags(),
+        diffCallback);
+  }
+
+  /**
+   * Diffs the workbooks with the options, reporting the differences to the callback until it is
+   * done. Returns 0 if they match, 1 if they differ, -1 if either one is missing. Only reads the
+   * files and the options, so that any number of diffs may run at the same time.
+   */
+  public int diff(final File file1, final File file2, final DiffOptions options,
+      SpreadSheetDiffCallback diffCallback) throws Exception {
+    if (options.getMaxDiffs() != null) {
+      diffCallback = new MaxDiffsSpreadSheetDiffCallback(diffCallback, options.getMaxDiffs());
+    }
+    if (options.isIgnoreFormulas()) {
+      diffCallback = new ValuesOnlySpreadSheetDiffCallback(diffCallback);
+    }
+    if (CHECK_CELL_ORDER) {
+      diffCallback = new CellOrderCheckingSpreadSheetDiffCallback(diffCallback,
+          options.isAlignRows(), options.isAlignColumns(), options.hasKeyColumns());
+    }
+    if (!verifyFile(file1) || !verifyFile(file2)) {
       return -1;
     }
 
-    ISpreadSheet ss1 = isDevNull(WORKBOOK1) ? emptySpreadSheet() : loadSpreadSheet(WORKBOOK1);
-    ISpreadSheet ss2 = isDevNull(WORKBOOK2) ? emptySpreadSheet() : loadSpreadSheet(WORKBOOK2);
+    UnchangedSheets unchanged = findUnchangedSheets(file1, file2, options);
+    if (unchanged.all()) {
+      diffCallback.init(file1.getPath(), file2.getPath());
+      diffCallback.reportWorkbooksDiffer(false);
+      diffCallback.finish();
+      return 0;
+    }
+
+    DiffCache cache = (options.getCacheDir() != null) && !isDevNull(file1) && !isDevNull(file2)
+        ? new DiffCache(options.getCacheDir(), options.getCacheMaxBytes()) : null;
+    WorkbookIndex index1 = null;
+    WorkbookIndex index2 = null;
+    if (cache != null) {
+      index1 = cache.load(file1, indexOptions(options.getIgnores1(), options));
+      index2 = cache.load(file2, indexOptions(options.getIgnores2(), options));
+      if ((index1 != null) && (index2 != null) && index1.sameAs(index2)) {
+        diffCallback.init(file1.getPath(), file2.getPath());
+        diffCallback.reportWorkbooksDiffer(false);
+        diffCallback.finish();
+        return 0;
+      }
+      if ((index1 != null) && !options.isAlignRows() && !options.isAlignColumns()
+          && !options.hasKeyColumns()) {
+        return diffHashedRows(file1, file2, index1, unchanged, options, diffCallback);
+      }
+    }
 
-    ISpreadSheetIterator ssi1 = isDevNull(WORKBOOK1) ?
-        emptySpreadSheetIterator() : new SpreadSheetIterator(ss1, Flags.WORKBOOK_IGNORES1);
-    ISpreadSheetIterator ssi2 = isDevNull(WORKBOOK2) ?
-        emptySpreadSheetIterator() : new SpreadSheetIterator(ss2, Flags.WORKBOOK_IGNORES2);
+    // the two workbooks share nothing, load the second one while the first one is being loaded.
+    // If loading the first one fails, the second one is closed by whichever thread claims it last.
+    final AtomicBoolean ss2Claimed = new AtomicBoolean();
+    FutureTask<ISpreadSheet> ss2Loader = new FutureTask<ISpreadSheet>(
+        new Callable<ISpreadSheet>() {
+          @Override
+          public ISpreadSheet call() throws Exception {
+            ISpreadSheet ss2 = loadSpreadSheetOrEmpty(file2, options);
+            if (!ss2Claimed.compareAndSet(false, true)) {
+              ss2.close();
+            }
+            return ss2;
+          }
+        });
+    Thread ss2LoaderThread = new Thread(ss2Loader, "load-workbook2");
+    ss2LoaderThread.setDaemon(true);
+    ss2LoaderThread.start();
+    ISpreadSheet ss1;
+    try {
+      ss1 = loadSpreadSheetOrEmpty(file1, options);
+    } catch (Exception e) {
+      if (!ss2Claimed.compareAndSet(false, true)) {
+        closeLoaded(ss2Loader);
+      }
+      throw e;
+    }
+    ISpreadSheet ss2;
+    try {
+      ss2 = getResult(ss2Loader);
+    } catch (Exception e) {
+      ss1.close();
+      throw e;
+    }
+    try {
+      return diffSpreadSheets(file1, file2, ss1, ss2, unchanged, cache, index1, index2, options,
+          diffCallback);
+    } finally {
+      try {
+        ss1.close();
+      } finally {
+        ss2.close();
+      }
+    }
+  }
 
-    diffCallback.init(WORKBOOK1.getPath(), WORKBOOK2.getPath());
-    boolean isDiff = false;
-    CellPos c1 = null, c2 = null;
-    while (true) {
-      if ((c1 == null) && ssi1.hasNext())
-        c1 = ssi1.next();
-      if ((c2 == null) && ssi2.hasNext())
-        c2 = ssi2.next();
-
-      if ((c1 != null) && (c2 != null)) {
-        int c = c1.compareCellPositions(c2);
-        if (c == 0) {
-          if (!c1.getCellValue().compare(c2.getCellValue())) {
-            isDiff = true;
-            diffCallback.reportDiffCell(c1, c2);
+  /**
+   * Diffs the second workbook against the first one whose rows are hashed in its cached index,
+   * see {@link HashedRowsDiff}. The first workbook is only loaded if any row changed, and only
+   * its sheets with changed rows are read.
+   */
+  private static int diffHashedRows(File file1, File file2, WorkbookIndex index1,
+      UnchangedSheets unchanged, DiffOptions options, SpreadSheetDiffCallback diffCallback)
+      throws Exception {
+    ISpreadSheet ss2 = loadSpreadSheetOrEmpty(file2, options);
+    try {
+      long startNanos = System.nanoTime();
+      HashedRowsDiff hashedRows = HashedRowsDiff.read(
+          new SpreadSheetCursor(unchanged.skip(ss2.getSheetIterator()), options.getIgnores2()),
+          index1, unchanged, !options.isIgnoreFormulas(), Runtime.getRuntime().maxMemory() / 4);
+      try {
+        if (options.isDebug()) {
+          System.err.println("Hashed the rows of " + file2 + " in "
+              + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos) + " ms");
+        }
+        diffCallback.init(file1.getPath(), file2.getPath());
+        boolean isDiff = false;
+        if (hashedRows.isSame()) {
+          if (options.isDebug()) {
+            System.err.println("Not loading " + file1 + ", its rows hash the same in " + file2);
           }
-          c1 = c2 = null;
-        } else if (c < 0) {
-          isDiff = true;
-          diffCallback.reportExtraCell(true, c1);
-          c1 = null;
         } else {
-          isDiff = true;
-          diffCallback.reportExtraCell(false, c2);
-          c2 = null;
+          ISpreadSheet ss1 = loadSpreadSheetOrEmpty(file1, options);
+          try {
+            ISpreadSheetCursor cursor1 = new SpreadSheetCursor(
+                hashedRows.changedSheets1(ss1.getSheetIterator()), options.getIgnores1(),
+                hashedRows.sameRows());
+            isDiff = diffCells(cursor1, hashedRows.changedRows2(),
+                new CellValueComparator(options.isIgnoreFormulas(),
+                    options.getNumericPrecision()),
+                diffCallback);
+          } finally {
+            ss1.close();
+          }
+        }
+        return finishDiff(isDiff, index1.hasMacro(), ss2.hasMacro(), diffCallback);
+      } finally {
+        hashedRows.delete();
+      }
+    } finally {
+      ss2.close();
+    }
+  }
+
+  /**
+   * Diffs the loaded workbooks, what diff() does past loading them.
+   */
+  private static int diffSpreadSheets(File file1, File file2, ISpreadSheet ss1, ISpreadSheet ss2,
+      UnchangedSheets unchanged, @Nullable DiffCache cache, @Nullable WorkbookIndex index1,
+      @Nullable WorkbookIndex index2, DiffOptions options, SpreadSheetDiffCallback diffCallback)
+      throws Exception {
+    if (options.hasKeyColumns()
+        && (!ss1.supportsRereadingSheets() || !ss2.supportsRereadingSheets())) {
+      throw new IllegalArgumentException(
+          "--key_columns needs workbooks whose sheets can be read more than once");
+    }
+
+    // the first workbook is taken to be the baseline, which is cached: it is indexed up front to
+    // align the cells, and as it is diffed otherwise
+    CellAlignment alignment = null;
+    WorkbookIndex.Builder indexing1 = null;
+    if (options.isAlignRows() || options.isAlignColumns()) {
+      index1 = indexOf(cache, file1, ss1, options.getIgnores1(), index1, options);
+      index2 = indexOf(null, file2, ss2, options.getIgnores2(), index2, options);
+      if ((index1 != null) && (index2 != null)) {
+        unchanged = unchanged.plus(index1.sameSheets(index2));
+        long startNanos = System.nanoTime();
+        alignment = CellAlignment.align(index1, index2, options.isAlignRows(),
+            options.isAlignColumns());
+        if (options.isDebug()) {
+          System.err.println("Aligned cells in "
+              + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos) + " ms");
         }
       } else {
-        break;
+        // the cells are still diffed, by position, which must not pass for an aligned diff
+        System.err.println("Warning: not aligning "
+            + (options.isAlignRows() ? (options.isAlignColumns() ? "rows and columns" : "rows")
+                : "columns")
+            + ", the sheets of " + ((index1 == null) ? file1 : file2)
+            + " can't be read twice, diff it without --streaming");
       }
+    } else if ((cache != null) && !options.hasKeyColumns()) {
+      indexing1 = new WorkbookIndex.Builder(!options.isIgnoreFormulas());
     }
-    if ((c1 != null) && (c2 == null)) {
-      do {
-        isDiff = true;
-        diffCallback.reportExtraCell(true, c1);
-        c1 = ssi1.hasNext() ? ssi1.next() : null;
-      } while (c1 != null);
-    } else if ((c1 == null) && (c2 != null)) {
-      do {
-        isDiff = true;
-        diffCallback.reportExtraCell(false, c2);
-        c2 = ssi2.hasNext() ? ssi2.next() : null;
-      } while (c2 != null);
+
+    diffCallback.init(file1.getPath(), file2.getPath());
+    CellValueComparator comparator =
+        new CellValueComparator(options.isIgnoreFormulas(), options.getNumericPrecision());
+    boolean isDiff;
+    if (options.hasKeyColumns()) {
+      isDiff = diffSheetsByKey(ss1, ss2, unchanged, alignment, options, comparator,
+          diffCallback);
+    } else if (options.isParallel() && ss1.supportsConcurrentSheets()
+        && ss2.supportsConcurrentSheets()) {
+      isDiff = diffSheetsInParallel(ss1, ss2, unchanged, alignment, indexing1, options,
+          comparator, diffCallback);
+    } else {
+      isDiff = diffSheets(ss1.getSheetIterator(), ss2.getSheetIterator(), unchanged, alignment,
+          indexing1, options, comparator, diffCallback);
     }
-    if ((c1 != null) || (c2 != null)) {
-      throw new IllegalStateException("Something wrong");
+
+    // a diff stopped early didn't read all of the first workbook
+    if ((indexing1 != null) && !diffCallback.isDone() && indexing1.isComplete()) {
+      storeIndex(cache, file1, options.getIgnores1(), indexing1.build(ss1.hasMacro()), options);
     }
+    return finishDiff(isDiff, ss1.hasMacro(), ss2.hasMacro(), diffCallback);
+  }
 
-    Boolean hasMacro1 = ss1.hasMacro();
-    Boolean hasMacro2 = ss2.hasMacro();
-    if ((hasMacro1 != null) && (hasMacro2 != null) && (hasMacro1 != hasMacro2)) {
-      isDiff = true;
-      diffCallback.reportMacroOnlyIn(hasMacro1);
+  /**
+   * Reports whether the workbooks differ, their macros included, and finishes the diff.
+   */
+  private static int finishDiff(boolean isDiff, @Nullable Boolean hasMacro1,
+      @Nullable Boolean hasMacro2, SpreadSheetDiffCallback diffCallback) {
+    if (!diffCallback.isDone()) {
+      if ((hasMacro1 != null) && (hasMacro2 != null) && (hasMacro1 != hasMacro2)) {
+        isDiff = true;
+        diffCallback.reportMacroOnlyIn(hasMacro1);
+      }
     }
 
     diffCallback.reportWorkbooksDiffer(isDiff);
@@ -131,6 +353,344 @@ public class SpreadSheetDiffer {
     return isDiff ? 1 : 0;
   }
 
+  /**
+   * Diffs the cells of the sheets with diffCells(), the unchanged ones left out, indexing those of
+   * the first workbook, the unchanged ones included, if indexing1 is not null.
+   */
+  private static boolean diffSheets(Iterator<ISheet> sheets1, Iterator<ISheet> sheets2,
+      UnchangedSheets unchanged, @Nullable CellAlignment alignment,
+      @Nullable WorkbookIndex.Builder indexing1, DiffOptions options,
+      CellValueComparator comparator, SpreadSheetDiffCallback diffCallback) {
+    ISpreadSheetCursor cursor1;
+    if (indexing1 != null) {
+      cursor1 = indexing1.indexing(newCursor(sheets1, true, alignment, options), unchanged);
+    } else {
+      cursor1 = newCursor(unchanged.skip(sheets1), true, alignment, options);
+    }
+    ISpreadSheetCursor cursor2 = newCursor(unchanged.skip(sheets2), false, alignment, options);
+    return diffCells(cursor1, cursor2, comparator, diffCallback);
+  }
+
+  /**
+   * Merges the cells of both cursors in {sheet, row, column} order, reporting differing and
+   * extra cells to the callback until it is done. Returns true if any difference was found. A
+   * CellPos is only created for the cells which are reported.
+   */
+  static boolean diffCells(ISpreadSheetCursor cursor1, ISpreadSheetCursor cursor2,
+      CellValueComparator comparator, SpreadSheetDiffCallback diffCallback) {
+    boolean isDiff = false;
+    int numSameCells = 0;
+    boolean hasCell1 = cursor1.advance();
+    boolean hasCell2 = cursor2.advance();
+    while (hasCell1 && hasCell2) {
+      int c = compareCellPositions(cursor1, cursor2);
+      if (c == 0) {
+        if (!comparator.equal(cursor1.getCellValue(), cursor2.getCellValue())) {
+          isDiff = true;
+          diffCallback.reportDiffCell(cursor1.toCellPos(), cursor2.toCellPos());
+          if (diffCallback.isDone()) {
+            return true;
+          }
+        } else if (((++numSameCells & (SAME_CELLS_PER_DONE_CHECK - 1)) == 0)
+            && diffCallback.isDone()) {
+          // a diff cancelled from another thread stops even where the cells are the same
+          return isDiff;
+        }
+        hasCell1 = cursor1.advance();
+        hasCell2 = cursor2.advance();
+      } else if (c < 0) {
+        isDiff = true;
+        diffCallback.reportExtraCell(true, cursor1.toCellPos());
+        if (diffCallback.isDone()) {
+          return true;
+        }
+        hasCell1 = cursor1.advance();
+      } else {
+        isDiff = true;
+        diffCallback.reportExtraCell(false, cursor2.toCellPos());
+        if (diffCallback.isDone()) {
+          return true;
+        }
+        hasCell2 = cursor2.advance();
+      }
+    }
+    while (hasCell1) {
+      isDiff = true;
+      diffCallback.reportExtraCell(true, cursor1.toCellPos());
+      if (diffCallback.isDone()) {
+        return true;
+      }
+      hasCell1 = cursor1.advance();
+    }
+    while (hasCell2) {
+      isDiff = true;
+      diffCallback.reportExtraCell(false, cursor2.toCellPos());
+      if (diffCallback.isDone()) {
+        return true;
+      }
+      hasCell2 = cursor2.advance();
+    }
+    return isDiff;
+  }
+
+  /**
+   * Returns a cursor over the cells of a workbook, walking the cells by aligned position if they
+   * are aligned, the rows / columns matched with the same ones in the other one left out.
+   */
+  private static ISpreadSheetCursor newCursor(Iterator<ISheet> sheetIterator,
+      boolean inFirstSpreadSheet, @Nullable CellAlignment alignment, DiffOptions options) {
+    WorkbookIgnores ignores = inFirstSpreadSheet ? options.getIgnores1() : options.getIgnores2();
+    if (alignment == null) {
+      return new SpreadSheetCursor(sheetIterator, ignores);
+    }
+    return alignment.alignedCursor(new SpreadSheetCursor(sheetIterator, ignores,
+        alignment.matchedRows(inFirstSpreadSheet), alignment.matchedColumns(inFirstSpreadSheet)),
+        inFirstSpreadSheet);
+  }
+
+  /**
+   * Same as CellPos.compareCellPositions(), for the current cells of two cursors.
+   */
+  private static int compareCellPositions(ISpreadSheetCursor cursor1,
+      ISpreadSheetCursor cursor2) {
+    int c = cursor1.getSheetIndex() - cursor2.getSheetIndex();
+    if (c == 0) {
+      c = cursor1.getRowIndex() - cursor2.getRowIndex();
+      if (c == 0) {
+        c = cursor1.getColumnIndex() - cursor2.getColumnIndex();
+      }
+    }
+    return c;
+  }
+
+  /**
+   * Diffs each pair of sheets with the same index on its own thread. The differences of each sheet
+   * go through a bounded queue, replayed to the callback by this thread in sheet order, so the
+   * callback sees exactly the same sequence of calls as with a single thread. The sheet being
+   * replayed streams through its queue, while the sheets after it stop when their queue is full,
+   * and only a few sheets more than there are threads are diffed ahead. Each sheet stops after
+   * max diffs differences, and all of them stop once the callback is done.
+   */
+  private static boolean diffSheetsInParallel(ISpreadSheet ss1, ISpreadSheet ss2,
+      UnchangedSheets unchanged, @Nullable final CellAlignment alignment,
+      @Nullable final WorkbookIndex.Builder indexing1, final DiffOptions options,
+      final CellValueComparator comparator, SpreadSheetDiffCallback diffCallback)
+      throws Exception {
+    // the same sheets are skipped in both, the others stay paired by position
+    final List<ISheet> sheets1 = toList(unchanged.skip(ss1.getSheetIterator()));
+    final List<ISheet> sheets2 = toList(unchanged.skip(ss2.getSheetIterator()));
+    int numSheets = Math.max(sheets1.size(), sheets2.size());
+    int numThreads = Math.min(numSheets, Runtime.getRuntime().availableProcessors());
+    if (numThreads <= 1) {
+      return diffSheets(ss1.getSheetIterator(), ss2.getSheetIterator(), unchanged, alignment,
+          indexing1, options, comparator, diffCallback);
+    }
+    int numSheetsAhead = 2 * numThreads;
+    final int maxDiffs =
+        (options.getMaxDiffs() != null) ? options.getMaxDiffs() : Integer.MAX_VALUE;
+    final AtomicBoolean cancelled = new AtomicBoolean();
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    try {
+      Future<?> unchangedIndexed = null;
+      if ((indexing1 != null) && (unchanged.size() > 0)) {
+        // the unchanged sheets of the first workbook are only read to be indexed
+        final ISpreadSheetCursor unchanged1 = indexing1.indexing(new SpreadSheetCursor(
+            unchanged.only(ss1.getSheetIterator()), options.getIgnores1()), UnchangedSheets.NONE);
+        unchangedIndexed = executor.submit(new Runnable() {
+          @Override
+          public void run() {
+            while (unchanged1.advance()) {
+            }
+          }
+        });
+      }
+      List<SheetDiffQueue> queues = new ArrayList<SheetDiffQueue>();
+      List<Future<Boolean>> sheetDiffs = new ArrayList<Future<Boolean>>();
+      boolean isDiff = false;
+      for (int i = 0; i < numSheets; i++) {
+        // sheets are submitted in order, so the sheet being replayed always has a thread
+        for (int j = sheetDiffs.size(); (j < numSheets) && (j <= i + numSheetsAhead); j++) {
+          final int sheetIdx = j;
+          final SheetDiffQueue queue = new SheetDiffQueue(maxDiffs, cancelled);
+          queues.add(queue);
+          sheetDiffs.add(executor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws InterruptedException {
+              try {
+                return diffSheets(sheetAt(sheets1, sheetIdx), sheetAt(sheets2, sheetIdx),
+                    UnchangedSheets.NONE, alignment, indexing1, options, comparator, queue);
+              } finally {
+                queue.end();
+              }
+            }
+          }));
+        }
+        boolean replayedDiff = queues.get(i).replay(diffCallback);
+        queues.set(i, null);
+        if (diffCallback.isDone()) {
+          return isDiff || replayedDiff;
+        }
+        isDiff |= getResult(sheetDiffs.get(i));
+      }
+      if (unchangedIndexed != null) {
+        getResult(unchangedIndexed);
+      }
+      return isDiff;
+    } finally {
+      cancelled.set(true);
+      // wakes up the threads waiting for room in their queue
+      executor.shutdownNow();
+      // they stop at their next cell, before the workbooks are closed
+      executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+  }
+
+  /**
+   * Diffs each pair of sheets with the same index in turn, the rows of the sheets with key columns
+   * matched by key, see {@link KeyedSheetDiff}, the others by position.
+   */
+  private static boolean diffSheetsByKey(ISpreadSheet ss1, ISpreadSheet ss2,
+      UnchangedSheets unchanged, @Nullable CellAlignment alignment, DiffOptions options,
+      CellValueComparator comparator, SpreadSheetDiffCallback diffCallback) throws IOException {
+    List<ISheet> sheets1 = toList(unchanged.skip(ss1.getSheetIterator()));
+    List<ISheet> sheets2 = toList(unchanged.skip(ss2.getSheetIterator()));
+    int numSheets = Math.max(sheets1.size(), sheets2.size());
+    boolean isDiff = false;
+    for (int i = 0; (i < numSheets) && !diffCallback.isDone(); i++) {
+      int[] keyColumns = (i < sheets1.size()) && (i < sheets2.size())
+          ? options.keyColumnsOf(sheets1.get(i).getName()) : null;
+      if (keyColumns != null) {
+        isDiff |= KeyedSheetDiff.diff(sheets1.get(i), sheets2.get(i), keyColumns, options,
+            comparator, diffCallback);
+      } else {
+        isDiff |= diffSheets(sheetAt(sheets1, i), sheetAt(sheets2, i), UnchangedSheets.NONE,
+            alignment, null, options, comparator, diffCallback);
+      }
+    }
+    return isDiff;
+  }
+
+  /**
+   * Closes the spreadsheet the loader returns once it is loaded, if it loads.
+   */
+  private static void closeLoaded(Future<ISpreadSheet> loader) {
+    try {
+      loader.get().close();
+    } catch (Exception e) {
+      // the load or the close failed, nothing is left open either way
+    }
+  }
+
+  /**
+   * Waits for the result of a task run on another thread, rethrowing whatever it failed with as
+   * if it had been run on this thread.
+   */
+  private static <T> T getResult(Future<T> future) throws Exception {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof Exception) {
+        throw (Exception) e.getCause();
+      } else if (e.getCause() instanceof Error) {
+        throw (Error) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  private static List<ISheet> toList(Iterator<ISheet> sheetIterator) {
+    List<ISheet> sheets = new ArrayList<ISheet>();
+    while (sheetIterator.hasNext()) {
+      sheets.add(sheetIterator.next());
+    }
+    return sheets;
+  }
+
+  /**
+   * Returns an iterator over the sheet at the given index, or over no sheet at all when the
+   * workbook has fewer sheets.
+   */
+  private static Iterator<ISheet> sheetAt(List<ISheet> sheets, int sheetIdx) {
+    if (sheetIdx < sheets.size()) {
+      return Collections.singletonList(sheets.get(sheetIdx)).iterator();
+    }
+    return Collections.<ISheet>emptyList().iterator();
+  }
+
+  /**
+   * Sheets which need not be diffed since their raw bytes are the same in both workbooks. Only
+   * when both workbooks are diffed with the same ignores.
+   */
+  private static UnchangedSheets findUnchangedSheets(File file1, File file2,
+      DiffOptions options) {
+    if (isDevNull(file1) || isDevNull(file2)
+        || !options.getIgnores1().sameAs(options.getIgnores2())) {
+      return UnchangedSheets.NONE;
+    }
+    long startNanos = System.nanoTime();
+    UnchangedSheets unchanged;
+    try {
+      unchanged = UnchangedSheets.find(file1, file2);
+    } catch (IOException e) {
+      // the workbooks are diffed in full, and fail to load if they are broken
+      return UnchangedSheets.NONE;
+    }
+    if (options.isDebug()) {
+      System.err.println((unchanged.all() ? "Workbooks are the same"
+          : ("Skipping " + unchanged.size() + " unchanged sheets")) + ", found in "
+          + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos) + " ms");
+    }
+    return unchanged;
+  }
+
+  /**
+   * What the index of a workbook depends on besides its content, its key in the cache.
+   */
+  private static String indexOptions(WorkbookIgnores ignores, DiffOptions options) {
+    return "formulas=" + !options.isIgnoreFormulas() + "\nstreaming=" + options.isStreaming()
+        + "\nignores=" + ignores.spec();
+  }
+
+  /**
+   * Returns the cached index of the workbook, or indexes it and caches the index if there is a
+   * cache, which is only passed for the first workbook. The workbook is only indexed if its sheets
+   * can be read again to be diffed. Returns null if they can't be.
+   */
+  @Nullable
+  private static WorkbookIndex indexOf(@Nullable DiffCache cache, File file,
+      ISpreadSheet spreadSheet, WorkbookIgnores ignores, @Nullable WorkbookIndex cached,
+      DiffOptions options) {
+    if (cached != null) {
+      return cached;
+    }
+    if (!spreadSheet.supportsRereadingSheets()) {
+      if (options.isDebug()) {
+        System.err.println("Not indexing " + file + ", its sheets can't be read twice");
+      }
+      return null;
+    }
+    long startNanos = System.nanoTime();
+    WorkbookIndex index = WorkbookIndex.build(spreadSheet, ignores, !options.isIgnoreFormulas());
+    if (options.isDebug()) {
+      System.err.println("Indexed " + file + " in "
+          + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos) + " ms");
+    }
+    if (cache != null) {
+      storeIndex(cache, file, ignores, index, options);
+    }
+    return index;
+  }
+
+  private static void storeIndex(DiffCache cache, File file, WorkbookIgnores ignores,
+      WorkbookIndex index, DiffOptions options) {
+    try {
+      cache.store(file, indexOptions(ignores, options), index);
+    } catch (IOException e) {
+      // the index is still used for this diff
+      System.err.println("Failed to cache the index of " + file + ": " + e.getMessage());
+    }
+  }
+
   private static boolean isDevNull(File file) {
     return "/dev/null".equals(file.getAbsolutePath())
         || "\\\\.\\NUL".equals(file.getAbsolutePath());
@@ -155,26 +715,32 @@ public class SpreadSheetDiffer {
     return true;
   }
 
-  private static ISpreadSheet loadSpreadSheet(File file) throws Exception {
-    // assume file is excel by default
-    Exception excelReadException = null;
-    try {
-      Workbook workbook = WorkbookFactory.create(file);
-      return new SpreadSheetExcel(workbook);
-    } catch (Exception e) {
-      excelReadException = e;
+  private static ISpreadSheet loadSpreadSheetOrEmpty(File file, DiffOptions options)
+      throws Exception {
+    if (isDevNull(file)) {
+      return emptySpreadSheet();
+    }
+    long startNanos = System.nanoTime();
+    ISpreadSheet spreadSheet = loadSpreadSheet(file, options.isStreaming());
+    if (options.isDebug()) {
+      System.err.println("Loaded " + file + " in "
+          + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos) + " ms");
+    }
+    return spreadSheet;
+  }
+
+  private static ISpreadSheet loadSpreadSheet(File file, boolean streaming) throws Exception {
+    SpreadSheetFormat format = SpreadSheetFormat.detect(file);
+    if (format == null) {
+      String fileType = file.getName().matches(".*\\.ods.*") ? "ods" : "excel";
+      throw new RuntimeException("Failed to read as " + fileType + " file: " + file,
+          new IllegalArgumentException("Not an xls, xlsx, xlsm or ods file"));
     }
-    Exception odfReadException = null;
     try {
-      SpreadsheetDocument spreadsheetDocument = SpreadsheetDocument.loadDocument(file);
-      return new SpreadSheetOdf(spreadsheetDocument);
+      return format.load(file, streaming);
     } catch (Exception e) {
-      odfReadException = e;
-    }
-    if (file.getName().matches(".*\\.ods.*")) {
-      throw new RuntimeException("Failed to read as ods file: " + file, odfReadException);
-    } else {
-      throw new RuntimeException("Failed to read as excel file: " + file, excelReadException);
+      throw new RuntimeException(
+          "Failed to read as " + format.getDescription() + " file: " + file, e);
     }
   }
 
@@ -185,6 +751,17 @@ public class SpreadSheetDiffer {
         return false;
       }
       @Override
+      public boolean supportsConcurrentSheets() {
+        return true;
+      }
+      @Override
+      public boolean supportsRereadingSheets() {
+        return true;
+      }
+      @Override
+      public void close() {
+      }
+      @Override
       public Iterator<ISheet> getSheetIterator() {
         return new Iterator<ISheet>() {
           @Override
@@ -203,17 +780,91 @@ public class SpreadSheetDiffer {
       }
     };
   }
+}
 
-  private static ISpreadSheetIterator emptySpreadSheetIterator() {
-    return new ISpreadSheetIterator() {
-      @Override
-      public boolean hasNext() {
-        return false;
+
+/**
+ * Passes the differences found in a sheet on another thread to the thread replaying them to the
+ * real callback, through a bounded queue. The sheet stops once it has max diffs differences, or
+ * once the diff is cancelled.
+ */
+class SheetDiffQueue extends SpreadSheetDiffCallbackBase {
+
+  private static final int CAPACITY = 1 << 10;
+  /** Put after the last difference of the sheet. */
+  private static final CellPos[] END = new CellPos[0];
+
+  /** Pairs of {cell in workbook 1, cell in workbook 2}, either one null for extra cells. */
+  private final BlockingQueue<CellPos[]> diffs = new ArrayBlockingQueue<CellPos[]>(CAPACITY);
+  private final int maxDiffs;
+  private final AtomicBoolean cancelled;
+  private int numDiffs;
+  private boolean interrupted;
+
+  SheetDiffQueue(int maxDiffs, AtomicBoolean cancelled) {
+    this.maxDiffs = maxDiffs;
+    this.cancelled = cancelled;
+  }
+
+  @Override
+  public void reportDiffCell(CellPos c1, CellPos c2) {
+    super.reportDiffCell(c1, c2);
+    put(new CellPos[] {c1, c2});
+  }
+
+  @Override
+  public void reportExtraCell(boolean inFirstSpreadSheet, CellPos c) {
+    super.reportExtraCell(inFirstSpreadSheet, c);
+    put(inFirstSpreadSheet ? new CellPos[] {c, null} : new CellPos[] {null, c});
+  }
+
+  @Override
+  public boolean isDone() {
+    return (numDiffs >= maxDiffs) || interrupted || cancelled.get();
+  }
+
+  /**
+   * Waits for room in the queue, gives up if the diff is cancelled meanwhile.
+   */
+  private void put(CellPos[] diff) {
+    numDiffs++;
+    try {
+      diffs.put(diff);
+    } catch (InterruptedException e) {
+      interrupted = true;
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Called by the diffing thread once it is done with the sheet, successfully or not.
+   */
+  void end() throws InterruptedException {
+    if (!interrupted) {
+      diffs.put(END);
+    }
+  }
+
+  /**
+   * Replays the differences as they come until the end of the sheet, or until the callback is
+   * done. Returns true if the sheet has any difference.
+   */
+  boolean replay(SpreadSheetDiffCallback diffCallback) throws InterruptedException {
+    CellPos[] diff;
+    boolean isDiff = false;
+    while ((diff = diffs.take()) != END) {
+      isDiff = true;
+      if (diffCallback.isDone()) {
+        return true;
       }
-      @Override
-      public CellPos next() {
-        throw new IllegalStateException();
+      if ((diff[0] != null) && (diff[1] != null)) {
+        diffCallback.reportDiffCell(diff[0], diff[1]);
+      } else if (diff[0] != null) {
+        diffCallback.reportExtraCell(true, diff[0]);
+      } else {
+        diffCallback.reportExtraCell(false, diff[1]);
       }
-    };
+    }
+    return isDiff;
   }
 }
@@ -1,5 +1,6 @@
 package com.ka.spreadsheet.diff;
 
+import java.io.IOException;
 import java.util.Iterator;
 
 import javax.annotation.Nullable;
@@ -60,6 +61,33 @@ public class SpreadSheetExcel implements ISpreadSheet {
     }
     return null;
   }
+
+  /**
+   * The sheets of a POI workbook share its shared strings, styles and lazily parsed xml, which
+   * POI doesn't make safe to read from several threads.
+   */
+  @Override
+  public boolean supportsConcurrentSheets() {
+    return false;
+  }
+
+  @Override
+  public boolean supportsRereadingSheets() {
+    return true;
+  }
+
+  /**
+   * An xlsx workbook is reverted rather than closed, as closing the package it was opened from
+   * writes it back to the file.
+   */
+  @Override
+  public void close() throws IOException {
+    if (workbook instanceof XSSFWorkbook) {
+      ((XSSFWorkbook) workbook).getPackage().revert();
+    } else {
+      workbook.close();
+    }
+  }
 }
 
 
@@ -83,6 +111,56 @@ class SheetExcel implements ISheet {
     return sheetIdx;
   }
 
+  @Override
+  public ICellCursor getCellCursor(@Nullable SheetIgnores ignores) {
+    final Iterator<Row> rowIterator = sheet.rowIterator();
+    return new ICellCursor() {
+
+      private Row row;
+      private Iterator<Cell> cellIterator;
+      private Cell cell;
+
+      @Override
+      public boolean nextRow() {
+        if (!rowIterator.hasNext()) {
+          return false;
+        }
+        row = rowIterator.next();
+        cellIterator = row.cellIterator();
+        return true;
+      }
+
+      @Override
+      public int getRowIndex() {
+        return row.getRowNum();
+      }
+
+      @Override
+      public boolean nextCell() {
+        if (!cellIterator.hasNext()) {
+          return false;
+        }
+        cell = cellIterator.next();
+        return true;
+      }
+
+      @Override
+      public int getColumnIndex() {
+        return cell.getColumnIndex();
+      }
+
+      @Override
+      public CellValue getValue() {
+        return CellExcel.valueOf(cell);
+      }
+
+      @Override
+      public ICell toCell() {
+        return new CellExcel(cell);
+      }
+    };
+  }
+
   @Override
   public Iterator<IRow> getRowIterator() {
     final Iterator<Row> rowIterator = sheet.rowIterator();
@@ -164,9 +242,12 @@ class CellExcel implements ICell {
 
   @Override
   public CellValue getValue() {
+    return valueOf(cell);
+  }
+
+  static CellValue valueOf(Cell cell) {
     boolean hasFormula = false;
     String formula = null;
-    Object value = null;
     int cellType = cell.getCellType();
     if (cellType == Cell.CELL_TYPE_FORMULA) {
       hasFormula = true;
@@ -175,18 +256,13 @@ class CellExcel implements ICell {
     }
     switch (cellType) {
       case Cell.CELL_TYPE_NUMERIC:
-        value = cell.getNumericCellValue();
-        break;
+        return CellValue.ofNumber(hasFormula, formula, cell.getNumericCellValue());
       case Cell.CELL_TYPE_BOOLEAN:
-        value = cell.getBooleanCellValue();
-        break;
+        return CellValue.ofBoolean(hasFormula, formula, cell.getBooleanCellValue());
       case Cell.CELL_TYPE_ERROR:
-        value = String.valueOf(cell.getErrorCellValue());
-        break;
+        return CellValue.ofString(hasFormula, formula, String.valueOf(cell.getErrorCellValue()));
       default:
-        value = cell.getStringCellValue();
-        break;
+        return CellValue.ofString(hasFormula, formula, cell.getStringCellValue());
     }
-    return new CellValue(hasFormula, formula, value);
   }
 }
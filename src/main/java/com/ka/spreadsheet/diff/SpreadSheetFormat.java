@@ -0,0 +1,218 @@
+package com.ka.spreadsheet.diff;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import javax.annotation.Nullable;
+
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.poifs.filesystem.NPOIFSFileSystem;
+import org.apache.poi.ss.usermodel.WorkbookFactory;
+import org.odftoolkit.simple.SpreadsheetDocument;
+
+/**
+ * Spreadsheet file formats, told apart by their content (file signature and zip entries) rather
+ * than by their extension, each with the readers to load it with. Supporting a new format only
+ * takes a new constant.
+ */
+enum SpreadSheetFormat {
+
+  XLS("excel") {
+    @Override
+    boolean matches(FileHeader header) {
+      return header.isOle2();
+    }
+
+    @Override
+    ISpreadSheet load(File file, boolean streaming) throws Exception {
+      if (streaming) {
+        NPOIFSFileSystem fs = new NPOIFSFileSystem(file, true);
+        try {
+          return new SpreadSheetXlsStreaming(fs);
+        } catch (Exception e) {
+          fs.close();
+          throw e;
+        }
+      }
+      return new SpreadSheetExcel(WorkbookFactory.create(file));
+    }
+  },
+
+  XLSX("excel") {
+    @Override
+    boolean matches(FileHeader header) {
+      return header.hasZipEntry("[Content_Types].xml");
+    }
+
+    @Override
+    ISpreadSheet load(File file, boolean streaming) throws Exception {
+      if (streaming) {
+        OPCPackage pkg = OPCPackage.open(file, PackageAccess.READ);
+        try {
+          return new SpreadSheetXlsxStreaming(pkg);
+        } catch (Exception e) {
+          pkg.revert();
+          throw e;
+        }
+      }
+      return new SpreadSheetExcel(WorkbookFactory.create(file));
+    }
+  },
+
+  ODS("ods") {
+    @Override
+    boolean matches(FileHeader header) {
+      return header.hasZipEntry("content.xml") && ((header.getOdfMimetype() == null)
+          || header.getOdfMimetype().startsWith("application/vnd.oasis.opendocument.spreadsheet"));
+    }
+
+    @Override
+    ISpreadSheet load(File file, boolean streaming) throws Exception {
+      if (streaming) {
+        ZipFile zipFile = new ZipFile(file);
+        try {
+          return new SpreadSheetOdsStreaming(zipFile);
+        } catch (Exception e) {
+          zipFile.close();
+          throw e;
+        }
+      }
+      return new SpreadSheetOdf(SpreadsheetDocument.loadDocument(file));
+    }
+  };
+
+  private final String description;
+
+  SpreadSheetFormat(String description) {
+    this.description = description;
+  }
+
+  /**
+   * Name of the format for error messages.
+   */
+  String getDescription() {
+    return description;
+  }
+
+  abstract boolean matches(FileHeader header);
+
+  /**
+   * Opens the file with the reader of the format, the caller closes the spreadsheet. Nothing is
+   * left open if it throws.
+   */
+  abstract ISpreadSheet load(File file, boolean streaming) throws Exception;
+
+  /**
+   * Returns the format of the file, or null if it isn't one of the supported formats.
+   */
+  @Nullable
+  static SpreadSheetFormat detect(File file) throws IOException {
+    FileHeader header = FileHeader.read(file);
+    for (SpreadSheetFormat format : values()) {
+      if (format.matches(header)) {
+        return format;
+      }
+    }
+    return null;
+  }
+}
+
+
+/**
+ * What is needed to tell spreadsheet formats apart: the first bytes of the file and, for zip
+ * files, the entry names from the central directory plus the ODF mimetype entry.
+ */
+class FileHeader {
+
+  private static final byte[] OLE2_SIGNATURE =
+      {(byte) 0xD0, (byte) 0xCF, 0x11, (byte) 0xE0, (byte) 0xA1, (byte) 0xB1, 0x1A, (byte) 0xE1};
+  private static final byte[] ZIP_SIGNATURE = {'P', 'K', 3, 4};
+  private static final int MAX_MIMETYPE_LENGTH = 256;
+
+  private final byte[] signature;
+  private final Set<String> zipEntryNames;
+  private final String odfMimetype;
+
+  private FileHeader(byte[] signature, Set<String> zipEntryNames, String odfMimetype) {
+    this.signature = signature;
+    this.zipEntryNames = zipEntryNames;
+    this.odfMimetype = odfMimetype;
+  }
+
+  boolean isOle2() {
+    return Arrays.equals(signature, OLE2_SIGNATURE);
+  }
+
+  boolean hasZipEntry(String name) {
+    return zipEntryNames.contains(name);
+  }
+
+  @Nullable
+  String getOdfMimetype() {
+    return odfMimetype;
+  }
+
+  static FileHeader read(File file) throws IOException {
+    byte[] signature = new byte[OLE2_SIGNATURE.length];
+    InputStream in = new FileInputStream(file);
+    try {
+      int len = 0;
+      int read;
+      while ((len < signature.length)
+          && ((read = in.read(signature, len, signature.length - len)) != -1)) {
+        len += read;
+      }
+    } finally {
+      in.close();
+    }
+    Set<String> zipEntryNames = new HashSet<String>();
+    String odfMimetype = null;
+    if (Arrays.equals(Arrays.copyOf(signature, ZIP_SIGNATURE.length), ZIP_SIGNATURE)) {
+      ZipFile zipFile;
+      try {
+        zipFile = new ZipFile(file);
+      } catch (IOException e) {
+        // corrupt zip, no entries
+        return new FileHeader(signature, zipEntryNames, null);
+      }
+      try {
+        Enumeration<? extends ZipEntry> entries = zipFile.entries();
+        while (entries.hasMoreElements()) {
+          zipEntryNames.add(entries.nextElement().getName());
+        }
+        odfMimetype = readMimetype(zipFile);
+      } finally {
+        zipFile.close();
+      }
+    }
+    return new FileHeader(signature, zipEntryNames, odfMimetype);
+  }
+
+  @Nullable
+  static String readMimetype(ZipFile zipFile) throws IOException {
+    ZipEntry entry = zipFile.getEntry("mimetype");
+    if (entry == null) {
+      return null;
+    }
+    InputStream in = zipFile.getInputStream(entry);
+    try {
+      StringBuilder mimetype = new StringBuilder();
+      int c;
+      while (((c = in.read()) != -1) && (mimetype.length() < MAX_MIMETYPE_LENGTH)) {
+        mimetype.append((char) c);
+      }
+      return mimetype.toString().trim();
+    } finally {
+      in.close();
+    }
+  }
+}
@@ -2,73 +2,36 @@ package com.ka.spreadsheet.diff;
 
 import java.util.Iterator;
 
+/**
+ * {@link ISpreadSheetIterator} on top of a {@link SpreadSheetCursor}, allocating a CellPos for
+ * every cell.
+ */
 public class SpreadSheetIterator implements ISpreadSheetIterator {
 
-  private final Iterator<ISheet> sheetIterator;
-  private ISheet sheet;
-  private SheetIgnores currSheetIgnores;
-  private Iterator<IRow> rows;
-  private Iterator<ICell> cells;
-
+  private final SpreadSheetCursor cursor;
   private boolean seenNext;
-  private ICell nextCell;
-  private final WorkbookIgnores workbookIgnores;
+  private boolean hasNext;
 
   SpreadSheetIterator(ISpreadSheet spreadSheet, WorkbookIgnores workbookIgnores) {
-    this.workbookIgnores = workbookIgnores;
-    this.sheetIterator = spreadSheet.getSheetIterator();
+    this(spreadSheet.getSheetIterator(), workbookIgnores);
+  }
+
+  SpreadSheetIterator(Iterator<ISheet> sheetIterator, WorkbookIgnores workbookIgnores) {
+    this.cursor = new SpreadSheetCursor(sheetIterator, workbookIgnores);
   }
 
   @Override
   public boolean hasNext() {
     if (!seenNext) {
-      nextCell = null;
       seenNext = true;
-      while (nextCell == null) {
-        if ((cells != null) && (cells.hasNext())) {
-          ICell cell = cells.next();
-          if (!ignoreCol(cell) && !ignoreCell(cell)) {
-            nextCell = cell;
-          }
-        } else if ((rows != null) && (rows.hasNext())) {
-          IRow row = rows.next();
-          if (!ignoreRow(row)) {
-            cells = row.getCellIterator();
-          }
-        } else if (sheetIterator.hasNext()) {
-          sheet = sheetIterator.next();
-          currSheetIgnores = workbookIgnores.fetchSheetIgnores(sheet.getName());
-          if (!ignoreSheet()) {
-            rows = sheet.getRowIterator();
-          }
-        } else {
-          break;
-        }
-      }
+      hasNext = cursor.advance();
     }
-    return nextCell != null;
-  }
-
-  private boolean ignoreSheet() {
-    return (currSheetIgnores != null) && currSheetIgnores.isWholeSheetIgnored();
-  }
-
-  private boolean ignoreRow(IRow row) {
-    return (currSheetIgnores != null) && (currSheetIgnores.isRowIgnored(row.getRowIndex()));
-  }
-
-  private boolean ignoreCol(ICell cell) {
-    return (currSheetIgnores != null) && (currSheetIgnores.isColIgnored(cell.getColumnIndex()));
-  }
-
-  private boolean ignoreCell(ICell cell) {
-    return (currSheetIgnores != null)
-        && (currSheetIgnores.isCellIgnored(cell.getRowIndex(), cell.getColumnIndex()));
+    return hasNext;
   }
 
   @Override
   public CellPos next() {
     seenNext = false;
-    return new CellPos(sheet, nextCell);
+    return cursor.toCellPos();
   }
 }
@@ -4,10 +4,12 @@ import java.util.Iterator;
 
 import javax.annotation.Nullable;
 
+import org.odftoolkit.odfdom.dom.element.table.TableTableCellElementBase;
 import org.odftoolkit.simple.SpreadsheetDocument;
 import org.odftoolkit.simple.table.Cell;
 import org.odftoolkit.simple.table.Row;
 import org.odftoolkit.simple.table.Table;
+import org.w3c.dom.Node;
 
 public class SpreadSheetOdf implements ISpreadSheet {
 
@@ -48,6 +50,27 @@ public class SpreadSheetOdf implements ISpreadSheet {
   public Boolean hasMacro() {
     return null;
   }
+
+  /**
+   * All the sheets share a single ODF DOM, which isn't safe to read from several threads.
+   */
+  @Override
+  public boolean supportsConcurrentSheets() {
+    return false;
+  }
+
+  /**
+   * The DOM stays loaded, its rows are walked again from the start of the table.
+   */
+  @Override
+  public boolean supportsRereadingSheets() {
+    return true;
+  }
+
+  @Override
+  public void close() {
+    spreadsheetDocument.close();
+  }
 }
 
 
@@ -71,6 +94,90 @@ class SheetOdf implements ISheet {
     return sheetIdx;
   }
 
+  /**
+   * Row and column indexes are counted here rather than asked to simple-odf, which finds them by
+   * walking the table from its start, for each cell of a row to count its cells. Its row iterator
+   * gives a row per index, repeated rows and header rows included, same as Row.getRowIndex(), and
+   * the cells of a row are walked in the DOM, a cell element standing for as many columns as it
+   * is repeated.
+   */
+  @Override
+  public ICellCursor getCellCursor(@Nullable SheetIgnores ignores) {
+    final Iterator<Row> rowIterator = table.getRowIterator();
+    return new ICellCursor() {
+
+      private Row row;
+      private boolean rowRepeated;
+      private int rowIdx = -1;
+      private Node cellNode;
+      private int repeatsLeft;
+      private int cellIdx;
+      private Cell cell;
+
+      @Override
+      public boolean nextRow() {
+        if (!rowIterator.hasNext()) {
+          return false;
+        }
+        row = rowIterator.next();
+        rowIdx++;
+        rowRepeated = repeats(row.getOdfElement().getTableNumberRowsRepeatedAttribute()) > 1;
+        cellNode = null;
+        repeatsLeft = 0;
+        cellIdx = -1;
+        return true;
+      }
+
+      @Override
+      public int getRowIndex() {
+        return rowIdx;
+      }
+
+      @Override
+      public boolean nextCell() {
+        if (repeatsLeft > 0) {
+          repeatsLeft--;
+          cellIdx++;
+          return true;
+        }
+        do {
+          cellNode = (cellNode == null) ? row.getOdfElement().getFirstChild()
+              : cellNode.getNextSibling();
+        } while ((cellNode != null) && !(cellNode instanceof TableTableCellElementBase));
+        if (cellNode == null) {
+          return false;
+        }
+        TableTableCellElementBase element = (TableTableCellElementBase) cellNode;
+        int numRepeats = repeats(element.getTableNumberColumnsRepeatedAttribute());
+        repeatsLeft = numRepeats - 1;
+        cellIdx++;
+        // simple-odf warns about cells repeated both ways unless they are got by index
+        cell = ((numRepeats > 1) && rowRepeated) ? row.getCellByIndex(cellIdx)
+            : Cell.getInstance(element);
+        return true;
+      }
+
+      @Override
+      public int getColumnIndex() {
+        return cellIdx;
+      }
+
+      @Override
+      public CellValue getValue() {
+        return CellOdf.valueOf(cell);
+      }
+
+      @Override
+      public ICell toCell() {
+        return new CellOdf(cell, rowIdx, cellIdx);
+      }
+    };
+  }
+
+  private static int repeats(@Nullable Integer numRepeated) {
+    return (numRepeated == null) ? 1 : numRepeated;
+  }
+
   @Override
   public Iterator<IRow> getRowIterator() {
     final Iterator<Row> rowIterator = table.getRowIterator();
@@ -136,23 +243,42 @@ class RowOdf implements IRow {
 class CellOdf implements ICell {
 
   private final Cell cell;
+  // -1 if not known yet, simple-odf finds them by walking the table
+  private int rowIdx = -1;
+  private int colIdx = -1;
 
   public CellOdf(Cell cell) {
     this.cell = cell;
   }
 
+  CellOdf(Cell cell, int rowIdx, int colIdx) {
+    this.cell = cell;
+    this.rowIdx = rowIdx;
+    this.colIdx = colIdx;
+  }
+
   @Override
   public int getRowIndex() {
-    return cell.getRowIndex();
+    if (rowIdx == -1) {
+      rowIdx = cell.getRowIndex();
+    }
+    return rowIdx;
   }
 
   @Override
   public int getColumnIndex() {
-    return cell.getColumnIndex();
+    if (colIdx == -1) {
+      colIdx = cell.getColumnIndex();
+    }
+    return colIdx;
   }
 
   @Override
   public CellValue getValue() {
+    return valueOf(cell);
+  }
+
+  static CellValue valueOf(Cell cell) {
     boolean hasFormula = false;
     String formula = null;
     Object value = null;
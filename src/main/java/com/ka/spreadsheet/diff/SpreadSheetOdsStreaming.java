@@ -0,0 +1,547 @@
+package com.ka.spreadsheet.diff;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import javax.annotation.Nullable;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Streaming reader for ods spreadsheets.
+ *
+ * The content.xml entry is pulled element by element straight out of the zip container instead
+ * of being loaded into an ODF DOM. Repeated rows and cells (table:number-rows-repeated and
+ * table:number-columns-repeated) are kept as a single element plus a count and only expanded as
+ * they are iterated, so a row repeated a million times costs no more memory than a single one.
+ * Cell values follow the same rules as {@link SpreadSheetOdf}.
+ *
+ * All the sheets live in the same xml document, so sheets must be iterated in order; whatever is
+ * left of a sheet when moving to the next one is skipped over without being decoded into cells.
+ */
+public class SpreadSheetOdsStreaming implements ISpreadSheet {
+
+  static final String OFFICE_NS = "urn:oasis:names:tc:opendocument:xmlns:office:1.0";
+  static final String TABLE_NS = "urn:oasis:names:tc:opendocument:xmlns:table:1.0";
+  static final String TEXT_NS = "urn:oasis:names:tc:opendocument:xmlns:text:1.0";
+  private static final String META_NS = "urn:oasis:names:tc:opendocument:xmlns:meta:1.0";
+  private static final String DC_NS = "http://purl.org/dc/elements/1.1/";
+
+  private static final String MIMETYPE_PREFIX = "application/vnd.oasis.opendocument.spreadsheet";
+
+  private final ZipFile zipFile;
+  private final InputStream in;
+  private final XMLStreamReader xml;
+
+  /** Number of sheets whose table:table start element has been read so far. */
+  private int sheetsStarted;
+  /** Element nesting depth inside the current sheet, 0 when outside of any sheet. */
+  private int depth;
+  private boolean done;
+
+  public SpreadSheetOdsStreaming(ZipFile zipFile) throws IOException, XMLStreamException {
+    this.zipFile = zipFile;
+    String mimetype = FileHeader.readMimetype(zipFile);
+    ZipEntry content = zipFile.getEntry("content.xml");
+    if ((mimetype == null) || !mimetype.startsWith(MIMETYPE_PREFIX) || (content == null)) {
+      zipFile.close();
+      throw new IllegalArgumentException("Not an ods spreadsheet: " + zipFile.getName());
+    }
+    this.in = zipFile.getInputStream(content);
+    this.xml = SpreadSheetXlsxStreaming.XML_INPUT_FACTORY.createXMLStreamReader(in);
+  }
+
+  @Override
+  public Iterator<ISheet> getSheetIterator() {
+    return new Iterator<ISheet>() {
+
+      private ISheet nextSheet;
+
+      @Override
+      public boolean hasNext() {
+        if (nextSheet == null) {
+          try {
+            nextSheet = readNextSheet();
+          } catch (XMLStreamException e) {
+            throw new RuntimeException("Failed to read " + zipFile.getName() + ": "
+                + e.getMessage(), e);
+          }
+        }
+        return nextSheet != null;
+      }
+
+      @Override
+      public ISheet next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        ISheet sheet = nextSheet;
+        nextSheet = null;
+        return sheet;
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  @Override
+  @Nullable
+  public Boolean hasMacro() {
+    return null;
+  }
+
+  /**
+   * All the sheets are read from the same xml stream.
+   */
+  @Override
+  public boolean supportsConcurrentSheets() {
+    return false;
+  }
+
+  @Override
+  public boolean supportsRereadingSheets() {
+    return false;
+  }
+
+  /**
+   * Closes the document if its sheets haven't all been read, e.g. when the diff stopped early.
+   */
+  @Override
+  public void close() throws IOException {
+    if (!done) {
+      done = true;
+      closeDocument();
+    }
+  }
+
+  /**
+   * Skips what is left of the current sheet and positions the stream just after the start of the
+   * next table:table, or closes the document when there are no sheets left.
+   */
+  @Nullable
+  private ISheet readNextSheet() throws XMLStreamException {
+    if (done) {
+      return null;
+    }
+    while (depth > 0) {
+      nextEvent();
+    }
+    while (xml.hasNext()) {
+      int event = xml.next();
+      if ((event == XMLStreamConstants.START_ELEMENT) && isTableElement("table")) {
+        String name = xml.getAttributeValue(TABLE_NS, "name");
+        depth = 1;
+        return new SheetOdsStreaming(this, name, sheetsStarted++);
+      } else if ((event == XMLStreamConstants.END_ELEMENT)
+          && OFFICE_NS.equals(xml.getNamespaceURI()) && "spreadsheet".equals(xml.getLocalName())) {
+        break;
+      }
+    }
+    done = true;
+    try {
+      closeDocument();
+    } catch (IOException e) {
+      throw new RuntimeException("Failed to close " + zipFile.getName(), e);
+    }
+    return null;
+  }
+
+  private void closeDocument() throws IOException {
+    try {
+      xml.close();
+    } catch (XMLStreamException e) {
+      throw new IOException(e);
+    } finally {
+      try {
+        in.close();
+      } finally {
+        zipFile.close();
+      }
+    }
+  }
+
+  XMLStreamReader getXml() {
+    return xml;
+  }
+
+  boolean isCurrentSheet(int sheetIdx) {
+    return (depth > 0) && (sheetsStarted == sheetIdx + 1);
+  }
+
+  /**
+   * Moves to the next event of the current sheet, keeping track of the nesting depth so that the
+   * end of the sheet can be told apart from the end of a row group.
+   */
+  int nextEvent() throws XMLStreamException {
+    int event = xml.next();
+    if (event == XMLStreamConstants.START_ELEMENT) {
+      depth++;
+    } else if (event == XMLStreamConstants.END_ELEMENT) {
+      depth--;
+    }
+    return event;
+  }
+
+  /**
+   * Consumes the rest of the current element, which must have been entered with
+   * {@link #nextEvent()}.
+   */
+  void skipElement() throws XMLStreamException {
+    int targetDepth = depth - 1;
+    while (depth > targetDepth) {
+      nextEvent();
+    }
+  }
+
+  /**
+   * Reads the text of the current element the way simple-odf's TextExtractor does: paragraphs
+   * are separated by new lines, text:s / text:tab / text:line-break are expanded.
+   */
+  String readText() throws XMLStreamException {
+    StringBuilder text = new StringBuilder();
+    boolean appendedLine = readText(text);
+    if (appendedLine) {
+      text.deleteCharAt(text.length() - 1);
+    }
+    return text.toString();
+  }
+
+  private boolean readText(StringBuilder text) throws XMLStreamException {
+    boolean appendedLine = false;
+    int targetDepth = depth - 1;
+    while (true) {
+      int event = nextEvent();
+      if (depth == targetDepth) {
+        break;
+      }
+      if ((event == XMLStreamConstants.CHARACTERS) || (event == XMLStreamConstants.CDATA)
+          || (event == XMLStreamConstants.SPACE)) {
+        text.append(xml.getText());
+      } else if (event == XMLStreamConstants.START_ELEMENT) {
+        String ns = xml.getNamespaceURI();
+        String localName = xml.getLocalName();
+        if (TEXT_NS.equals(ns) && ("p".equals(localName) || "h".equals(localName))) {
+          readText(text);
+          text.append('\n');
+          appendedLine = true;
+        } else if (TEXT_NS.equals(ns) && "s".equals(localName)) {
+          String count = xml.getAttributeValue(TEXT_NS, "c");
+          for (int i = (count == null) ? 1 : Integer.parseInt(count); i > 0; i--) {
+            text.append(' ');
+          }
+          skipElement();
+        } else if (TEXT_NS.equals(ns) && "tab".equals(localName)) {
+          text.append('\t');
+          skipElement();
+        } else if (TEXT_NS.equals(ns) && "line-break".equals(localName)) {
+          text.append('\n');
+          skipElement();
+        } else {
+          appendedLine |= readText(text);
+          if (META_NS.equals(ns) || DC_NS.equals(ns)) {
+            text.append('\n');
+            appendedLine = true;
+          }
+        }
+      }
+    }
+    return appendedLine;
+  }
+
+  boolean isTableElement(String localName) {
+    return TABLE_NS.equals(xml.getNamespaceURI()) && localName.equals(xml.getLocalName());
+  }
+
+  static int repeatCount(XMLStreamReader xml, String attributeName) {
+    String repeated = xml.getAttributeValue(TABLE_NS, attributeName);
+    return (repeated == null) ? 1 : Integer.parseInt(repeated);
+  }
+
+}
+
+
+class SheetOdsStreaming implements ISheet {
+
+  private final SpreadSheetOdsStreaming spreadSheet;
+  private final String name;
+  private final int sheetIdx;
+
+  public SheetOdsStreaming(SpreadSheetOdsStreaming spreadSheet, String name, int sheetIdx) {
+    this.spreadSheet = spreadSheet;
+    this.name = name;
+    this.sheetIdx = sheetIdx;
+  }
+
+  @Override
+  public String getName() {
+    return name;
+  }
+
+  @Override
+  public int getSheetIndex() {
+    return sheetIdx;
+  }
+
+  @Override
+  public ICellCursor getCellCursor(@Nullable SheetIgnores ignores) {
+    return new RowIteratorCellCursor(getRowIterator(ignores));
+  }
+
+  @Override
+  public Iterator<IRow> getRowIterator() {
+    return getRowIterator(null);
+  }
+
+  /**
+   * Rows which are all ignored are skipped, and so is the text of cells in ignored columns.
+   */
+  private Iterator<IRow> getRowIterator(@Nullable final SheetIgnores ignores) {
+    if (!spreadSheet.isCurrentSheet(sheetIdx)) {
+      throw new IllegalStateException("Sheets of a streamed ods spreadsheet must be read in order");
+    }
+    return new Iterator<IRow>() {
+
+      /** Column count declared by the table:table-column elements, which precede the rows. */
+      private int columnCount;
+      private int nextRowIdx;
+      private RowOdsStreaming repeatedRow;
+      private int repeatsLeft;
+      private boolean done;
+
+      @Override
+      public boolean hasNext() {
+        if ((repeatsLeft == 0) && !done) {
+          try {
+            readNextRow();
+          } catch (XMLStreamException e) {
+            throw new RuntimeException("Failed to read sheet " + name + ": " + e.getMessage(), e);
+          }
+        }
+        return repeatsLeft > 0;
+      }
+
+      @Override
+      public IRow next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        repeatsLeft--;
+        return repeatedRow.atIndex(nextRowIdx++);
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+
+      /**
+       * Walks the sheet down to its next table:table-row, descending into header rows and row
+       * groups, and reads that row's cells.
+       */
+      private void readNextRow() throws XMLStreamException {
+        XMLStreamReader xml = spreadSheet.getXml();
+        while (spreadSheet.isCurrentSheet(sheetIdx)) {
+          int event = spreadSheet.nextEvent();
+          if (event != XMLStreamConstants.START_ELEMENT) {
+            continue;
+          }
+          if (spreadSheet.isTableElement("table-row")) {
+            int repeated = SpreadSheetOdsStreaming.repeatCount(xml, "number-rows-repeated");
+            if ((ignores != null)
+                && ignores.areRowsIgnored(nextRowIdx, nextRowIdx + repeated - 1)) {
+              nextRowIdx += repeated;
+              spreadSheet.skipElement();
+              continue;
+            }
+            repeatsLeft = repeated;
+            repeatedRow = readRow(xml, columnCount, ignores);
+            return;
+          } else if (spreadSheet.isTableElement("table-column")) {
+            columnCount += SpreadSheetOdsStreaming.repeatCount(xml, "number-columns-repeated");
+            spreadSheet.skipElement();
+          } else if (!spreadSheet.isTableElement("table-header-rows")
+              && !spreadSheet.isTableElement("table-rows")
+              && !spreadSheet.isTableElement("table-row-group")
+              && !spreadSheet.isTableElement("table-header-columns")
+              && !spreadSheet.isTableElement("table-columns")
+              && !spreadSheet.isTableElement("table-column-group")) {
+            spreadSheet.skipElement();
+          }
+        }
+        done = true;
+      }
+    };
+  }
+
+  /**
+   * Reads the cells of the current table:table-row, keeping repeated cells as a single cell plus
+   * a count. Like simple-odf, cells beyond the declared column count are dropped. Cells whose
+   * columns are all ignored are skipped and kept as a null cell.
+   */
+  private RowOdsStreaming readRow(XMLStreamReader xml, int columnCount,
+      @Nullable SheetIgnores ignores) throws XMLStreamException {
+    List<CellOdsStreaming> cells = new ArrayList<CellOdsStreaming>();
+    List<Integer> repeats = new ArrayList<Integer>();
+    int numCells = 0;
+    while (true) {
+      int event = spreadSheet.nextEvent();
+      if (event == XMLStreamConstants.START_ELEMENT) {
+        if (spreadSheet.isTableElement("table-cell")
+            || spreadSheet.isTableElement("covered-table-cell")) {
+          int repeated = SpreadSheetOdsStreaming.repeatCount(xml, "number-columns-repeated");
+          if ((columnCount > 0) && (numCells + repeated > columnCount)) {
+            repeated = Math.max(columnCount - numCells, 0);
+          }
+          CellOdsStreaming cell = null;
+          if ((repeated > 0) && (ignores != null)
+              && ignores.areColsIgnored(numCells, numCells + repeated - 1)) {
+            spreadSheet.skipElement();
+          } else {
+            cell = readCell(xml);
+          }
+          if (repeated > 0) {
+            cells.add(cell);
+            repeats.add(repeated);
+            numCells += repeated;
+          }
+        } else {
+          spreadSheet.skipElement();
+        }
+      } else if (event == XMLStreamConstants.END_ELEMENT) {
+        break;
+      }
+    }
+    return new RowOdsStreaming(0, cells, repeats);
+  }
+
+  private CellOdsStreaming readCell(XMLStreamReader xml) throws XMLStreamException {
+    String formula = xml.getAttributeValue(SpreadSheetOdsStreaming.TABLE_NS, "formula");
+    String valueType = xml.getAttributeValue(SpreadSheetOdsStreaming.OFFICE_NS, "value-type");
+    boolean hasFormula = formula != null;
+    CellValue value;
+    if ("float".equals(valueType)) {
+      String floatValue = xml.getAttributeValue(SpreadSheetOdsStreaming.OFFICE_NS, "value");
+      value = (floatValue == null) ? CellValue.ofString(hasFormula, formula, null)
+          : CellValue.ofNumber(hasFormula, formula, Double.parseDouble(floatValue));
+      spreadSheet.skipElement();
+    } else if ("boolean".equals(valueType)) {
+      String booleanValue =
+          xml.getAttributeValue(SpreadSheetOdsStreaming.OFFICE_NS, "boolean-value");
+      value = (booleanValue == null) ? CellValue.ofString(hasFormula, formula, null)
+          : CellValue.ofBoolean(hasFormula, formula, Boolean.parseBoolean(booleanValue));
+      spreadSheet.skipElement();
+    } else {
+      value = CellValue.ofString(hasFormula, formula, spreadSheet.readText());
+    }
+    return new CellOdsStreaming(0, 0, value);
+  }
+}
+
+
+class RowOdsStreaming implements IRow {
+
+  private final int rowIdx;
+  // null for ignored cells
+  private final List<CellOdsStreaming> cells;
+  private final List<Integer> repeats;
+
+  public RowOdsStreaming(int rowIdx, List<CellOdsStreaming> cells, List<Integer> repeats) {
+    this.rowIdx = rowIdx;
+    this.cells = cells;
+    this.repeats = repeats;
+  }
+
+  /**
+   * A repeated row shares its cells with all its copies, only the row index differs.
+   */
+  RowOdsStreaming atIndex(int rowIdx) {
+    return new RowOdsStreaming(rowIdx, cells, repeats);
+  }
+
+  @Override
+  public int getRowIndex() {
+    return rowIdx;
+  }
+
+  @Override
+  public Iterator<ICell> getCellIterator() {
+    return new Iterator<ICell>() {
+
+      private int currCellIdx = 0;
+      private int currColIdx = 0;
+      private int repeatsLeft = 0;
+
+      @Override
+      public boolean hasNext() {
+        while ((repeatsLeft == 0) && (currCellIdx < cells.size())) {
+          repeatsLeft = repeats.get(currCellIdx++);
+          if (cells.get(currCellIdx - 1) == null) { // ignored columns
+            currColIdx += repeatsLeft;
+            repeatsLeft = 0;
+          }
+        }
+        return repeatsLeft > 0;
+      }
+
+      @Override
+      public ICell next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        repeatsLeft--;
+        return cells.get(currCellIdx - 1).at(rowIdx, currColIdx++);
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+}
+
+
+class CellOdsStreaming implements ICell {
+
+  private final int rowIdx;
+  private final int colIdx;
+  private final CellValue value;
+
+  public CellOdsStreaming(int rowIdx, int colIdx, CellValue value) {
+    this.rowIdx = rowIdx;
+    this.colIdx = colIdx;
+    this.value = value;
+  }
+
+  /**
+   * Repeated cells share their value, only the position differs.
+   */
+  CellOdsStreaming at(int rowIdx, int colIdx) {
+    return new CellOdsStreaming(rowIdx, colIdx, value);
+  }
+
+  @Override
+  public int getRowIndex() {
+    return rowIdx;
+  }
+
+  @Override
+  public int getColumnIndex() {
+    return colIdx;
+  }
+
+  @Override
+  public CellValue getValue() {
+    return value;
+  }
+}
@@ -0,0 +1,565 @@
+package com.ka.spreadsheet.diff;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import javax.annotation.Nullable;
+
+import org.apache.poi.hssf.eventusermodel.HSSFListener;
+import org.apache.poi.hssf.model.InternalWorkbook;
+import org.apache.poi.hssf.record.ArrayRecord;
+import org.apache.poi.hssf.record.BOFRecord;
+import org.apache.poi.hssf.record.BlankRecord;
+import org.apache.poi.hssf.record.BoolErrRecord;
+import org.apache.poi.hssf.record.BoundSheetRecord;
+import org.apache.poi.hssf.record.CellValueRecordInterface;
+import org.apache.poi.hssf.record.EOFRecord;
+import org.apache.poi.hssf.record.FilePassRecord;
+import org.apache.poi.hssf.record.FormulaRecord;
+import org.apache.poi.hssf.record.LabelRecord;
+import org.apache.poi.hssf.record.LabelSSTRecord;
+import org.apache.poi.hssf.record.MulBlankRecord;
+import org.apache.poi.hssf.record.NumberRecord;
+import org.apache.poi.hssf.record.Record;
+import org.apache.poi.hssf.record.RecordFactoryInputStream;
+import org.apache.poi.hssf.record.SSTRecord;
+import org.apache.poi.hssf.record.SharedFormulaRecord;
+import org.apache.poi.hssf.record.SharedValueRecordBase;
+import org.apache.poi.hssf.record.StringRecord;
+import org.apache.poi.poifs.filesystem.DirectoryNode;
+import org.apache.poi.poifs.filesystem.NPOIFSFileSystem;
+import org.apache.poi.ss.formula.EvaluationWorkbook.ExternalSheet;
+import org.apache.poi.ss.formula.EvaluationWorkbook.ExternalSheetRange;
+import org.apache.poi.ss.formula.FormulaRenderer;
+import org.apache.poi.ss.formula.FormulaRenderingWorkbook;
+import org.apache.poi.ss.formula.ptg.NamePtg;
+import org.apache.poi.ss.formula.ptg.NameXPtg;
+import org.apache.poi.ss.formula.ptg.Ptg;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.util.CellReference;
+
+/**
+ * Streaming reader for legacy xls (BIFF8) workbooks.
+ *
+ * BIFF records are pulled one at a time from the workbook stream and fed to an
+ * {@link HSSFListener}, which groups cell records into rows as they go by. Only the workbook
+ * globals (sheet names, SST, names used to render formulas) and the current row are held in
+ * memory. Cell values follow the same rules as {@link SpreadSheetExcel}.
+ *
+ * The records of a workbook stream can only be read front to back, so sheets must be iterated in
+ * order. The workbook globals give the offset of each sheet, so sheets whose rows are never
+ * requested are jumped over without their records being read, unless the workbook is encrypted.
+ */
+public class SpreadSheetXlsStreaming implements ISpreadSheet {
+
+  private static final String[] WORKBOOK_DIR_ENTRY_NAMES = {"Workbook", "WORKBOOK", "BOOK"};
+
+  private final NPOIFSFileSystem fs;
+  private final DirectoryNode root;
+  private final String workbookDirEntryName;
+  private RecordFactoryInputStream records;
+  private final List<String> sheetNames = new ArrayList<String>();
+  /** Offset of the BOF record of each sheet in the workbook stream. */
+  private final List<Integer> sheetOffsets = new ArrayList<Integer>();
+  private boolean encrypted;
+  private final FormulaRenderingWorkbook formulaRenderingWorkbook;
+  private SSTRecord sst;
+
+  /** Number of sheet substreams whose BOF has been read so far. */
+  private int sheetsStarted;
+  /** BOF nesting depth, 0 between substreams; embedded charts nest inside a sheet. */
+  private int depth;
+
+  public SpreadSheetXlsStreaming(NPOIFSFileSystem fs) throws IOException {
+    this.fs = fs;
+    this.root = fs.getRoot();
+    this.workbookDirEntryName = getWorkbookDirEntryName(root);
+    this.records = new RecordFactoryInputStream(
+        root.createDocumentInputStream(workbookDirEntryName), false);
+    List<Record> globals = new ArrayList<Record>();
+    Record record;
+    do {
+      record = records.nextRecord();
+      if (record == null) {
+        throw new IllegalArgumentException("Workbook stream ended before the workbook globals");
+      }
+      globals.add(record);
+      if (record instanceof BoundSheetRecord) {
+        sheetNames.add(((BoundSheetRecord) record).getSheetname());
+        sheetOffsets.add(((BoundSheetRecord) record).getPositionOfBof());
+      } else if (record instanceof FilePassRecord) {
+        encrypted = true;
+      } else if (record instanceof SSTRecord) {
+        sst = (SSTRecord) record;
+      }
+    } while (!(record instanceof EOFRecord));
+    this.formulaRenderingWorkbook =
+        new XlsFormulaRenderingWorkbook(InternalWorkbook.createWorkbook(globals));
+  }
+
+  @Override
+  public Iterator<ISheet> getSheetIterator() {
+    return new Iterator<ISheet>() {
+
+      private int currSheetIdx = 0;
+
+      @Override
+      public boolean hasNext() {
+        return currSheetIdx < sheetNames.size();
+      }
+
+      @Override
+      public ISheet next() {
+        SheetXlsStreaming sheet = new SheetXlsStreaming(SpreadSheetXlsStreaming.this,
+            sheetNames.get(currSheetIdx), currSheetIdx);
+        currSheetIdx++;
+        return sheet;
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  @Override
+  @Nullable
+  public Boolean hasMacro() {
+    return null;
+  }
+
+  /**
+   * All the sheets are read from the same record stream.
+   */
+  @Override
+  public boolean supportsConcurrentSheets() {
+    return false;
+  }
+
+  @Override
+  public boolean supportsRereadingSheets() {
+    return false;
+  }
+
+  @Override
+  public void close() throws IOException {
+    fs.close();
+  }
+
+  /**
+   * Positions the record stream just after the BOF of the given sheet's substream, skipping
+   * whatever is left of the sheets before it. Sheets which haven't been started at all are
+   * jumped over.
+   */
+  void seekToSheet(int sheetIdx) {
+    if (sheetsStarted > sheetIdx) {
+      throw new IllegalStateException("Sheets of a streamed xls workbook must be read in order");
+    }
+    if ((sheetsStarted < sheetIdx) && !encrypted) {
+      jumpToSheet(sheetIdx);
+    }
+    while (sheetsStarted <= sheetIdx) {
+      if (nextRecord() == null) {
+        throw new IllegalStateException("Workbook stream ended before sheet " + sheetIdx);
+      }
+    }
+  }
+
+  /**
+   * Returns the next record of the current sheet, skipping records of embedded substreams, or
+   * null once the sheet's EOF has been read.
+   */
+  @Nullable
+  Record nextSheetRecord() {
+    while (true) {
+      Record record = nextRecord();
+      if ((record == null) || (depth == 0)) {
+        return null;
+      }
+      if ((depth == 1) && !(record instanceof BOFRecord)) {
+        return record;
+      }
+    }
+  }
+
+  @Nullable
+  private Record nextRecord() {
+    Record record = records.nextRecord();
+    if (record instanceof BOFRecord) {
+      if (depth == 0) {
+        sheetsStarted++;
+      }
+      depth++;
+    } else if (record instanceof EOFRecord) {
+      depth--;
+    }
+    return record;
+  }
+
+  /**
+   * Restarts the record stream at the BOF of the given sheet. Records aren't encrypted in place,
+   * so this is only possible for workbooks which aren't encrypted.
+   */
+  private void jumpToSheet(int sheetIdx) {
+    int offset = sheetOffsets.get(sheetIdx);
+    try {
+      InputStream in = root.createDocumentInputStream(workbookDirEntryName);
+      if (in.skip(offset) != offset) {
+        throw new IllegalStateException("Workbook stream ended before sheet " + sheetIdx);
+      }
+      records = new RecordFactoryInputStream(in, false);
+    } catch (IOException e) {
+      throw new RuntimeException("Failed to read sheet " + sheetNames.get(sheetIdx), e);
+    }
+    sheetsStarted = sheetIdx;
+    depth = 0;
+  }
+
+  String getSSTString(int idx) {
+    return sst.getString(idx).getString();
+  }
+
+  String renderFormula(Ptg[] ptgs) {
+    return FormulaRenderer.toFormulaString(formulaRenderingWorkbook, ptgs);
+  }
+
+  private static String getWorkbookDirEntryName(DirectoryNode directory) {
+    for (String name : WORKBOOK_DIR_ENTRY_NAMES) {
+      if (directory.hasEntry(name)) {
+        return name;
+      }
+    }
+    throw new IllegalArgumentException("The supplied POIFSFileSystem does not contain a BIFF8 "
+        + "'Workbook' entry. Is it really an excel file?");
+  }
+}
+
+
+/**
+ * Renders formula tokens against the workbook globals alone, the same way HSSFEvaluationWorkbook
+ * does, which can't be used here as it insists on the sheets being loaded.
+ */
+class XlsFormulaRenderingWorkbook implements FormulaRenderingWorkbook {
+
+  private final InternalWorkbook workbook;
+
+  public XlsFormulaRenderingWorkbook(InternalWorkbook workbook) {
+    this.workbook = workbook;
+  }
+
+  @Override
+  public ExternalSheet getExternalSheet(int externSheetIndex) {
+    ExternalSheet sheet = workbook.getExternalSheet(externSheetIndex);
+    if (sheet == null) {
+      int firstSheetIdx = workbook.getFirstSheetIndexFromExternSheetIndex(externSheetIndex);
+      if (firstSheetIdx < 0) {
+        return null;
+      }
+      int lastSheetIdx = workbook.getLastSheetIndexFromExternSheetIndex(externSheetIndex);
+      if (lastSheetIdx == firstSheetIdx) {
+        sheet = new ExternalSheet(null, workbook.getSheetName(firstSheetIdx));
+      } else {
+        sheet = new ExternalSheetRange(null, workbook.getSheetName(firstSheetIdx),
+            workbook.getSheetName(lastSheetIdx));
+      }
+    }
+    return sheet;
+  }
+
+  @Override
+  public String getSheetFirstNameByExternSheet(int externSheetIndex) {
+    return workbook.findSheetFirstNameFromExternSheet(externSheetIndex);
+  }
+
+  @Override
+  public String getSheetLastNameByExternSheet(int externSheetIndex) {
+    return workbook.findSheetLastNameFromExternSheet(externSheetIndex);
+  }
+
+  @Override
+  public String resolveNameXText(NameXPtg namePtg) {
+    return workbook.resolveNameXText(namePtg.getSheetRefIndex(), namePtg.getNameIndex());
+  }
+
+  @Override
+  public String getNameText(NamePtg namePtg) {
+    return workbook.getNameRecord(namePtg.getIndex()).getNameText();
+  }
+}
+
+
+class SheetXlsStreaming implements ISheet {
+
+  private final SpreadSheetXlsStreaming spreadSheet;
+  private final String name;
+  private final int sheetIdx;
+  private final Map<Integer, SharedValueRecordBase> sharedValues =
+      new HashMap<Integer, SharedValueRecordBase>();
+
+  public SheetXlsStreaming(SpreadSheetXlsStreaming spreadSheet, String name, int sheetIdx) {
+    this.spreadSheet = spreadSheet;
+    this.name = name;
+    this.sheetIdx = sheetIdx;
+  }
+
+  @Override
+  public String getName() {
+    return name;
+  }
+
+  @Override
+  public int getSheetIndex() {
+    return sheetIdx;
+  }
+
+  @Override
+  public ICellCursor getCellCursor(@Nullable SheetIgnores ignores) {
+    return new RowIteratorCellCursor(getRowIterator(ignores));
+  }
+
+  @Override
+  public Iterator<IRow> getRowIterator() {
+    return getRowIterator(null);
+  }
+
+  /**
+   * Cells excluded by the ignores are not built.
+   */
+  private Iterator<IRow> getRowIterator(@Nullable SheetIgnores ignores) {
+    spreadSheet.seekToSheet(sheetIdx);
+    final RowCollector collector = new RowCollector(ignores);
+    return new Iterator<IRow>() {
+
+      private IRow nextRow;
+
+      @Override
+      public boolean hasNext() {
+        while ((nextRow == null) && !collector.done) {
+          Record record = spreadSheet.nextSheetRecord();
+          if (record == null) {
+            nextRow = collector.endSheet();
+          } else {
+            collector.processRecord(record);
+            nextRow = collector.takeCompletedRow();
+          }
+        }
+        return nextRow != null;
+      }
+
+      @Override
+      public IRow next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        IRow row = nextRow;
+        nextRow = null;
+        return row;
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  String getSSTString(int idx) {
+    return spreadSheet.getSSTString(idx);
+  }
+
+  /**
+   * Same token lookup as FormulaRecordAggregate.getFormulaTokens().
+   */
+  String getFormula(FormulaRecord formulaRecord) {
+    Ptg[] ptgs = formulaRecord.getParsedExpression();
+    CellReference expRef = formulaRecord.getFormula().getExpReference();
+    if (expRef != null) {
+      SharedValueRecordBase sharedValue = sharedValues.get(key(expRef.getRow(), expRef.getCol()));
+      if (formulaRecord.isSharedFormula() && (sharedValue instanceof SharedFormulaRecord)) {
+        ptgs = ((SharedFormulaRecord) sharedValue).getFormulaTokens(formulaRecord);
+      } else if (sharedValue instanceof ArrayRecord) {
+        ptgs = ((ArrayRecord) sharedValue).getFormulaTokens();
+      }
+    }
+    return spreadSheet.renderFormula(ptgs);
+  }
+
+  private static int key(int row, int col) {
+    return (row << 8) | col;
+  }
+
+  /**
+   * Groups the cell records of the sheet into rows. A row is complete as soon as a cell of a
+   * later row (or the end of the sheet) is seen.
+   */
+  private class RowCollector implements HSSFListener {
+
+    private final SheetIgnores ignores;
+    private List<ICell> cells = new ArrayList<ICell>();
+    private int rowIdx = -1;
+    private RowXlsStreaming completedRow;
+    private CellXlsStreaming lastFormulaCell;
+    private boolean done;
+
+    RowCollector(@Nullable SheetIgnores ignores) {
+      this.ignores = ignores;
+    }
+
+    @Override
+    public void processRecord(Record record) {
+      if (record instanceof NumberRecord) {
+        NumberRecord number = (NumberRecord) record;
+        addCell(number, Cell.CELL_TYPE_NUMERIC, number.getValue());
+      } else if (record instanceof LabelSSTRecord) {
+        LabelSSTRecord label = (LabelSSTRecord) record;
+        addCell(label, Cell.CELL_TYPE_STRING, getSSTString(label.getSSTIndex()));
+      } else if (record instanceof LabelRecord) {
+        LabelRecord label = (LabelRecord) record;
+        addCell(label.getRow(), label.getColumn(), Cell.CELL_TYPE_STRING, label.getValue());
+      } else if (record instanceof BoolErrRecord) {
+        BoolErrRecord boolErr = (BoolErrRecord) record;
+        if (boolErr.isBoolean()) {
+          addCell(boolErr, Cell.CELL_TYPE_BOOLEAN, boolErr.getBooleanValue());
+        } else {
+          addCell(boolErr, Cell.CELL_TYPE_ERROR, String.valueOf(boolErr.getErrorValue()));
+        }
+      } else if (record instanceof BlankRecord) {
+        addCell((BlankRecord) record, Cell.CELL_TYPE_BLANK, "");
+      } else if (record instanceof MulBlankRecord) {
+        MulBlankRecord blanks = (MulBlankRecord) record;
+        for (int i = 0; i < blanks.getNumColumns(); i++) {
+          addCell(blanks.getRow(), blanks.getFirstColumn() + i, Cell.CELL_TYPE_BLANK, "");
+        }
+      } else if (record instanceof FormulaRecord) {
+        FormulaRecord formula = (FormulaRecord) record;
+        lastFormulaCell = addCell(formula, Cell.CELL_TYPE_FORMULA, null);
+        if (lastFormulaCell != null) {
+          lastFormulaCell.formulaRecord = formula;
+        }
+      } else if (record instanceof StringRecord) {
+        if (lastFormulaCell != null) {
+          lastFormulaCell.cachedString = ((StringRecord) record).getString();
+        }
+      } else if (record instanceof SharedValueRecordBase) {
+        SharedValueRecordBase sharedValue = (SharedValueRecordBase) record;
+        sharedValues.put(key(sharedValue.getFirstRow(), sharedValue.getFirstColumn()), sharedValue);
+      }
+    }
+
+    @Nullable
+    private CellXlsStreaming addCell(CellValueRecordInterface record, int cellType, Object value) {
+      return addCell(record.getRow(), record.getColumn(), cellType, value);
+    }
+
+    /**
+     * Returns null if the cell is ignored.
+     */
+    @Nullable
+    private CellXlsStreaming addCell(int row, int col, int cellType, Object value) {
+      if ((ignores != null) && (ignores.isRowIgnored(row) || ignores.isColIgnored(col)
+          || ignores.isCellIgnored(row, col))) {
+        return null;
+      }
+      if ((row != rowIdx) && !cells.isEmpty()) {
+        completedRow = new RowXlsStreaming(rowIdx, cells);
+        cells = new ArrayList<ICell>();
+      }
+      rowIdx = row;
+      CellXlsStreaming cell = new CellXlsStreaming(SheetXlsStreaming.this, row, col, cellType, value);
+      cells.add(cell);
+      return cell;
+    }
+
+    RowXlsStreaming takeCompletedRow() {
+      RowXlsStreaming row = completedRow;
+      completedRow = null;
+      return row;
+    }
+
+    RowXlsStreaming endSheet() {
+      done = true;
+      RowXlsStreaming row = cells.isEmpty() ? takeCompletedRow() : new RowXlsStreaming(rowIdx, cells);
+      cells = new ArrayList<ICell>();
+      return row;
+    }
+  }
+}
+
+
+class RowXlsStreaming implements IRow {
+
+  private final int rowIdx;
+  private final List<ICell> cells;
+
+  public RowXlsStreaming(int rowIdx, List<ICell> cells) {
+    this.rowIdx = rowIdx;
+    this.cells = cells;
+  }
+
+  @Override
+  public int getRowIndex() {
+    return rowIdx;
+  }
+
+  @Override
+  public Iterator<ICell> getCellIterator() {
+    return cells.iterator();
+  }
+}
+
+
+class CellXlsStreaming implements ICell {
+
+  private final SheetXlsStreaming sheet;
+  private final int rowIdx;
+  private final int colIdx;
+  private final int cellType;
+  private final Object value;
+  FormulaRecord formulaRecord;
+  String cachedString;
+
+  public CellXlsStreaming(SheetXlsStreaming sheet, int rowIdx, int colIdx, int cellType,
+      Object value) {
+    this.sheet = sheet;
+    this.rowIdx = rowIdx;
+    this.colIdx = colIdx;
+    this.cellType = cellType;
+    this.value = value;
+  }
+
+  @Override
+  public int getRowIndex() {
+    return rowIdx;
+  }
+
+  @Override
+  public int getColumnIndex() {
+    return colIdx;
+  }
+
+  @Override
+  public CellValue getValue() {
+    if (cellType != Cell.CELL_TYPE_FORMULA) {
+      return new CellValue(false, null, value);
+    }
+    String formula = sheet.getFormula(formulaRecord);
+    switch (formulaRecord.getCachedResultType()) {
+      case Cell.CELL_TYPE_NUMERIC:
+        return CellValue.ofNumber(true, formula, formulaRecord.getValue());
+      case Cell.CELL_TYPE_BOOLEAN:
+        return CellValue.ofBoolean(true, formula, formulaRecord.getCachedBooleanValue());
+      case Cell.CELL_TYPE_ERROR:
+        return CellValue.ofString(true, formula,
+            String.valueOf((byte) formulaRecord.getCachedErrorValue()));
+      default:
+        return CellValue.ofString(true, formula, (cachedString == null) ? "" : cachedString);
+    }
+  }
+}
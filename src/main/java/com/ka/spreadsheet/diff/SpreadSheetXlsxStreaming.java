@@ -0,0 +1,673 @@
+package com.ka.spreadsheet.diff;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nullable;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackagePart;
+import org.apache.poi.openxml4j.opc.PackageRelationship;
+import org.apache.poi.openxml4j.opc.PackageRelationshipTypes;
+import org.apache.poi.ss.SpreadsheetVersion;
+import org.apache.poi.ss.formula.FormulaParser;
+import org.apache.poi.ss.formula.FormulaRenderer;
+import org.apache.poi.ss.formula.FormulaType;
+import org.apache.poi.ss.formula.SharedFormula;
+import org.apache.poi.ss.formula.ptg.Ptg;
+import org.apache.poi.ss.usermodel.FormulaError;
+import org.apache.poi.ss.usermodel.Name;
+import org.apache.poi.ss.util.CellRangeAddress;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.apache.poi.xssf.usermodel.XSSFEvaluationWorkbook;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+
+/**
+ * Streaming reader for xlsx / xlsm workbooks.
+ *
+ * Sheet parts are pulled element by element straight out of the zip container, so only the row
+ * currently being iterated is held in memory (plus the shared strings table). Cell values follow
+ * the same rules as {@link SpreadSheetExcel} so that both readers produce identical diffs.
+ */
+public class SpreadSheetXlsxStreaming implements ISpreadSheet {
+
+  static final XMLInputFactory XML_INPUT_FACTORY = newXmlInputFactory();
+
+  private static final String RELATIONSHIPS_NS =
+      "http://schemas.openxmlformats.org/officeDocument/2006/relationships";
+
+  private final OPCPackage pkg;
+  private final XSSFReader reader;
+  private final List<String> sheetNames = new ArrayList<String>();
+  private final List<String> sheetRelIds = new ArrayList<String>();
+  private final List<DefinedName> definedNames = new ArrayList<DefinedName>();
+  private final List<String> sharedStrings = new ArrayList<String>();
+  private final Boolean hasMacro;
+  private XSSFEvaluationWorkbook formulaParsingWorkbook;
+
+  public SpreadSheetXlsxStreaming(OPCPackage pkg) throws Exception {
+    this.pkg = pkg;
+    this.reader = new XSSFReader(pkg);
+    readWorkbook(reader.getWorkbookData());
+    readSharedStrings(reader.getSharedStringsData());
+    this.hasMacro = readHasMacro(pkg);
+  }
+
+  @Override
+  public Iterator<ISheet> getSheetIterator() {
+    return new Iterator<ISheet>() {
+
+      private int currSheetIdx = 0;
+
+      @Override
+      public boolean hasNext() {
+        return currSheetIdx < sheetNames.size();
+      }
+
+      @Override
+      public ISheet next() {
+        SheetXlsxStreaming sheet = new SheetXlsxStreaming(SpreadSheetXlsxStreaming.this,
+            sheetNames.get(currSheetIdx), currSheetIdx);
+        currSheetIdx++;
+        return sheet;
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  @Override
+  @Nullable
+  public Boolean hasMacro() {
+    return hasMacro;
+  }
+
+  /**
+   * Each sheet is read by its own parser from its own part of the package, the parts being
+   * opened one at a time.
+   */
+  @Override
+  public boolean supportsConcurrentSheets() {
+    return true;
+  }
+
+  /**
+   * The part of a sheet is parsed again from its start.
+   */
+  @Override
+  public boolean supportsRereadingSheets() {
+    return true;
+  }
+
+  /**
+   * The package is opened read only, it is reverted as closing it would try to save it.
+   */
+  @Override
+  public void close() {
+    pkg.revert();
+  }
+
+  synchronized InputStream openSheet(int sheetIdx) throws Exception {
+    return reader.getSheet(sheetRelIds.get(sheetIdx));
+  }
+
+  String getSharedString(int idx) {
+    return sharedStrings.get(idx);
+  }
+
+  /**
+   * Shared formulas are stored once in the sheet xml and shifted for every other cell of the
+   * range, which needs a workbook to parse against. Sheets and names are all that matters for
+   * that, so a skeleton workbook is built the first time it's required.
+   */
+  synchronized XSSFEvaluationWorkbook getFormulaParsingWorkbook() {
+    if (formulaParsingWorkbook == null) {
+      XSSFWorkbook workbook = new XSSFWorkbook();
+      for (String sheetName : sheetNames) {
+        workbook.createSheet(sheetName);
+      }
+      for (DefinedName definedName : definedNames) {
+        Name name = workbook.createName();
+        name.setNameName(definedName.name);
+        if (definedName.sheetIdx != -1) {
+          name.setSheetIndex(definedName.sheetIdx);
+        }
+      }
+      formulaParsingWorkbook = XSSFEvaluationWorkbook.create(workbook);
+    }
+    return formulaParsingWorkbook;
+  }
+
+  private void readWorkbook(InputStream in) throws XMLStreamException, IOException {
+    XMLStreamReader xml = XML_INPUT_FACTORY.createXMLStreamReader(in);
+    try {
+      while (xml.hasNext()) {
+        if (xml.next() != XMLStreamConstants.START_ELEMENT) {
+          continue;
+        }
+        if ("sheet".equals(xml.getLocalName())) {
+          sheetNames.add(xml.getAttributeValue(null, "name"));
+          sheetRelIds.add(xml.getAttributeValue(RELATIONSHIPS_NS, "id"));
+        } else if ("definedName".equals(xml.getLocalName())) {
+          String localSheetId = xml.getAttributeValue(null, "localSheetId");
+          definedNames.add(new DefinedName(xml.getAttributeValue(null, "name"),
+              localSheetId == null ? -1 : Integer.parseInt(localSheetId)));
+        }
+      }
+    } finally {
+      xml.close();
+      in.close();
+    }
+  }
+
+  private void readSharedStrings(@Nullable InputStream in) throws XMLStreamException, IOException {
+    if (in == null) {
+      return;
+    }
+    XMLStreamReader xml = XML_INPUT_FACTORY.createXMLStreamReader(in);
+    try {
+      while (xml.hasNext()) {
+        if ((xml.next() == XMLStreamConstants.START_ELEMENT) && "si".equals(xml.getLocalName())) {
+          sharedStrings.add(readRichText(xml));
+        }
+      }
+    } finally {
+      xml.close();
+      in.close();
+    }
+  }
+
+  private static Boolean readHasMacro(OPCPackage pkg) throws Exception {
+    PackageRelationship coreDocument =
+        pkg.getRelationshipsByType(PackageRelationshipTypes.CORE_DOCUMENT).getRelationship(0);
+    PackagePart workbookPart = pkg.getPart(coreDocument);
+    for (PackageRelationship rel : workbookPart.getRelationships()) {
+      if ((rel.getTargetURI() != null) && rel.getTargetURI().toString().contains("vbaProject")) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Reads the text of a rich text element (<si> or <is>) the way XSSFRichTextString does: the
+   * plain <t>, or else the concatenated runs, ignoring phonetic runs.
+   */
+  static String readRichText(XMLStreamReader xml) throws XMLStreamException {
+    String elementName = xml.getLocalName();
+    StringBuilder text = new StringBuilder();
+    int depth = 0;
+    while (true) {
+      int event = xml.next();
+      if (event == XMLStreamConstants.START_ELEMENT) {
+        if ("rPh".equals(xml.getLocalName())) {
+          skipElement(xml);
+        } else if ("t".equals(xml.getLocalName())) {
+          text.append(xml.getElementText());
+        } else {
+          depth++;
+        }
+      } else if (event == XMLStreamConstants.END_ELEMENT) {
+        if (depth == 0 && elementName.equals(xml.getLocalName())) {
+          break;
+        }
+        depth--;
+      }
+    }
+    return utfDecode(text.toString());
+  }
+
+  static void skipElement(XMLStreamReader xml) throws XMLStreamException {
+    int depth = 1;
+    while (depth > 0) {
+      int event = xml.next();
+      if (event == XMLStreamConstants.START_ELEMENT) {
+        depth++;
+      } else if (event == XMLStreamConstants.END_ELEMENT) {
+        depth--;
+      }
+    }
+  }
+
+  private static final Pattern utfPtrn = Pattern.compile("_x([0-9A-F]{4})_");
+
+  /**
+   * Same as XSSFRichTextString.utfDecode(), which isn't visible outside POI.
+   */
+  static String utfDecode(@Nullable String value) {
+    if ((value == null) || (value.indexOf("_x") == -1)) {
+      return value;
+    }
+    StringBuilder buf = new StringBuilder();
+    Matcher m = utfPtrn.matcher(value);
+    int idx = 0;
+    while (m.find()) {
+      buf.append(value, idx, m.start());
+      buf.append((char) Integer.parseInt(m.group(1), 16));
+      idx = m.end();
+    }
+    buf.append(value.substring(idx));
+    return buf.toString();
+  }
+
+  /**
+   * Parses the column part of a reference like "AB12", returns the zero based column index.
+   */
+  static int columnIndexOf(String ref) {
+    int col = 0;
+    for (int i = 0; i < ref.length(); i++) {
+      char c = ref.charAt(i);
+      if ((c < 'A') || (c > 'Z')) {
+        break;
+      }
+      col = (col * 26) + (c - 'A' + 1);
+    }
+    return col - 1;
+  }
+
+  private static XMLInputFactory newXmlInputFactory() {
+    XMLInputFactory factory = XMLInputFactory.newInstance();
+    factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    return factory;
+  }
+
+  private static class DefinedName {
+
+    private final String name;
+    private final int sheetIdx;
+
+    DefinedName(String name, int sheetIdx) {
+      this.name = name;
+      this.sheetIdx = sheetIdx;
+    }
+  }
+}
+
+
+class SheetXlsxStreaming implements ISheet {
+
+  private final SpreadSheetXlsxStreaming spreadSheet;
+  private final String name;
+  private final int sheetIdx;
+  private final Map<String, SharedFormulaXlsx> sharedFormulas =
+      new HashMap<String, SharedFormulaXlsx>();
+  /** The array formulas spanning the current row, in the order of their master cells. */
+  private final List<ArrayFormulaXlsx> arrayFormulas = new ArrayList<ArrayFormulaXlsx>();
+
+  public SheetXlsxStreaming(SpreadSheetXlsxStreaming spreadSheet, String name, int sheetIdx) {
+    this.spreadSheet = spreadSheet;
+    this.name = name;
+    this.sheetIdx = sheetIdx;
+  }
+
+  @Override
+  public String getName() {
+    return name;
+  }
+
+  @Override
+  public int getSheetIndex() {
+    return sheetIdx;
+  }
+
+  @Override
+  public ICellCursor getCellCursor(@Nullable SheetIgnores ignores) {
+    return new RowIteratorCellCursor(getRowIterator(ignores));
+  }
+
+  @Override
+  public Iterator<IRow> getRowIterator() {
+    return getRowIterator(null);
+  }
+
+  /**
+   * Rows and cells excluded by the ignores are skipped without being built, the rows without even
+   * being parsed, see {@link XlsxRowSkippingInputStream}.
+   */
+  private Iterator<IRow> getRowIterator(@Nullable final SheetIgnores ignores) {
+    final XMLStreamReader xml;
+    final InputStream in;
+    try {
+      in = ((ignores != null) && ignores.ignoresRows())
+          ? new XlsxRowSkippingInputStream(spreadSheet.openSheet(sheetIdx), ignores)
+          : spreadSheet.openSheet(sheetIdx);
+      xml = SpreadSheetXlsxStreaming.XML_INPUT_FACTORY.createXMLStreamReader(in);
+    } catch (Exception e) {
+      throw new RuntimeException("Failed to read sheet " + name + ": " + e.getMessage(), e);
+    }
+    // the master cells are read again, along with the rows they span
+    arrayFormulas.clear();
+    return new Iterator<IRow>() {
+
+      private IRow nextRow;
+      private boolean done;
+      private int lastRowIdx = -1;
+
+      @Override
+      public boolean hasNext() {
+        if ((nextRow == null) && !done) {
+          try {
+            nextRow = readNextRow();
+          } catch (XMLStreamException e) {
+            throw new RuntimeException("Failed to read sheet " + name + ": " + e.getMessage(), e);
+          }
+        }
+        return nextRow != null;
+      }
+
+      @Override
+      public IRow next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        IRow row = nextRow;
+        nextRow = null;
+        return row;
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+
+      private IRow readNextRow() throws XMLStreamException {
+        while (xml.hasNext()) {
+          int event = xml.next();
+          if ((event == XMLStreamConstants.START_ELEMENT) && "row".equals(xml.getLocalName())) {
+            String r = xml.getAttributeValue(null, "r");
+            lastRowIdx = (r != null) ? Integer.parseInt(r) - 1 : lastRowIdx + 1;
+            IRow row = readRow(xml, lastRowIdx, ignores);
+            if (row != null) {
+              return row;
+            }
+          } else if ((event == XMLStreamConstants.END_ELEMENT)
+              && "sheetData".equals(xml.getLocalName())) {
+            break;
+          }
+        }
+        done = true;
+        try {
+          xml.close();
+          in.close();
+        } catch (IOException e) {
+          throw new RuntimeException("Failed to close sheet " + name, e);
+        }
+        return null;
+      }
+    };
+  }
+
+  /**
+   * Returns null if the whole row is ignored.
+   */
+  @Nullable
+  private IRow readRow(XMLStreamReader xml, int rowIdx, @Nullable SheetIgnores ignores)
+      throws XMLStreamException {
+    boolean rowIgnored = (ignores != null) && ignores.isRowIgnored(rowIdx);
+    // rows come in order, so the array formulas ending above this row are done with
+    for (Iterator<ArrayFormulaXlsx> it = arrayFormulas.iterator(); it.hasNext(); ) {
+      if (it.next().range.getLastRow() < rowIdx) {
+        it.remove();
+      }
+    }
+    List<ICell> cells = new ArrayList<ICell>();
+    int lastColIdx = -1;
+    while (true) {
+      int event = xml.next();
+      if (event == XMLStreamConstants.START_ELEMENT) {
+        if ("c".equals(xml.getLocalName())) {
+          String r = xml.getAttributeValue(null, "r");
+          lastColIdx = (r != null) ? SpreadSheetXlsxStreaming.columnIndexOf(r) : lastColIdx + 1;
+          if (rowIgnored || ((ignores != null) && (ignores.isColIgnored(lastColIdx)
+              || ignores.isCellIgnored(rowIdx, lastColIdx)))) {
+            skipCell(xml, rowIdx, lastColIdx);
+          } else {
+            cells.add(readCell(xml, rowIdx, lastColIdx));
+          }
+        } else {
+          SpreadSheetXlsxStreaming.skipElement(xml);
+        }
+      } else if (event == XMLStreamConstants.END_ELEMENT) {
+        break;
+      }
+    }
+    return rowIgnored ? null : new RowXlsxStreaming(rowIdx, cells);
+  }
+
+  /**
+   * Skips an ignored cell, only keeping the formulas it defines for other cells: the master of a
+   * shared formula or an array formula.
+   */
+  private void skipCell(XMLStreamReader xml, int rowIdx, int colIdx) throws XMLStreamException {
+    while (true) {
+      int event = xml.next();
+      if (event == XMLStreamConstants.START_ELEMENT) {
+        if ("f".equals(xml.getLocalName())) {
+          readFormula(xml, rowIdx, colIdx);
+        } else {
+          SpreadSheetXlsxStreaming.skipElement(xml);
+        }
+      } else if (event == XMLStreamConstants.END_ELEMENT) {
+        break;
+      }
+    }
+  }
+
+  private ICell readCell(XMLStreamReader xml, int rowIdx, int colIdx) throws XMLStreamException {
+    String type = xml.getAttributeValue(null, "t");
+    String value = null;
+    String inlineText = null;
+    boolean hasFormula = false;
+    String formula = null;
+    SharedFormulaXlsx sharedFormula = null;
+    while (true) {
+      int event = xml.next();
+      if (event == XMLStreamConstants.START_ELEMENT) {
+        String elementName = xml.getLocalName();
+        if ("v".equals(elementName)) {
+          value = xml.getElementText();
+        } else if ("is".equals(elementName)) {
+          inlineText = SpreadSheetXlsxStreaming.readRichText(xml);
+        } else if ("f".equals(elementName)) {
+          hasFormula = true;
+          boolean shared = "shared".equals(xml.getAttributeValue(null, "t"));
+          String si = xml.getAttributeValue(null, "si");
+          formula = readFormula(xml, rowIdx, colIdx);
+          if (shared) {
+            sharedFormula = sharedFormulas.get(si);
+            if (sharedFormula == null) {
+              throw new IllegalStateException(
+                  "Master cell of a shared formula with sid=" + si + " was not found");
+            }
+          }
+        } else {
+          SpreadSheetXlsxStreaming.skipElement(xml);
+        }
+      } else if (event == XMLStreamConstants.END_ELEMENT) {
+        break;
+      }
+    }
+    if (!hasFormula) {
+      for (ArrayFormulaXlsx arrayFormula : arrayFormulas) {
+        if (arrayFormula.range.isInRange(rowIdx, colIdx)) {
+          hasFormula = true;
+          formula = arrayFormula.formula;
+          break;
+        }
+      }
+    }
+    return new CellXlsxStreaming(this, rowIdx, colIdx, type, value, inlineText, hasFormula,
+        formula, sharedFormula);
+  }
+
+  /**
+   * Reads the current f element, registering the shared or array formula it defines if any.
+   */
+  private String readFormula(XMLStreamReader xml, int rowIdx, int colIdx)
+      throws XMLStreamException {
+    String formulaType = xml.getAttributeValue(null, "t");
+    String si = xml.getAttributeValue(null, "si");
+    String ref = xml.getAttributeValue(null, "ref");
+    String formula = xml.getElementText();
+    if ("shared".equals(formulaType)) {
+      if ((ref != null) && !formula.isEmpty()) {
+        sharedFormulas.put(si, new SharedFormulaXlsx(formula, ref, rowIdx, colIdx));
+      }
+    } else if ("array".equals(formulaType) && (ref != null)) {
+      arrayFormulas.add(new ArrayFormulaXlsx(CellRangeAddress.valueOf(ref), formula));
+    }
+    return formula;
+  }
+
+  String getSharedString(int idx) {
+    return spreadSheet.getSharedString(idx);
+  }
+
+  String renderSharedFormula(SharedFormulaXlsx sharedFormula, int rowIdx, int colIdx) {
+    XSSFEvaluationWorkbook fpb = spreadSheet.getFormulaParsingWorkbook();
+    synchronized (fpb) {
+      Ptg[] ptgs = FormulaParser.parse(sharedFormula.formula, fpb, FormulaType.CELL, sheetIdx);
+      Ptg[] shifted = new SharedFormula(SpreadsheetVersion.EXCEL2007).convertSharedFormulas(ptgs,
+          rowIdx - sharedFormula.firstRow, colIdx - sharedFormula.firstCol);
+      return FormulaRenderer.toFormulaString(fpb, shifted);
+    }
+  }
+}
+
+
+class SharedFormulaXlsx {
+
+  final String formula;
+  final int firstRow;
+  final int firstCol;
+
+  /**
+   * Like XSSFSheet, the range is clipped to start no earlier than the master cell.
+   */
+  SharedFormulaXlsx(String formula, String ref, int masterRow, int masterCol) {
+    CellRangeAddress range = CellRangeAddress.valueOf(ref);
+    this.formula = formula;
+    this.firstRow = Math.max(masterRow, range.getFirstRow());
+    this.firstCol = Math.max(masterCol, range.getFirstColumn());
+  }
+}
+
+
+class ArrayFormulaXlsx {
+
+  final CellRangeAddress range;
+  final String formula;
+
+  ArrayFormulaXlsx(CellRangeAddress range, String formula) {
+    this.range = range;
+    this.formula = formula;
+  }
+}
+
+
+class RowXlsxStreaming implements IRow {
+
+  private final int rowIdx;
+  private final List<ICell> cells;
+
+  public RowXlsxStreaming(int rowIdx, List<ICell> cells) {
+    this.rowIdx = rowIdx;
+    this.cells = cells;
+  }
+
+  @Override
+  public int getRowIndex() {
+    return rowIdx;
+  }
+
+  @Override
+  public Iterator<ICell> getCellIterator() {
+    return cells.iterator();
+  }
+}
+
+
+class CellXlsxStreaming implements ICell {
+
+  private final SheetXlsxStreaming sheet;
+  private final int rowIdx;
+  private final int colIdx;
+  private final String type;
+  private final String value;
+  private final String inlineText;
+  private final boolean hasFormula;
+  private final String formula;
+  private final SharedFormulaXlsx sharedFormula;
+
+  public CellXlsxStreaming(SheetXlsxStreaming sheet, int rowIdx, int colIdx, String type,
+      String value, String inlineText, boolean hasFormula, String formula,
+      SharedFormulaXlsx sharedFormula) {
+    this.sheet = sheet;
+    this.rowIdx = rowIdx;
+    this.colIdx = colIdx;
+    this.type = (type == null) ? "n" : type;
+    this.value = value;
+    this.inlineText = inlineText;
+    this.hasFormula = hasFormula;
+    this.formula = formula;
+    this.sharedFormula = sharedFormula;
+  }
+
+  @Override
+  public int getRowIndex() {
+    return rowIdx;
+  }
+
+  @Override
+  public int getColumnIndex() {
+    return colIdx;
+  }
+
+  @Override
+  public CellValue getValue() {
+    String cellFormula = null;
+    if (hasFormula) {
+      cellFormula = (sharedFormula != null)
+          ? sheet.renderSharedFormula(sharedFormula, rowIdx, colIdx) : formula;
+    }
+    String cellValue;
+    if ("b".equals(type)) {
+      return CellValue.ofBoolean(hasFormula, cellFormula, "1".equals(value));
+    } else if ("e".equals(type)) {
+      cellValue = String.valueOf((value == null) ? 0 : FormulaError.forString(value).getCode());
+    } else if ("n".equals(type)) {
+      if ((value == null) && !hasFormula) {
+        cellValue = "";
+      } else {
+        return CellValue.ofNumber(hasFormula, cellFormula,
+            ((value == null) || value.isEmpty()) ? 0.0 : Double.parseDouble(value));
+      }
+    } else if (hasFormula) {
+      cellValue = SpreadSheetXlsxStreaming.utfDecode((value == null) ? "" : value);
+    } else if ("inlineStr".equals(type)) {
+      cellValue = (inlineText != null) ? inlineText
+          : SpreadSheetXlsxStreaming.utfDecode((value == null) ? "" : value);
+    } else if ("s".equals(type)) {
+      cellValue = (value == null) ? "" : sheet.getSharedString(Integer.parseInt(value));
+    } else {
+      cellValue = SpreadSheetXlsxStreaming.utfDecode((value == null) ? "" : value);
+    }
+    return CellValue.ofString(hasFormula, cellFormula, cellValue);
+  }
+}
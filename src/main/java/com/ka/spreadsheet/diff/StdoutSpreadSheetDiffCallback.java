@@ -6,24 +6,28 @@ import java.util.Set;
 
 public class StdoutSpreadSheetDiffCallback extends SpreadSheetDiffCallbackBase {
 
-  private final Set<Object> sheets = new LinkedHashSet<Object>();
-  private final Set<Object> rows = new LinkedHashSet<Object>();
-  private final Set<Object> cols = new LinkedHashSet<Object>();
-  private final Set<Object> macros = new LinkedHashSet<Object>();
+  private final OutputSink out;
 
-  private final Set<Object> sheets1 = new LinkedHashSet<Object>();
-  private final Set<Object> rows1 = new LinkedHashSet<Object>();
-  private final Set<Object> cols1 = new LinkedHashSet<Object>();
+  private final DiffSummary diffs = new DiffSummary();
+  private final Set<Object> macros = new LinkedHashSet<Object>();
 
-  private final Set<Object> sheets2 = new LinkedHashSet<Object>();
-  private final Set<Object> rows2 = new LinkedHashSet<Object>();
-  private final Set<Object> cols2 = new LinkedHashSet<Object>();
+  private final DiffSummary extras1 = new DiffSummary();
+  private final DiffSummary extras2 = new DiffSummary();
 
   private final Set<Object> macros1 = new LinkedHashSet<Object>();
   private final Set<Object> macros2 = new LinkedHashSet<Object>();
 
   private String file1;
   private String file2;
+  private String lastSheetName;
+
+  public StdoutSpreadSheetDiffCallback() {
+    this(OutputSink.toStdout());
+  }
+
+  public StdoutSpreadSheetDiffCallback(OutputSink out) {
+    this.out = out;
+  }
 
   @Override
   public void init(String file1, String file2) {
@@ -35,57 +39,65 @@ public class StdoutSpreadSheetDiffCallback extends SpreadSheetDiffCallbackBase {
   @Override
   public void reportWorkbooksDiffer(boolean differ) {
     super.reportWorkbooksDiffer(differ);
-    reportSummary("DIFF", sheets, rows, cols, macros);
-    reportSummary("EXTRA WB1", sheets1, rows1, cols1, macros1);
-    reportSummary("EXTRA WB2", sheets2, rows2, cols2, macros2);
-    System.out.println("-----------------------------------------");
-    System.out.println("Excel files " + file1 + " and " + file2 + " "
+    reportSummary("DIFF", diffs, macros);
+    reportSummary("EXTRA WB1", extras1, macros1);
+    reportSummary("EXTRA WB2", extras2, macros2);
+    out.println("-----------------------------------------");
+    out.println("Excel files " + file1 + " and " + file2 + " "
         + (differ ? "differ" : "match"));
   }
 
+  @Override
+  public void finish() {
+    super.finish();
+    out.flush();
+  }
+
   @Override
   public void reportMacroOnlyIn(boolean inFirstSpreadSheet) {
     super.reportMacroOnlyIn(inFirstSpreadSheet);
     String name = "unknown";
     (inFirstSpreadSheet ? macros1 : macros2).add(name);
-    System.out.println("EXTRA macro name: " + name + " found only in " + wb(inFirstSpreadSheet));
+    out.println("EXTRA macro name: " + name + " found only in " + wb(inFirstSpreadSheet));
   }
 
   @Override
   public void reportExtraCell(boolean inFirstSpreadSheet, CellPos c) {
     super.reportExtraCell(inFirstSpreadSheet, c);
-    if (inFirstSpreadSheet) {
-      sheets1.add(c.getSheetName());
-      rows1.add(c.getRow());
-      cols1.add(c.getColumn());
-    } else {
-      sheets2.add(c.getSheetName());
-      rows2.add(c.getRow());
-      cols2.add(c.getColumn());
-    }
-    System.out.println("EXTRA Cell in " + wb(inFirstSpreadSheet) + " " + c.getCellPosition()
+    flushOnNewSheet(c.getSheetName());
+    (inFirstSpreadSheet ? extras1 : extras2).add(c.getSheetName(), c.getRowIndex(),
+        c.getColumnIndex());
+    out.println("EXTRA Cell in " + wb(inFirstSpreadSheet) + " " + c.getCellPosition()
         + " => '" + c.getCellValue() + "'");
   }
 
   @Override
   public void reportDiffCell(CellPos c1, CellPos c2) {
     super.reportDiffCell(c1, c2);
-    sheets.add(c1.getSheetName());
-    rows.add(c1.getRow());
-    cols.add(c1.getColumn());
-    System.out.println("DIFF  Cell at     " + c1.getCellPosition() + " => '" + c1.getCellValue()
-        + "' v/s '" + c2.getCellValue() + "'");
+    flushOnNewSheet(c1.getSheetName());
+    diffs.add(c1.getSheetName(), c1.getRowIndex(), c1.getColumnIndex());
+    // the cells are at different positions only if they are aligned, see --align_rows
+    String at2 = ((c1.getRowIndex() == c2.getRowIndex())
+        && (c1.getColumnIndex() == c2.getColumnIndex())) ? "" : (c2.getCellPosition() + " => ");
+    out.println("DIFF  Cell at     " + c1.getCellPosition() + " => '" + c1.getCellValue()
+        + "' v/s " + at2 + "'" + c2.getCellValue() + "'");
   }
 
-  private void reportSummary(String what, Set<Object> sheets, Set<Object> rows, Set<Object> cols,
-      Set<Object> macros) {
-    System.out.println("----------------- " + what + " -------------------");
-    System.out.println("Sheets: " + sheets);
-    System.out.println("Rows: " + rows);
-    System.out.println("Cols: " + cols);
+  private void reportSummary(String what, DiffSummary summary, Set<Object> macros) {
+    out.println("----------------- " + what + " -------------------");
+    out.println("Sheets: " + summary.renderSheets());
+    out.println("Rows: " + summary.renderRows());
+    out.println("Cols: " + summary.renderCols());
     if (!macros.isEmpty()) {
-      System.out.println("Macros: " + macros);
+      out.println("Macros: " + macros);
+    }
+  }
+
+  private void flushOnNewSheet(String sheetName) {
+    if ((lastSheetName != null) && !lastSheetName.equals(sheetName)) {
+      out.flush();
     }
+    lastSheetName = sheetName;
   }
 
   private String wb(boolean inFirstSpreadSheet) {
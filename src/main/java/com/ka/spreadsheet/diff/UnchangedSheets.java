@@ -0,0 +1,355 @@
+package com.ka.spreadsheet.diff;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import javax.annotation.Nullable;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Sheets known to be the same in both workbooks from their raw bytes, before anything is parsed.
+ * Either the files are byte for byte the same, or, for zipped formats, the entries cells are read
+ * from have the same CRC and size in both central directories:
+ *  *  xlsx: the sheet entry, given the same sheet names, defined names, 1904 date system,
+ *     shared strings and external links. Styles are not looked at, cell values don't depend on
+ *     them.
+ *  *  ods: content.xml, which holds all the sheets.
+ * Only valid if both workbooks are diffed with the same ignores.
+ */
+class UnchangedSheets {
+
+  static final UnchangedSheets NONE = new UnchangedSheets(false, Collections.<Integer>emptySet());
+  static final UnchangedSheets ALL = new UnchangedSheets(true, Collections.<Integer>emptySet());
+
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  private final boolean all;
+  private final Set<Integer> sheetIdxs;
+
+  private UnchangedSheets(boolean all, Set<Integer> sheetIdxs) {
+    this.all = all;
+    this.sheetIdxs = sheetIdxs;
+  }
+
+  /**
+   * True if the workbooks are the same, there is nothing to load.
+   */
+  boolean all() {
+    return all;
+  }
+
+  boolean contains(int sheetIdx) {
+    return all || sheetIdxs.contains(sheetIdx);
+  }
+
+  int size() {
+    return sheetIdxs.size();
+  }
+
+  /**
+   * Also the given sheets, e.g. the ones whose cells hash the same in both workbooks.
+   */
+  UnchangedSheets plus(Set<Integer> moreSheetIdxs) {
+    if (all || moreSheetIdxs.isEmpty()) {
+      return this;
+    }
+    Set<Integer> union = new HashSet<Integer>(sheetIdxs);
+    union.addAll(moreSheetIdxs);
+    return new UnchangedSheets(false, union);
+  }
+
+  static UnchangedSheets find(File file1, File file2) throws IOException {
+    SpreadSheetFormat format = SpreadSheetFormat.detect(file1);
+    if ((format == null) || (format != SpreadSheetFormat.detect(file2))) {
+      return NONE;
+    }
+    if (sameBytes(file1, file2)) {
+      return ALL;
+    }
+    switch (format) {
+      case XLSX:
+        return findXlsx(file1, file2);
+      case ODS:
+        return sameEntry(file1, file2, "content.xml") ? ALL : NONE;
+      default:
+        return NONE;
+    }
+  }
+
+  /**
+   * Skips the unchanged sheets of the iterator.
+   */
+  Iterator<ISheet> skip(Iterator<ISheet> sheetIterator) {
+    return sheetIdxs.isEmpty() ? sheetIterator : filter(sheetIterator, sheetIdxs, false);
+  }
+
+  /**
+   * Only the unchanged sheets of the iterator.
+   */
+  Iterator<ISheet> only(Iterator<ISheet> sheetIterator) {
+    return filter(sheetIterator, sheetIdxs, true);
+  }
+
+  /**
+   * The sheets of the iterator whose index is in sheetIdxs if in, those whose index isn't
+   * otherwise.
+   */
+  static Iterator<ISheet> filter(final Iterator<ISheet> sheetIterator,
+      final Set<Integer> sheetIdxs, final boolean in) {
+    return new Iterator<ISheet>() {
+
+      private ISheet nextSheet;
+
+      @Override
+      public boolean hasNext() {
+        while ((nextSheet == null) && sheetIterator.hasNext()) {
+          ISheet sheet = sheetIterator.next();
+          if (sheetIdxs.contains(sheet.getSheetIndex()) == in) {
+            nextSheet = sheet;
+          }
+        }
+        return nextSheet != null;
+      }
+
+      @Override
+      public ISheet next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        ISheet sheet = nextSheet;
+        nextSheet = null;
+        return sheet;
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  static boolean sameBytes(File file1, File file2) throws IOException {
+    if (file1.getCanonicalFile().equals(file2.getCanonicalFile())) {
+      return true;
+    }
+    if (file1.length() != file2.length()) {
+      return false;
+    }
+    InputStream in1 = new FileInputStream(file1);
+    try {
+      InputStream in2 = new FileInputStream(file2);
+      try {
+        byte[] buf1 = new byte[BUFFER_SIZE];
+        byte[] buf2 = new byte[BUFFER_SIZE];
+        while (true) {
+          int len = readFully(in1, buf1);
+          if ((len != readFully(in2, buf2)) || !rangeEquals(buf1, buf2, len)) {
+            return false;
+          }
+          if (len < BUFFER_SIZE) {
+            return true;
+          }
+        }
+      } finally {
+        in2.close();
+      }
+    } finally {
+      in1.close();
+    }
+  }
+
+  private static int readFully(InputStream in, byte[] buf) throws IOException {
+    int len = 0;
+    int read;
+    while ((len < buf.length) && ((read = in.read(buf, len, buf.length - len)) != -1)) {
+      len += read;
+    }
+    return len;
+  }
+
+  private static boolean rangeEquals(byte[] buf1, byte[] buf2, int len) {
+    for (int i = 0; i < len; i++) {
+      if (buf1[i] != buf2[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean sameEntry(File file1, File file2, String name) throws IOException {
+    ZipFile zipFile1 = new ZipFile(file1);
+    try {
+      ZipFile zipFile2 = new ZipFile(file2);
+      try {
+        String fingerprint = fingerprint(zipFile1, name);
+        return (fingerprint != null) && fingerprint.equals(fingerprint(zipFile2, name));
+      } finally {
+        zipFile2.close();
+      }
+    } finally {
+      zipFile1.close();
+    }
+  }
+
+  private static UnchangedSheets findXlsx(File file1, File file2) throws IOException {
+    XlsxFingerprints fingerprints1 = XlsxFingerprints.read(file1);
+    XlsxFingerprints fingerprints2 = XlsxFingerprints.read(file2);
+    if ((fingerprints1 == null) || (fingerprints2 == null)
+        || !fingerprints1.workbook.equals(fingerprints2.workbook)) {
+      return NONE;
+    }
+    Set<Integer> sheetIdxs = new HashSet<Integer>();
+    for (int i = 0; i < fingerprints1.sheets.size(); i++) {
+      if (fingerprints1.sheets.get(i).equals(fingerprints2.sheets.get(i))) {
+        sheetIdxs.add(i);
+      }
+    }
+    return sheetIdxs.isEmpty() ? NONE : new UnchangedSheets(false, sheetIdxs);
+  }
+
+  /**
+   * CRC and size of the zip entry, null if there is no such entry or they aren't known.
+   */
+  @Nullable
+  static String fingerprint(ZipFile zipFile, String name) {
+    ZipEntry entry = zipFile.getEntry(name);
+    if ((entry == null) || (entry.getCrc() == -1) || (entry.getSize() == -1)) {
+      return null;
+    }
+    return Long.toHexString(entry.getCrc()) + ":" + entry.getSize();
+  }
+
+  /**
+   * What the cells of the sheets of an xlsx workbook are read from, as far as the central
+   * directory and the small workbook part tell.
+   */
+  private static class XlsxFingerprints {
+
+    private static final String RELATIONSHIPS_NS =
+        "http://schemas.openxmlformats.org/officeDocument/2006/relationships";
+
+    /** Everything all the sheets depend on. */
+    private final String workbook;
+    /** The sheet entries, by sheet index. */
+    private final List<String> sheets;
+
+    private XlsxFingerprints(String workbook, List<String> sheets) {
+      this.workbook = workbook;
+      this.sheets = sheets;
+    }
+
+    /**
+     * Returns null if the workbook isn't laid out as expected, e.g. it has chart sheets.
+     */
+    @Nullable
+    static XlsxFingerprints read(File file) throws IOException {
+      ZipFile zipFile = new ZipFile(file);
+      try {
+        Map<String, String[]> rootRels = readRels(zipFile, "", "_rels/.rels");
+        String workbookName = null;
+        for (String[] rel : rootRels.values()) {
+          if (rel[1].endsWith("/officeDocument")) {
+            workbookName = rel[0];
+          }
+        }
+        if ((workbookName == null) || (zipFile.getEntry(workbookName) == null)) {
+          return null;
+        }
+        int dirEnd = workbookName.lastIndexOf('/') + 1;
+        Map<String, String[]> workbookRels = readRels(zipFile, workbookName.substring(0, dirEnd),
+            workbookName.substring(0, dirEnd) + "_rels/" + workbookName.substring(dirEnd)
+            + ".rels");
+        StringBuilder workbook = new StringBuilder();
+        for (String[] rel : workbookRels.values()) {
+          // shared strings hold the text of the cells, external links name the workbooks formulas
+          // refer to
+          if (rel[1].endsWith("/sharedStrings") || rel[1].endsWith("/externalLink")) {
+            workbook.append(rel[0]).append('=').append(fingerprint(zipFile, rel[0])).append('\n');
+          }
+        }
+        List<String> sheets = new ArrayList<String>();
+        XMLStreamReader xml = SpreadSheetXlsxStreaming.XML_INPUT_FACTORY.createXMLStreamReader(
+            zipFile.getInputStream(zipFile.getEntry(workbookName)));
+        try {
+          while (xml.hasNext()) {
+            if (xml.next() != XMLStreamConstants.START_ELEMENT) {
+              continue;
+            }
+            if ("sheet".equals(xml.getLocalName())) {
+              String[] rel = workbookRels.get(xml.getAttributeValue(RELATIONSHIPS_NS, "id"));
+              if ((rel == null) || !rel[1].endsWith("/worksheet")) {
+                return null;
+              }
+              String fingerprint = fingerprint(zipFile, rel[0]);
+              if (fingerprint == null) {
+                return null;
+              }
+              sheets.add(fingerprint);
+              workbook.append("sheet=").append(xml.getAttributeValue(null, "name")).append('\n');
+            } else if ("definedName".equals(xml.getLocalName())) {
+              workbook.append("definedName=").append(xml.getAttributeValue(null, "name"))
+                  .append(':').append(xml.getAttributeValue(null, "localSheetId"))
+                  .append(':').append(xml.getElementText()).append('\n');
+            } else if ("workbookPr".equals(xml.getLocalName())) {
+              workbook.append("date1904=").append(xml.getAttributeValue(null, "date1904"))
+                  .append('\n');
+            }
+          }
+        } finally {
+          xml.close();
+        }
+        return new XlsxFingerprints(workbook.toString(), sheets);
+      } catch (XMLStreamException e) {
+        return null;
+      } finally {
+        zipFile.close();
+      }
+    }
+
+    /**
+     * Returns the relationships of a part by id, as {target entry name, type}.
+     */
+    private static Map<String, String[]> readRels(ZipFile zipFile, String baseDir, String name)
+        throws IOException, XMLStreamException {
+      Map<String, String[]> rels = new HashMap<String, String[]>();
+      ZipEntry entry = zipFile.getEntry(name);
+      if (entry == null) {
+        return rels;
+      }
+      XMLStreamReader xml = SpreadSheetXlsxStreaming.XML_INPUT_FACTORY.createXMLStreamReader(
+          zipFile.getInputStream(entry));
+      try {
+        while (xml.hasNext()) {
+          if ((xml.next() == XMLStreamConstants.START_ELEMENT)
+              && "Relationship".equals(xml.getLocalName())) {
+            String target = xml.getAttributeValue(null, "Target");
+            if ((target == null) || "External".equals(xml.getAttributeValue(null, "TargetMode"))) {
+              continue;
+            }
+            String entryName = target.startsWith("/") ? target.substring(1) : baseDir + target;
+            rels.put(xml.getAttributeValue(null, "Id"),
+                new String[] {entryName, String.valueOf(xml.getAttributeValue(null, "Type"))});
+          }
+        }
+      } finally {
+        xml.close();
+      }
+      return rels;
+    }
+  }
+}
@@ -26,11 +26,20 @@ import static com.ka.spreadsheet.diff.SpreadSheetUtils.CELL_INTERNAL_TO_USER;
 // Each cell data line is always present, even if the data is empty (thus just "-" or "+).
 public class UnifiedDiffSpreadSheetDiffCallback extends SpreadSheetDiffCallbackBase {
   private final String lineSeparator = System.getProperty("line.separator");
+  private final OutputSink out;
   private String file1;
   private String file2;
-  private DiffCell prevDiffCell = new DiffCell("", -2, -2, null, null);
+  private DiffCell prevDiffCell = new DiffCell("", -2, -2, -2, -2, null, null);
   private List<DiffCell> currentCellBlock = new ArrayList<DiffCell>();
 
+  public UnifiedDiffSpreadSheetDiffCallback() {
+    this(OutputSink.toStdout());
+  }
+
+  public UnifiedDiffSpreadSheetDiffCallback(OutputSink out) {
+    this.out = out;
+  }
+
   @Override
   public void init(String file1, String file2) {
     super.init(file1, file2);
@@ -42,12 +51,13 @@ public class UnifiedDiffSpreadSheetDiffCallback extends SpreadSheetDiffCallbackB
   public void finish() {
     super.finish();
     printAndEmptyCellBlock();
+    out.flush();
   }
 
   @Override
   public void reportMacroOnlyIn(boolean inFirstSpreadSheet) {
     super.reportMacroOnlyIn(inFirstSpreadSheet);
-    System.out.println("Unified diff format does not support macros, however WB" + (inFirstSpreadSheet ? "1" : "2") + " contains at least one macro that is not in the other workbook.");
+    out.println("Unified diff format does not support macros, however WB" + (inFirstSpreadSheet ? "1" : "2") + " contains at least one macro that is not in the other workbook.");
   }
 
   @Override
@@ -56,6 +66,8 @@ public class UnifiedDiffSpreadSheetDiffCallback extends SpreadSheetDiffCallbackB
     accumulateAndMaybePrint(new DiffCell(
       c.getSheetName(),
       c.getRowIndex(),
+      c.getRowIndex(),
+      c.getColumnIndex(),
       c.getColumnIndex(),
       (inFirstSpreadSheet ? c.getCellValue() : null),
       (!inFirstSpreadSheet ? c.getCellValue() : null)
@@ -68,7 +80,9 @@ public class UnifiedDiffSpreadSheetDiffCallback extends SpreadSheetDiffCallbackB
     accumulateAndMaybePrint(new DiffCell(
       c1.getSheetName(),
       c1.getRowIndex(),
+      c2.getRowIndex(),
       c1.getColumnIndex(),
+      c2.getColumnIndex(),
       c1.getCellValue(),
       c2.getCellValue()
     ));
@@ -77,8 +91,9 @@ public class UnifiedDiffSpreadSheetDiffCallback extends SpreadSheetDiffCallbackB
   private void accumulateAndMaybePrint(DiffCell diffCell) {
     if (!isSameSheet(prevDiffCell, diffCell)) {
       printAndEmptyCellBlock();
-      System.out.println("--- " + file1 + "!" + diffCell.sheetName);
-      System.out.println("+++ " + file2 + "!" + diffCell.sheetName);
+      out.flush();
+      out.println("--- " + file1 + "!" + diffCell.sheetName);
+      out.println("+++ " + file2 + "!" + diffCell.sheetName);
     }
     if (!isSameRow(prevDiffCell, diffCell)) {
       printAndEmptyCellBlock();
@@ -95,11 +110,11 @@ public class UnifiedDiffSpreadSheetDiffCallback extends SpreadSheetDiffCallbackB
   }
 
   private boolean isSameRow(DiffCell c1, DiffCell c2) {
-    return c1.rowIndex == c2.rowIndex;
+    return c1.rowIndex == c2.rowIndex && c1.row2Index == c2.row2Index;
   }
 
   private boolean isSameCellBlock(DiffCell c1, DiffCell c2) {
-    return c1.colIndex == (c2.colIndex - 1);
+    return c1.colIndex == (c2.colIndex - 1) && c1.col2Index == (c2.col2Index - 1);
   }
 
   // TODO: Make this handle multiple rows, maybe.  What would that output look like?  This might be a bad idea.
@@ -107,12 +122,12 @@ public class UnifiedDiffSpreadSheetDiffCallback extends SpreadSheetDiffCallbackB
     if (currentCellBlock.size() > 0) {
       StringBuilder sheet1Lines = new StringBuilder();
       StringBuilder sheet2Lines = new StringBuilder();
-      String cellRange = CELL_INTERNAL_TO_USER(currentCellBlock.get(0).rowIndex, currentCellBlock.get(0).colIndex);
-      if (currentCellBlock.size() > 1) {
-          cellRange = cellRange + "," +
-            CELL_INTERNAL_TO_USER(currentCellBlock.get(0).rowIndex, currentCellBlock.get(currentCellBlock.size()-1).colIndex);
-      }
-      System.out.println("@@ -" + cellRange + " +" + cellRange + " @@");
+      DiffCell first = currentCellBlock.get(0);
+      DiffCell last = currentCellBlock.get(currentCellBlock.size() - 1);
+      String cellRange = cellRange(first.rowIndex, first.colIndex, last.colIndex);
+      // positions differ only if they were aligned, see --align_rows / --align_columns
+      String cellRange2 = cellRange(first.row2Index, first.col2Index, last.col2Index);
+      out.println("@@ -" + cellRange + " +" + cellRange2 + " @@");
       int prevCol = -1;
       for (DiffCell rowCell : currentCellBlock) {
         assert currentCellBlock.get(0).rowIndex == rowCell.rowIndex : "printAndEmptyCellBlock() only supports one row at a time.";
@@ -128,23 +143,35 @@ public class UnifiedDiffSpreadSheetDiffCallback extends SpreadSheetDiffCallbackB
         sheet1Lines.append(lineSeparator);
         sheet2Lines.append(lineSeparator);
       }
-      System.out.print(sheet1Lines.toString());
-      System.out.print(sheet2Lines.toString());
+      out.print(sheet1Lines.toString());
+      out.print(sheet2Lines.toString());
     }
     currentCellBlock = new ArrayList<DiffCell>();
   }
 
+  private String cellRange(int rowIndex, int firstColIndex, int lastColIndex) {
+    String cellRange = CELL_INTERNAL_TO_USER(rowIndex, firstColIndex);
+    if (currentCellBlock.size() > 1) {
+        cellRange = cellRange + "," + CELL_INTERNAL_TO_USER(rowIndex, lastColIndex);
+    }
+    return cellRange;
+  }
+
   private class DiffCell {
     String sheetName;
     int rowIndex;
+    int row2Index;
     int colIndex;
+    int col2Index;
     CellValue c1Value;
     CellValue c2Value;
 
-    public DiffCell(String _sheetName, int _rowIndex, int _colIndex, CellValue _c1Value, CellValue _c2Value) {
+    public DiffCell(String _sheetName, int _rowIndex, int _row2Index, int _colIndex, int _col2Index, CellValue _c1Value, CellValue _c2Value) {
       sheetName = _sheetName;
       rowIndex = _rowIndex;
+      row2Index = _row2Index;
       colIndex = _colIndex;
+      col2Index = _col2Index;
       c1Value = _c1Value;
       c2Value = _c2Value;
     }
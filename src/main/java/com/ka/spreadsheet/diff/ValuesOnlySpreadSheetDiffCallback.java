@@ -0,0 +1,49 @@
+package com.ka.spreadsheet.diff;
+
+/**
+ * Passes the calls on to another callback with cells whose values have no formula, so that
+ * formatters print the values which were compared when formulas are ignored.
+ */
+class ValuesOnlySpreadSheetDiffCallback implements SpreadSheetDiffCallback {
+
+  private final SpreadSheetDiffCallback delegate;
+
+  ValuesOnlySpreadSheetDiffCallback(SpreadSheetDiffCallback delegate) {
+    this.delegate = delegate;
+  }
+
+  @Override
+  public void init(String file1, String file2) {
+    delegate.init(file1, file2);
+  }
+
+  @Override
+  public void finish() {
+    delegate.finish();
+  }
+
+  @Override
+  public void reportDiffCell(CellPos c1, CellPos c2) {
+    delegate.reportDiffCell(c1.withoutFormula(), c2.withoutFormula());
+  }
+
+  @Override
+  public void reportExtraCell(boolean inFirstSpreadSheet, CellPos c) {
+    delegate.reportExtraCell(inFirstSpreadSheet, c.withoutFormula());
+  }
+
+  @Override
+  public void reportMacroOnlyIn(boolean inFirstSpreadSheet) {
+    delegate.reportMacroOnlyIn(inFirstSpreadSheet);
+  }
+
+  @Override
+  public void reportWorkbooksDiffer(boolean differ) {
+    delegate.reportWorkbooksDiffer(differ);
+  }
+
+  @Override
+  public boolean isDone() {
+    return delegate.isDone();
+  }
+}
@@ -1,7 +1,9 @@
 package com.ka.spreadsheet.diff;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.TreeMap;
 
 import javax.annotation.Nullable;
 
@@ -18,6 +20,33 @@ public class WorkbookIgnores {
     return ignoredByName != null ? ignoredByName : ((ignoredAll != null) ? ignoredAll : null);
   }
 
+  /**
+   * True if both have the same sheet ignore specs, and so ignore the same cells of any workbook.
+   */
+  public boolean sameAs(WorkbookIgnores other) {
+    if (!ignores.keySet().equals(other.ignores.keySet())) {
+      return false;
+    }
+    for (Map.Entry<String, SheetIgnores> entry : ignores.entrySet()) {
+      if (!entry.getValue().spec().equals(other.ignores.get(entry.getKey()).spec())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * The sheet ignore specs, sorted so that two instances which are the sameAs() each other have
+   * the same spec.
+   */
+  public String spec() {
+    StringBuilder spec = new StringBuilder();
+    for (SheetIgnores sheetIgnores : new TreeMap<String, SheetIgnores>(ignores).values()) {
+      spec.append(sheetIgnores.spec()).append('\n');
+    }
+    return spec.toString();
+  }
+
   public static WorkbookIgnores parseWorkbookIgnores(String[] args, String opt) {
     int start = -1, end = -1;
     for (int i = 0; i < args.length; i++) {
@@ -34,12 +63,17 @@ public class WorkbookIgnores {
     if (end == -1)
       end = args.length;
 
+    return (start != -1) ? of(Arrays.copyOfRange(args, start, end)) : of();
+  }
+
+  /**
+   * The ignores of the sheet ignore specs, as given after --ignore1 / --ignore2.
+   */
+  public static WorkbookIgnores of(String... sheetIgnoreSpecs) {
     Map<String, SheetIgnores> ret = new HashMap<String, SheetIgnores>();
-    if (start != -1) {
-      for (int i = start; i < end; i++) {
-        SheetIgnores s = SheetIgnores.newSheetIgnore(args[i]);
-        ret.put(s.sheetName(), s);
-      }
+    for (String spec : sheetIgnoreSpecs) {
+      SheetIgnores s = SheetIgnores.newSheetIgnore(spec);
+      ret.put(s.sheetName(), s);
     }
     return new WorkbookIgnores(ret);
   }
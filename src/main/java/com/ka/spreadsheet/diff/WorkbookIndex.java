@@ -0,0 +1,417 @@
+package com.ka.spreadsheet.diff;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.annotation.Nullable;
+
+/**
+ * Hashes of the cells of a workbook, per sheet, per row and per column, as they are compared:
+ * after the ignores, and only the formula of formula cells unless formulas are ignored. Rows or
+ * sheets with the same hash in two workbooks are taken to be the same, while a different hash only
+ * says they have to be diffed. Columns hash the same if they have the same cells in the same rows.
+ * Sheets without any cell are left out, they hash the same as a missing sheet.
+ */
+class WorkbookIndex {
+
+  /** Hash of a row before its first cell is mixed in, see {@link #mixCell}. */
+  static final long SEED = 0x243F6A8885A308D3L;
+
+  @Nullable
+  private final Boolean hasMacro;
+  private final Map<Integer, SheetIndex> sheets;
+
+  private WorkbookIndex(@Nullable Boolean hasMacro, Map<Integer, SheetIndex> sheets) {
+    this.hasMacro = hasMacro;
+    this.sheets = sheets;
+  }
+
+  /**
+   * Reads all the cells of the workbook.
+   */
+  static WorkbookIndex build(ISpreadSheet spreadSheet, WorkbookIgnores ignores,
+      boolean compareFormulas) {
+    Builder builder = new Builder(compareFormulas);
+    ISpreadSheetCursor cursor =
+        builder.indexing(new SpreadSheetCursor(spreadSheet, ignores), UnchangedSheets.NONE);
+    while (cursor.advance()) {
+    }
+    return builder.build(spreadSheet.hasMacro());
+  }
+
+  /**
+   * Whether the workbook has macros, null if its reader can't tell.
+   */
+  @Nullable
+  Boolean hasMacro() {
+    return hasMacro;
+  }
+
+  /**
+   * True if diffing the workbooks indexed with the same options would find no difference.
+   */
+  boolean sameAs(WorkbookIndex other) {
+    if ((hasMacro != null) && (other.hasMacro != null) && !hasMacro.equals(other.hasMacro)) {
+      return false;
+    }
+    Set<Integer> same = sameSheets(other);
+    return (same.size() == sheets.size()) && (same.size() == other.sheets.size());
+  }
+
+  /**
+   * Indexes of the sheets with the same hash in both, sheets without any cell in both excepted.
+   */
+  Set<Integer> sameSheets(WorkbookIndex other) {
+    Set<Integer> same = new HashSet<Integer>();
+    for (Map.Entry<Integer, SheetIndex> entry : sheets.entrySet()) {
+      SheetIndex otherSheet = other.sheets.get(entry.getKey());
+      if ((otherSheet != null) && (otherSheet.hash == entry.getValue().hash)) {
+        same.add(entry.getKey());
+      }
+    }
+    return same;
+  }
+
+  /**
+   * Whether the row has any cell and hashes to rowHash.
+   */
+  boolean hasRow(int sheetIdx, int rowIdx, long rowHash) {
+    SheetIndex sheet = sheets.get(sheetIdx);
+    if (sheet == null) {
+      return false;
+    }
+    int idx = Arrays.binarySearch(sheet.rows, rowIdx);
+    return (idx >= 0) && (sheet.rowHashes[idx] == rowHash);
+  }
+
+  /**
+   * The indexes of the rows of the sheet with any cell, in order, null if it has none.
+   */
+  @Nullable
+  int[] rows(int sheetIdx) {
+    SheetIndex sheet = sheets.get(sheetIdx);
+    return (sheet == null) ? null : sheet.rows;
+  }
+
+  /**
+   * The hashes of the rows of the sheet, in the order of rows(), null if it has none.
+   */
+  @Nullable
+  long[] rowHashes(int sheetIdx) {
+    SheetIndex sheet = sheets.get(sheetIdx);
+    return (sheet == null) ? null : sheet.rowHashes;
+  }
+
+  /**
+   * The indexes of the columns of the sheet with any cell, in order, null if it has none.
+   */
+  @Nullable
+  int[] columns(int sheetIdx) {
+    SheetIndex sheet = sheets.get(sheetIdx);
+    return (sheet == null) ? null : sheet.cols;
+  }
+
+  /**
+   * The hashes of the columns of the sheet, in the order of columns(), null if it has none.
+   */
+  @Nullable
+  long[] columnHashes(int sheetIdx) {
+    SheetIndex sheet = sheets.get(sheetIdx);
+    return (sheet == null) ? null : sheet.colHashes;
+  }
+
+  Set<Integer> sheetIndexes() {
+    return sheets.keySet();
+  }
+
+  void write(DataOutputStream out) throws IOException {
+    out.writeByte((hasMacro == null) ? -1 : (hasMacro ? 1 : 0));
+    out.writeInt(sheets.size());
+    for (Map.Entry<Integer, SheetIndex> entry : sheets.entrySet()) {
+      SheetIndex sheet = entry.getValue();
+      out.writeInt(entry.getKey());
+      out.writeInt(sheet.rows.length);
+      for (int i = 0; i < sheet.rows.length; i++) {
+        out.writeInt(sheet.rows[i]);
+        out.writeLong(sheet.rowHashes[i]);
+      }
+      out.writeInt(sheet.cols.length);
+      for (int i = 0; i < sheet.cols.length; i++) {
+        out.writeInt(sheet.cols[i]);
+        out.writeLong(sheet.colHashes[i]);
+      }
+    }
+  }
+
+  static WorkbookIndex read(DataInputStream in) throws IOException {
+    byte macro = in.readByte();
+    Boolean hasMacro = (macro == -1) ? null : Boolean.valueOf(macro == 1);
+    Map<Integer, SheetIndex> sheets = new TreeMap<Integer, SheetIndex>();
+    int numSheets = in.readInt();
+    for (int i = 0; i < numSheets; i++) {
+      int sheetIdx = in.readInt();
+      SheetIndex.Builder sheet = new SheetIndex.Builder();
+      int numRows = in.readInt();
+      for (int j = 0; j < numRows; j++) {
+        sheet.add(in.readInt(), in.readLong());
+      }
+      int numCols = in.readInt();
+      for (int j = 0; j < numCols; j++) {
+        sheet.setColumn(in.readInt(), in.readLong());
+      }
+      sheets.put(sheetIdx, sheet.build());
+    }
+    return new WorkbookIndex(hasMacro, sheets);
+  }
+
+  static long hashValue(CellValue value, boolean compareFormulas) {
+    long h = SEED;
+    if (compareFormulas && value.hasFormula()) {
+      return mix(mix(h, -1), value.getFormula());
+    }
+    h = mix(h, value.getType().ordinal());
+    switch (value.getType()) {
+      case NUMBER:
+        return mix(h, Double.doubleToLongBits(value.getNumber()));
+      case BOOLEAN:
+        return mix(h, value.getBoolean() ? 1 : 0);
+      case STRING:
+        return mix(h, value.getString());
+      default:
+        return h;
+    }
+  }
+
+  /**
+   * Mixes a cell into the hash of its row, the cells of a row being mixed in column order.
+   */
+  static long mixCell(long rowHash, int colIdx, long valueHash) {
+    return mix(mix(rowHash, colIdx), valueHash);
+  }
+
+  static long mix(long h, long v) {
+    h ^= v * 0x9E3779B97F4A7C15L;
+    return Long.rotateLeft(h, 29) * 0xBF58476D1CE4E5B9L;
+  }
+
+  static long mix(long h, @Nullable String s) {
+    if (s == null) {
+      return mix(h, -2);
+    }
+    // FNV-1a over the chars, then mixed in with the length
+    long fnv = 0xCBF29CE484222325L;
+    for (int i = 0; i < s.length(); i++) {
+      fnv = (fnv ^ s.charAt(i)) * 0x100000001B3L;
+    }
+    return mix(mix(h, s.length()), fnv);
+  }
+
+  /**
+   * Indexes the cells of a workbook as cursors walk them, e.g. while it is diffed, the cursors
+   * possibly walking different sheets on different threads. The index is complete once each
+   * sheet has been walked to its end by one cursor.
+   */
+  static class Builder {
+
+    private final boolean compareFormulas;
+    private final Map<Integer, SheetIndex> sheets = new TreeMap<Integer, SheetIndex>();
+    private int numCursors;
+    private int numCursorsDone;
+
+    Builder(boolean compareFormulas) {
+      this.compareFormulas = compareFormulas;
+    }
+
+    /**
+     * Returns a cursor walking the cells of the given one and indexing them, the cells of the
+     * hidden sheets being indexed without being walked.
+     */
+    synchronized ISpreadSheetCursor indexing(ISpreadSheetCursor cursor, UnchangedSheets hidden) {
+      numCursors++;
+      return new IndexingCursor(cursor, hidden);
+    }
+
+    /**
+     * True if every cursor returned by indexing() has walked to its end.
+     */
+    synchronized boolean isComplete() {
+      return numCursorsDone == numCursors;
+    }
+
+    synchronized WorkbookIndex build(@Nullable Boolean hasMacro) {
+      return new WorkbookIndex(hasMacro, new TreeMap<Integer, SheetIndex>(sheets));
+    }
+
+    private synchronized void add(int sheetIdx, SheetIndex sheet) {
+      sheets.put(sheetIdx, sheet);
+    }
+
+    private synchronized void cursorDone() {
+      numCursorsDone++;
+    }
+
+    private class IndexingCursor implements ISpreadSheetCursor {
+
+      private final ISpreadSheetCursor cursor;
+      private final UnchangedSheets hidden;
+      private SheetIndex.Builder sheet;
+      private int sheetIdx = -1;
+      private int rowIdx = -1;
+      private long rowHash = SEED;
+      // read once, both to be hashed and to be diffed
+      private CellValue value;
+      private boolean done;
+
+      IndexingCursor(ISpreadSheetCursor cursor, UnchangedSheets hidden) {
+        this.cursor = cursor;
+        this.hidden = hidden;
+      }
+
+      @Override
+      public boolean advance() {
+        while (cursor.advance()) {
+          index();
+          if (!hidden.contains(sheetIdx)) {
+            return true;
+          }
+        }
+        if (!done) {
+          done = true;
+          endSheet();
+          cursorDone();
+        }
+        return false;
+      }
+
+      private void index() {
+        if ((sheet == null) || (cursor.getSheetIndex() != sheetIdx)) {
+          endSheet();
+          sheet = new SheetIndex.Builder();
+          sheetIdx = cursor.getSheetIndex();
+          rowIdx = cursor.getRowIndex();
+          rowHash = SEED;
+        } else if (cursor.getRowIndex() != rowIdx) {
+          sheet.add(rowIdx, rowHash);
+          rowIdx = cursor.getRowIndex();
+          rowHash = SEED;
+        }
+        value = cursor.getCellValue();
+        long valueHash = hashValue(value, compareFormulas);
+        rowHash = mixCell(rowHash, cursor.getColumnIndex(), valueHash);
+        sheet.addToColumn(cursor.getColumnIndex(), rowIdx, valueHash);
+      }
+
+      private void endSheet() {
+        if (sheet != null) {
+          sheet.add(rowIdx, rowHash);
+          add(sheetIdx, sheet.build());
+          sheet = null;
+        }
+      }
+
+      @Override
+      public ISheet getSheet() {
+        return cursor.getSheet();
+      }
+
+      @Override
+      public int getSheetIndex() {
+        return cursor.getSheetIndex();
+      }
+
+      @Override
+      public int getRowIndex() {
+        return cursor.getRowIndex();
+      }
+
+      @Override
+      public int getColumnIndex() {
+        return cursor.getColumnIndex();
+      }
+
+      @Override
+      public CellValue getCellValue() {
+        return value;
+      }
+
+      @Override
+      public CellPos toCellPos() {
+        return cursor.toCellPos();
+      }
+    }
+  }
+
+  private static class SheetIndex {
+
+    private final long hash;
+    private final int[] rows;
+    private final long[] rowHashes;
+    private final int[] cols;
+    private final long[] colHashes;
+
+    private SheetIndex(long hash, int[] rows, long[] rowHashes, int[] cols, long[] colHashes) {
+      this.hash = hash;
+      this.rows = rows;
+      this.rowHashes = rowHashes;
+      this.cols = cols;
+      this.colHashes = colHashes;
+    }
+
+    /**
+     * Rows are added in order, the cells of a column in row order.
+     */
+    private static class Builder {
+
+      private int[] rows = new int[16];
+      private long[] rowHashes = new long[16];
+      private int size;
+      private long hash = SEED;
+      // by column index, only for the columns set in hasCol
+      private long[] colHashes = new long[16];
+      private final BitSet hasCol = new BitSet();
+
+      void add(int rowIdx, long rowHash) {
+        if (size == rows.length) {
+          rows = Arrays.copyOf(rows, size * 2);
+          rowHashes = Arrays.copyOf(rowHashes, size * 2);
+        }
+        rows[size] = rowIdx;
+        rowHashes[size] = rowHash;
+        size++;
+        hash = mix(mix(hash, rowIdx), rowHash);
+      }
+
+      void addToColumn(int colIdx, int rowIdx, long valueHash) {
+        long colHash = hasCol.get(colIdx) ? colHashes[colIdx] : SEED;
+        setColumn(colIdx, mix(mix(colHash, rowIdx), valueHash));
+      }
+
+      void setColumn(int colIdx, long colHash) {
+        if (colIdx >= colHashes.length) {
+          colHashes = Arrays.copyOf(colHashes, Math.max(colIdx + 1, colHashes.length * 2));
+        }
+        colHashes[colIdx] = colHash;
+        hasCol.set(colIdx);
+      }
+
+      SheetIndex build() {
+        int[] cols = new int[hasCol.cardinality()];
+        long[] builtColHashes = new long[cols.length];
+        for (int i = 0, colIdx = hasCol.nextSetBit(0); colIdx >= 0;
+            i++, colIdx = hasCol.nextSetBit(colIdx + 1)) {
+          cols[i] = colIdx;
+          builtColHashes[i] = colHashes[colIdx];
+        }
+        return new SheetIndex(hash, Arrays.copyOf(rows, size), Arrays.copyOf(rowHashes, size),
+            cols, builtColHashes);
+      }
+    }
+  }
+}
@@ -0,0 +1,256 @@
+package com.ka.spreadsheet.diff;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * The xml of an xlsx sheet, each row the ignores exclude cut down to an empty row element such as
+ * {@code <row r="5"/>} before it reaches the xml parser, where the time reading a sheet goes. The
+ * rows are found by their bytes, which only takes a scan for '<'.
+ *
+ * A row is kept whole if it defines a formula for other cells, the master cell of a shared or
+ * array formula having a ref attribute, and so is all of the xml unless its encoding is ASCII
+ * compatible, which it is for xlsx files written by Excel, always in UTF-8.
+ */
+class XlsxRowSkippingInputStream extends InputStream {
+
+  private static final Charset US_ASCII = Charset.forName("US-ASCII");
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  private final InputStream in;
+  private final SheetIgnores ignores;
+  private byte[] buf = new byte[BUFFER_SIZE];
+  // the bytes from pos to limit are returned, those from next to end are yet to scan, rows cut
+  // down in place in between
+  private int pos;
+  private int limit;
+  private int next;
+  private int end;
+  private boolean eof;
+  private boolean scanned;
+  private boolean asciiCompatible = true;
+  private int lastRowIdx = -1;
+
+  XlsxRowSkippingInputStream(InputStream in, SheetIgnores ignores) {
+    this.in = in;
+    this.ignores = ignores;
+  }
+
+  @Override
+  public int read() throws IOException {
+    byte[] b = new byte[1];
+    return (read(b, 0, 1) == -1) ? -1 : (b[0] & 0xFF);
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    if ((pos == limit) && !scan()) {
+      return -1;
+    }
+    int n = Math.min(len, limit - pos);
+    System.arraycopy(buf, pos, b, off, n);
+    pos += n;
+    return n;
+  }
+
+  @Override
+  public void close() throws IOException {
+    in.close();
+  }
+
+  /**
+   * Scans the bytes read, reading more until there are some to return. Returns false at the end of
+   * the xml.
+   */
+  private boolean scan() throws IOException {
+    while (true) {
+      if (scanned) {
+        if (asciiCompatible) {
+          scanRows();
+        } else {
+          pass(end);
+        }
+        if (limit > pos) {
+          return true;
+        } else if (eof) {
+          return false;
+        }
+      }
+      fill();
+    }
+  }
+
+  /**
+   * Passes the bytes read up to the start of a row not all read yet, cutting down the ignored
+   * rows on the way.
+   */
+  private void scanRows() {
+    int rowStart;
+    while ((rowStart = indexOfRow(next)) >= 0) {
+      int tagEnd = indexOf((byte) '>', rowStart, end);
+      if (tagEnd < 0) {
+        break;
+      }
+      int r = rowNumber(rowStart, tagEnd);
+      int rowIdx = (r > 0) ? (r - 1) : (lastRowIdx + 1);
+      if ((buf[tagEnd - 1] != '/') && ignores.isRowIgnored(rowIdx)) {
+        int endTag = indexOfEndRow(tagEnd);
+        int endTagEnd = (endTag < 0) ? -1 : indexOf((byte) '>', endTag, end);
+        if (endTagEnd < 0) {
+          break;
+        }
+        if (definesFormula(tagEnd, endTagEnd)) {
+          pass(endTagEnd + 1);
+        } else {
+          pass(rowStart);
+          // never longer than the row, which has the same r attribute and an end tag
+          byte[] emptyRow = ((r > 0) ? ("<row r=\"" + r + "\"/>") : "<row/>").getBytes(US_ASCII);
+          System.arraycopy(emptyRow, 0, buf, limit, emptyRow.length);
+          limit += emptyRow.length;
+          next = endTagEnd + 1;
+        }
+      } else {
+        pass(tagEnd + 1);
+      }
+      lastRowIdx = rowIdx;
+    }
+    if (eof) {
+      pass(end);
+    } else if (rowStart >= 0) {
+      pass(rowStart);
+    } else {
+      // all but what may be the start of a row cut short at the end
+      pass(end - 4);
+    }
+  }
+
+  /**
+   * Moves the bytes scanned up to there next to those to return.
+   */
+  private void pass(int to) {
+    if (to > next) {
+      if (limit != next) {
+        System.arraycopy(buf, next, buf, limit, to - next);
+      }
+      limit += to - next;
+      next = to;
+    }
+  }
+
+  /**
+   * Reads more of the xml, keeping the bytes to return and those yet to scan.
+   */
+  private void fill() throws IOException {
+    if ((pos > 0) || (limit != next)) {
+      int returned = limit - pos;
+      System.arraycopy(buf, pos, buf, 0, returned);
+      System.arraycopy(buf, next, buf, returned, end - next);
+      end = returned + (end - next);
+      pos = 0;
+      limit = returned;
+      next = returned;
+    }
+    if (end == buf.length) {
+      // a row longer than the buffer
+      buf = Arrays.copyOf(buf, buf.length * 2);
+    }
+    int n = in.read(buf, end, buf.length - end);
+    if (n == -1) {
+      eof = true;
+    } else {
+      end += n;
+    }
+    if (!scanned && ((end >= 2) || eof)) {
+      scanned = true;
+      // UTF-16 starts with a byte order mark or with a 0 byte next to the '<'
+      asciiCompatible = (end < 2) || !(((buf[0] & 0xFF) == 0xFE) || ((buf[0] & 0xFF) == 0xFF)
+          || (buf[0] == 0) || (buf[1] == 0));
+    }
+  }
+
+  /**
+   * Index of the next "<row" start tag from, -1 if there is none in the bytes read.
+   */
+  private int indexOfRow(int from) {
+    for (int i = indexOf((byte) '<', from, end - 4); i >= 0;
+        i = indexOf((byte) '<', i + 1, end - 4)) {
+      if ((buf[i + 1] == 'r') && (buf[i + 2] == 'o') && (buf[i + 3] == 'w')
+          && isTagNameEnd(buf[i + 4])) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Index of the next "</row" end tag from, -1 if there is none in the bytes read.
+   */
+  private int indexOfEndRow(int from) {
+    for (int i = indexOf((byte) '<', from, end - 5); i >= 0;
+        i = indexOf((byte) '<', i + 1, end - 5)) {
+      if ((buf[i + 1] == '/') && (buf[i + 2] == 'r') && (buf[i + 3] == 'o')
+          && (buf[i + 4] == 'w') && isTagNameEnd(buf[i + 5])) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * The r attribute of the row start tag, 0 if it has none.
+   */
+  private int rowNumber(int rowStart, int tagEnd) {
+    for (int i = rowStart + 4; i < tagEnd - 3; i++) {
+      if (isSpace(buf[i]) && (buf[i + 1] == 'r') && (buf[i + 2] == '=')
+          && ((buf[i + 3] == '"') || (buf[i + 3] == '\''))) {
+        int r = 0;
+        for (int j = i + 4; (j < tagEnd) && (buf[j] >= '0') && (buf[j] <= '9'); j++) {
+          r = (r * 10) + (buf[j] - '0');
+        }
+        return r;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * True if any formula of the row has a ref attribute.
+   */
+  private boolean definesFormula(int from, int to) {
+    for (int i = indexOf((byte) '<', from, to - 2); i >= 0;
+        i = indexOf((byte) '<', i + 1, to - 2)) {
+      if ((buf[i + 1] == 'f') && isSpace(buf[i + 2])) {
+        int tagEnd = indexOf((byte) '>', i, to);
+        for (int j = i + 2; j < tagEnd - 4; j++) {
+          if (isSpace(buf[j]) && (buf[j + 1] == 'r') && (buf[j + 2] == 'e')
+              && (buf[j + 3] == 'f') && (buf[j + 4] == '=')) {
+            return true;
+          }
+        }
+      }
+    }
+    return false;
+  }
+
+  private int indexOf(byte b, int from, int to) {
+    for (int i = from; i < to; i++) {
+      if (buf[i] == b) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static boolean isTagNameEnd(byte b) {
+    return isSpace(b) || (b == '>') || (b == '/');
+  }
+
+  private static boolean isSpace(byte b) {
+    return (b == ' ') || (b == '\t') || (b == '\n') || (b == '\r');
+  }
+}
@@ -15,7 +15,7 @@ public class LogUtil {
         fa.setThreshold(Level.DEBUG);
         fa.setAppend(false);
         fa.activateOptions();
-        Logger.getRootLogger().addAppender(fa);
+        replaceAppender(Logger.getRootLogger(), fa);
     }
 
     public static void initCleanLogging(String logFileName){
@@ -28,13 +28,27 @@ public class LogUtil {
         fa.setThreshold(Level.DEBUG);
         fa.setAppend(false);
         fa.activateOptions();
-        Logger.getLogger("DisplayLogger").addAppender(fa);
+        replaceAppender(Logger.getLogger("DisplayLogger"), fa);
         ConsoleAppender ca = new ConsoleAppender();
+        ca.setName("ConsoleDisplayLogger");
         ca.setLayout(new PatternLayout("%m%n"));
         ca.setThreshold(Level.DEBUG);
         ca.activateOptions();
-        Logger.getLogger("DisplayLogger").addAppender(ca);
+        replaceAppender(Logger.getLogger("DisplayLogger"), ca);
 
 
     }
-}
\ No newline at end of file
+
+    /**
+     * Adds the appender, closing the one of the same name added by an earlier diff in this JVM,
+     * so that diffing again logs to the new file and the current System.out only.
+     */
+    private static void replaceAppender(Logger logger, Appender appender){
+        Appender old = logger.getAppender(appender.getName());
+        if (old != null) {
+            logger.removeAppender(old);
+            old.close();
+        }
+        logger.addAppender(appender);
+    }
+}
@@ -0,0 +1,323 @@
+package com.ka.spreadsheet.diff;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.FileUtils;
+
+import com.ka.spreadsheet.diff.WorkbookGenerator.Format;
+import com.ka.spreadsheet.diff.WorkbookGenerator.Shape;
+
+/**
+ * Diffs generated workbooks of a few shapes with SpreadSheetDiffer.doDiff and records the wall
+ * time, peak heap and cells diffed per second of each, the best of a few runs. The results are
+ * compared with a baseline, and the test fails if any wall time or peak heap is more than the
+ * threshold above it, or if there is no baseline. Run with "gradle perfTest", or
+ * "gradle perfTest -PupdateBaseline" to write the baseline from this run.
+ *
+ * System properties:
+ * perf.baseline: the baseline file
+ * perf.results: where to write the results of this run
+ * perf.threshold: how much worse than the baseline a run may be, 0.3 by default
+ * perf.runs: the number of runs of each diff, 3 by default
+ * perf.scale: multiplies the number of rows of every workbook, 1 by default
+ * perf.updateBaseline: writes the results as the baseline instead of comparing them
+ */
+public class PerfTest {
+
+  private static final Pattern RESULT_PATTERN = Pattern.compile(
+      "\"name\": \"([^\"]+)\", \"wallMillis\": (\\d+), \"peakHeapBytes\": (\\d+)");
+
+  /**
+   * Whether a diff runs with --cache_dir, and whether the cache then holds the first workbook.
+   */
+  private enum Cache {
+    NONE,
+    COLD,
+    WARM
+  }
+
+  private static class Scenario {
+
+    private final String name;
+    private final Shape shape;
+    private final Format format;
+    private final Cache cache;
+    private final String[] flags;
+
+    Scenario(String name, Shape shape, Format format, String... flags) {
+      this(name, shape, format, Cache.NONE, flags);
+    }
+
+    Scenario(String name, Shape shape, Format format, Cache cache, String... flags) {
+      this.name = name;
+      this.shape = shape;
+      this.format = format;
+      this.cache = cache;
+      this.flags = flags;
+    }
+  }
+
+  private static class Result {
+
+    private final String name;
+    private final long wallMillis;
+    private final long peakHeapBytes;
+    private final long cellsPerSec;
+
+    Result(String name, long wallMillis, long peakHeapBytes, long cellsPerSec) {
+      this.name = name;
+      this.wallMillis = wallMillis;
+      this.peakHeapBytes = peakHeapBytes;
+      this.cellsPerSec = cellsPerSec;
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    double scale = Double.parseDouble(System.getProperty("perf.scale", "1"));
+    int numRuns = Integer.parseInt(System.getProperty("perf.runs", "3"));
+    double threshold = Double.parseDouble(System.getProperty("perf.threshold", "0.3"));
+    File baselineFile = new File(System.getProperty("perf.baseline", "perf-baseline.json"));
+    String resultsFilename = System.getProperty("perf.results");
+    boolean updateBaseline = Boolean.getBoolean("perf.updateBaseline");
+
+    List<Scenario> scenarios = scenarios(scale);
+    File dir = Files.createTempDirectory("excel_cmp_perf").toFile();
+    List<Result> results = new ArrayList<Result>();
+    try {
+      for (Scenario scenario : scenarios) {
+        results.add(run(scenario, dir, numRuns));
+      }
+    } finally {
+      FileUtils.deleteDirectory(dir);
+    }
+
+    String json = toJson(results);
+    if (resultsFilename != null) {
+      write(new File(resultsFilename), json);
+    }
+    if (updateBaseline) {
+      write(baselineFile, json);
+      System.out.println("Wrote the baseline to " + baselineFile);
+      return;
+    }
+    if (!baselineFile.exists()) {
+      System.out.println("No baseline at " + baselineFile
+          + ", run \"gradle perfTest -PupdateBaseline\" to write one");
+      System.exit(1);
+    }
+    Map<String, long[]> baseline = parseJson(read(baselineFile));
+    boolean regressed = false;
+    for (Result result : results) {
+      long[] base = baseline.get(result.name);
+      if (base == null) {
+        System.out.println(result.name + ": not in the baseline");
+        continue;
+      }
+      regressed |= regressed(result.name, "wall time", result.wallMillis, base[0], threshold);
+      regressed |= regressed(result.name, "peak heap", result.peakHeapBytes, base[1], threshold);
+    }
+    if (regressed) {
+      System.out.println("Performance regressed more than " + (int) (threshold * 100)
+          + "% from " + baselineFile);
+      System.exit(1);
+    }
+    System.out.println("No regression from " + baselineFile);
+  }
+
+  private static List<Scenario> scenarios(double scale) {
+    List<Scenario> scenarios = new ArrayList<Scenario>();
+    scenarios.add(new Scenario("xlsx", new Shape().rows(rows(10000, scale)), Format.XLSX));
+    scenarios.add(new Scenario("xlsx_streaming",
+        new Shape().sheets(2).rows(rows(50000, scale)).cols(20), Format.XLSX, "--streaming"));
+    scenarios.add(new Scenario("xlsx_streaming_parallel",
+        new Shape().sheets(4).rows(rows(25000, scale)).cols(20), Format.XLSX, "--streaming",
+        "--parallel"));
+    scenarios.add(new Scenario("xlsx_streaming_strings",
+        new Shape().rows(rows(50000, scale)).cols(20).typeMix(0.1, 0.9).sharedStrings(0.1),
+        Format.XLSX, "--streaming"));
+    scenarios.add(new Scenario("xlsx_streaming_many_diffs",
+        new Shape().rows(rows(20000, scale)).cols(20).diffs(0.5), Format.XLSX, "--streaming"));
+    scenarios.add(new Scenario("xlsx_streaming_ignores",
+        new Shape().rows(rows(50000, scale)).cols(20).ignoredRows(rows(10000, scale)),
+        Format.XLSX, "--streaming"));
+    scenarios.add(new Scenario("xlsx_streaming_align_rows",
+        new Shape().rows(rows(50000, scale)).cols(20).insertedRows(0.001), Format.XLSX,
+        "--streaming", "--align_rows"));
+    scenarios.add(new Scenario("xlsx_streaming_align_columns",
+        new Shape().rows(rows(50000, scale)).cols(20), Format.XLSX, "--streaming",
+        "--align_columns"));
+    scenarios.add(new Scenario("xlsx_streaming_key_columns",
+        new Shape().rows(rows(50000, scale)).cols(20).insertedRows(0.001), Format.XLSX,
+        "--streaming", "--key_columns=:A,B"));
+    // the same workbooks diffed with the first one not cached yet, then cached
+    Shape cached = new Shape().sheets(2).rows(rows(50000, scale)).cols(20).diffs(0.001);
+    scenarios.add(new Scenario("xlsx_streaming_cache_cold", cached, Format.XLSX, Cache.COLD,
+        "--streaming"));
+    scenarios.add(new Scenario("xlsx_streaming_cache_warm", cached, Format.XLSX, Cache.WARM,
+        "--streaming"));
+    scenarios.add(new Scenario("xlsx_streaming_parallel_cache_cold",
+        new Shape().sheets(4).rows(rows(25000, scale)).cols(20), Format.XLSX, Cache.COLD,
+        "--streaming", "--parallel"));
+    scenarios.add(new Scenario("xls", new Shape().rows(rows(20000, scale)), Format.XLS));
+    scenarios.add(new Scenario("xls_streaming", new Shape().rows(rows(20000, scale)), Format.XLS,
+        "--streaming"));
+    // the ods DOM is slow to walk, keep it small
+    scenarios.add(new Scenario("ods", new Shape().rows(rows(100, scale)), Format.ODS));
+    scenarios.add(new Scenario("ods_streaming", new Shape().rows(rows(20000, scale)), Format.ODS,
+        "--streaming"));
+    return scenarios;
+  }
+
+  private static int rows(int numRows, double scale) {
+    return Math.max(1, (int) (numRows * scale));
+  }
+
+  private static Result run(Scenario scenario, File dir, int numRuns) throws Exception {
+    File file1 = new File(dir, scenario.name + "_1" + scenario.format.getExtension());
+    File file2 = new File(dir, scenario.name + "_2" + scenario.format.getExtension());
+    File output = new File(dir, scenario.name + ".out");
+    long numCells = WorkbookGenerator.generate(scenario.shape, scenario.format, file1, file2);
+
+    List<String> args = new ArrayList<String>();
+    args.add(new File(dir, "perf.log").getPath());
+    args.addAll(Arrays.asList(scenario.flags));
+    args.add("--output=" + output.getPath());
+    File cacheDir = new File(dir, scenario.name + "_cache");
+    if (scenario.cache != Cache.NONE) {
+      args.add("--cache_dir=" + cacheDir.getPath());
+    }
+    args.add(file1.getPath());
+    args.add(file2.getPath());
+    String[] ignoreSpecs = WorkbookGenerator.ignoreSpecs(scenario.shape);
+    if (ignoreSpecs.length > 0) {
+      for (String ignoreFlag : Arrays.asList("--ignore1", "--ignore2")) {
+        args.add(ignoreFlag);
+        args.addAll(Arrays.asList(ignoreSpecs));
+      }
+    }
+
+    String[] argArray = args.toArray(new String[args.size()]);
+    if (scenario.cache == Cache.WARM) {
+      diff(scenario, argArray);
+    }
+    long bestNanos = Long.MAX_VALUE;
+    long bestPeakHeap = Long.MAX_VALUE;
+    for (int i = 0; i < numRuns; i++) {
+      if (scenario.cache == Cache.COLD) {
+        FileUtils.deleteDirectory(cacheDir);
+      }
+      System.gc();
+      resetPeakHeap();
+      long start = System.nanoTime();
+      diff(scenario, argArray);
+      long nanos = System.nanoTime() - start;
+      bestNanos = Math.min(bestNanos, nanos);
+      bestPeakHeap = Math.min(bestPeakHeap, peakHeap());
+    }
+    Result result = new Result(scenario.name, bestNanos / 1000000, bestPeakHeap,
+        (long) (numCells / (bestNanos / 1e9)));
+    System.out.println(scenario.name + " (" + scenario.shape + "): " + result.wallMillis + " ms, "
+        + (result.peakHeapBytes >> 20) + " MB peak heap, " + result.cellsPerSec + " cells/s");
+    return result;
+  }
+
+  private static void diff(Scenario scenario, String[] args) {
+    int ret = SpreadSheetDiffer.doDiff(args);
+    // 0 or 1 whether the workbooks match or not, small ones may not have any diff
+    if (ret < 0) {
+      throw new IllegalStateException(scenario.name + ": the diff returned " + ret);
+    }
+  }
+
+  private static void resetPeakHeap() {
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        pool.resetPeakUsage();
+      }
+    }
+  }
+
+  /**
+   * The sum of the peaks of the heap pools, which may not all peak at the same time, so an upper
+   * bound of the peak heap.
+   */
+  private static long peakHeap() {
+    long peak = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        peak += pool.getPeakUsage().getUsed();
+      }
+    }
+    return peak;
+  }
+
+  private static boolean regressed(String name, String what, long value, long baseValue,
+      double threshold) {
+    boolean regressed = value > baseValue * (1 + threshold);
+    System.out.println(name + ": " + what + " " + value + " against " + baseValue
+        + (regressed ? ", REGRESSED" : ""));
+    return regressed;
+  }
+
+  private static String toJson(List<Result> results) {
+    StringBuilder json = new StringBuilder("[\n");
+    for (int i = 0; i < results.size(); i++) {
+      Result result = results.get(i);
+      json.append("  {\"name\": \"").append(result.name)
+          .append("\", \"wallMillis\": ").append(result.wallMillis)
+          .append(", \"peakHeapBytes\": ").append(result.peakHeapBytes)
+          .append(", \"cellsPerSec\": ").append(result.cellsPerSec)
+          .append((i == results.size() - 1) ? "}\n" : "},\n");
+    }
+    return json.append("]\n").toString();
+  }
+
+  /**
+   * Wall time and peak heap by name, from the json written by toJson.
+   */
+  private static Map<String, long[]> parseJson(String json) {
+    Map<String, long[]> results = new LinkedHashMap<String, long[]>();
+    Matcher matcher = RESULT_PATTERN.matcher(json);
+    while (matcher.find()) {
+      results.put(matcher.group(1),
+          new long[] {Long.parseLong(matcher.group(2)), Long.parseLong(matcher.group(3))});
+    }
+    return results;
+  }
+
+  private static String read(File file) throws IOException {
+    return new String(FileUtils.readFileToByteArray(file), StandardCharsets.UTF_8);
+  }
+
+  private static void write(File file, String content) throws IOException {
+    File parent = file.getAbsoluteFile().getParentFile();
+    if (!parent.exists()) {
+      parent.mkdirs();
+    }
+    OutputStream out = new FileOutputStream(file);
+    try {
+      Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+      writer.write(content);
+      writer.flush();
+    } finally {
+      out.close();
+    }
+  }
+}
@@ -1,10 +1,19 @@
 package com.ka.spreadsheet.diff;
 
+import static com.ka.spreadsheet.diff.TestUtils.assertEquals;
 import static com.ka.spreadsheet.diff.TestUtils.assertTrue;
+import static com.ka.spreadsheet.diff.TestUtils.readFileIntoLines;
 import static com.ka.spreadsheet.diff.TestUtils.verifyFileContentsSame;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
 
 import javax.annotation.Nullable;
 
@@ -21,6 +30,12 @@ public class SpreadSheetDifferSmokeTest {
         new String[] {"src/test/resources/ss1.xlsx", "src/test/resources/ss1.xlsx"},
         resultFile("src/test/resources/ss1_xlsx_ss1_xlsx.out"),
         null);
+    testDiff(
+        "Identical xlsx files with different ignores",
+        new String[] {"src/test/resources/ss1.xlsx", "src/test/resources/ss1.xlsx",
+                      "--ignore1", "Sheet1:::A1"},
+        resultFile("src/test/resources/ss1_xlsx_ss1_xlsx_ignore1A1.out"),
+        null);
     testDiff(
         "Diff xlsx files",
         new String[] {"src/test/resources/ss1.xlsx", "src/test/resources/ss2.xlsx"},
@@ -126,6 +141,238 @@ public class SpreadSheetDifferSmokeTest {
                       "src/test/resources/ss_with_formula.xlsx"},
         resultFile("src/test/resources/ss_with_without_formula.out"),
         null);
+    testDiff(
+        "Diff xlsx files streaming",
+        new String[] {"--streaming",
+                      "src/test/resources/ss1.xlsx", "src/test/resources/ss2.xlsx"},
+        resultFile("src/test/resources/ss1_xlsx_ss2_xlsx.out"),
+        null);
+    testDiff(
+        "Diff xlsx and ods streaming",
+        new String[] {"--streaming",
+                      "src/test/resources/ss3.xlsx", "src/test/resources/ss3.ods"},
+        resultFile("src/test/resources/ss3_xlsx_ss3_ods.out"),
+        null);
+    testDiff(
+        "Numeric and formula xls xlsx streaming",
+        new String[] {"--streaming",
+                      "src/test/resources/numeric_and_formula.xls",
+                      "src/test/resources/numeric_and_formula.xlsx"},
+        resultFile("src/test/resources/numeric_and_formula.xls.xlsx.out"),
+        null);
+    testDiff(
+        "Numeric and formula xls odf streaming",
+        new String[] {"--streaming",
+                      "src/test/resources/numeric_and_formula.xls",
+                      "src/test/resources/numeric_and_formula.ods"},
+        resultFile("src/test/resources/numeric_and_formula.xls.ods.out"),
+        null);
+    testDiff(
+        "Nullable Sheet streaming",
+        new String[] {"--streaming",
+                      "src/test/resources/MultiSheet.xls", "src/test/resources/MultiSheet.xls",
+                      "--ignore1", "::B", "--ignore2", "::B"},
+        resultFile("src/test/resources/nullableSheet_xls.out"),
+        null);
+    testDiff(
+        "Macro diff streaming",
+        new String[] {"--streaming",
+                      "src/test/resources/ss_with_macro.xlsm",
+                      "src/test/resources/ss_without_macro.xlsx"},
+        resultFile("src/test/resources/macro_diff.out"),
+        null);
+    testDiff(
+        "With without formula with flag streaming",
+        new String[] {"--streaming",
+                      "--diff_ignore_formulas",
+                      "src/test/resources/ss_without_formula.xlsx",
+                      "src/test/resources/ss_with_formula.xlsx"},
+        resultFile("src/test/resources/ss_with_without_formula_ignoreformulaflag.out"),
+        null);
+    testDiff(
+        "Diff ods files streaming",
+        new String[] {"--streaming",
+                      "src/test/resources/ss1.ods", "src/test/resources/ss2.ods"},
+        resultFile("src/test/resources/ss1_ods_ss2_ods.out"),
+        null);
+    testDiff(
+        "Numeric and formula odf xlsx with flag streaming",
+        new String[] {"--streaming",
+                      "--diff_ignore_formulas",
+                      "src/test/resources/numeric_and_formula.ods",
+                      "src/test/resources/numeric_and_formula.xlsx"},
+        resultFile("src/test/resources/numeric_and_formula_ignoreformulaflag.ods.xlsx.out"),
+        null);
+    testDiff(
+        "Ignore single cell streaming",
+        new String[] {"--streaming",
+                      "src/test/resources/ss3.xlsx", "src/test/resources/ss3.ods",
+                      "--ignore1", "Sheet1:2:B", "--ignore2", "Sheet1:2:B"},
+        resultFile("src/test/resources/ss3_xlsx_ss3_ignore2B_ods.out"),
+        null);
+    testDiff(
+        "Diff xlsx files parallel",
+        new String[] {"--parallel",
+                      "src/test/resources/ss1.xlsx", "src/test/resources/ss2.xlsx"},
+        resultFile("src/test/resources/ss1_xlsx_ss2_xlsx.out"),
+        null);
+    testDiff(
+        "Diff xlsx files streaming parallel",
+        new String[] {"--streaming", "--parallel",
+                      "src/test/resources/ss1.xlsx", "src/test/resources/ss2.xlsx"},
+        resultFile("src/test/resources/ss1_xlsx_ss2_xlsx.out"),
+        null);
+    testDiff(
+        "Numeric and formula xls xlsx parallel",
+        new String[] {"--parallel",
+                      "src/test/resources/numeric_and_formula.xls",
+                      "src/test/resources/numeric_and_formula.xlsx"},
+        resultFile("src/test/resources/numeric_and_formula.xls.xlsx.out"),
+        null);
+    testDiff(
+        "Nullable Sheet parallel",
+        new String[] {"--parallel",
+                      "src/test/resources/MultiSheet.xls", "src/test/resources/MultiSheet.xls",
+                      "--ignore1", "::B", "--ignore2", "::B"},
+        resultFile("src/test/resources/nullableSheet_xls.out"),
+        null);
+    testDiff(
+        "Macro diff streaming parallel",
+        new String[] {"--streaming", "--parallel",
+                      "src/test/resources/ss_with_macro.xlsm",
+                      "src/test/resources/ss_without_macro.xlsx"},
+        resultFile("src/test/resources/macro_diff.out"),
+        null);
+    if (!isWindows) {
+      testDiff(
+          "File1 is /dev/null parallel",
+          new String[] {"--parallel", "src/test/resources/ss1.xlsx", "/dev/null"},
+          resultFile("src/test/resources/ss1_xlsx_dev_null.out"),
+          null);
+    }
+    testDiff(
+        "Diff xlsx files async",
+        new String[] {"--async",
+                      "src/test/resources/ss1.xlsx", "src/test/resources/ss2.xlsx"},
+        resultFile("src/test/resources/ss1_xlsx_ss2_xlsx.out"),
+        null);
+    testDiff(
+        "Macro diff streaming parallel async",
+        new String[] {"--streaming", "--parallel", "--async",
+                      "src/test/resources/ss_with_macro.xlsm",
+                      "src/test/resources/ss_without_macro.xlsx"},
+        resultFile("src/test/resources/macro_diff.out"),
+        null);
+    testDiffToOutputFile(
+        "Diff ods files async to output file",
+        new String[] {"--async", "src/test/resources/ss1.ods", "src/test/resources/ss2.ods"},
+        resultFile("src/test/resources/ss1_ods_ss2_ods.out"));
+    testDiff(
+        "Diff xlsx files quiet",
+        new String[] {"--quiet",
+                      "src/test/resources/ss1.xlsx", "src/test/resources/ss2.xlsx"},
+        null,
+        null);
+    testDiff(
+        "Diff xlsx files max diffs",
+        new String[] {"--max_diffs=2",
+                      "src/test/resources/ss1.xlsx", "src/test/resources/ss2.xlsx"},
+        resultFile("src/test/resources/ss1_xlsx_ss2_xlsx_max_diffs.out"),
+        null);
+    testDiff(
+        "Diff xlsx files max diffs parallel async",
+        new String[] {"--max_diffs=2", "--parallel", "--async",
+                      "src/test/resources/ss1.xlsx", "src/test/resources/ss2.xlsx"},
+        resultFile("src/test/resources/ss1_xlsx_ss2_xlsx_max_diffs.out"),
+        null);
+    testDiff(
+        "Diff xlsx files with aligned rows",
+        new String[] {"--align_rows",
+                      "src/test/resources/rows1.xlsx", "src/test/resources/rows2.xlsx"},
+        resultFile("src/test/resources/rows1_xlsx_rows2_xlsx_align_rows.out"),
+        null);
+    testDiff(
+        "Diff xlsx files with aligned rows streaming parallel",
+        new String[] {"--align_rows", "--streaming", "--parallel",
+                      "src/test/resources/rows1.xlsx", "src/test/resources/rows2.xlsx"},
+        resultFile("src/test/resources/rows1_xlsx_rows2_xlsx_align_rows.out"),
+        null);
+    testDiff(
+        "Diff xlsx files with aligned columns",
+        new String[] {"--align_columns",
+                      "src/test/resources/cols1.xlsx", "src/test/resources/cols2.xlsx"},
+        resultFile("src/test/resources/cols1_xlsx_cols2_xlsx_align_columns.out"),
+        null);
+    testDiff(
+        "Diff xlsx files with aligned columns and rows parallel",
+        new String[] {"--align_columns", "--align_rows", "--parallel",
+                      "src/test/resources/cols1.xlsx", "src/test/resources/cols2.xlsx"},
+        resultFile("src/test/resources/cols1_xlsx_cols2_xlsx_align_columns.out"),
+        null);
+    testDiff(
+        "Diff streamed ods files with aligned rows, which can't be aligned",
+        new String[] {"--align_rows", "--streaming",
+                      "src/test/resources/ss1.ods", "src/test/resources/ss2.ods"},
+        resultFile("src/test/resources/ss1_ods_ss2_ods.out"),
+        resultFile("src/test/resources/ss1_ods_ss2_ods_align_rows_streaming.err"));
+    testDiff(
+        "Diff xlsx files with rows matched by key columns",
+        new String[] {"--key_columns=Orders:A-B",
+                      "src/test/resources/keys1.xlsx", "src/test/resources/keys2.xlsx"},
+        resultFile("src/test/resources/keys1_xlsx_keys2_xlsx_key_columns.out"),
+        null);
+    testDiff(
+        "Diff xlsx files with rows matched by key columns streaming",
+        new String[] {"--key_columns=Orders:A,B", "--streaming",
+                      "src/test/resources/keys1.xlsx", "src/test/resources/keys2.xlsx"},
+        resultFile("src/test/resources/keys1_xlsx_keys2_xlsx_key_columns.out"),
+        null);
+    testDiff(
+        "Diff ods files with rows matched by key columns",
+        new String[] {"--key_columns=:A",
+                      "src/test/resources/ss1.ods", "src/test/resources/ss2.ods"},
+        resultFile("src/test/resources/ss1_ods_ss2_ods_key_columns.out"),
+        null);
+    File cacheDir = new File(TEMP_DIR, "excel_cmp_cache");
+    deleteCache(cacheDir);
+    for (int i = 0; i < 2; i++) {
+      String run = (i == 0) ? "cold" : "warm";
+      testDiff(
+          "Diff xlsx files with " + run + " cache",
+          new String[] {"--cache_dir=" + cacheDir,
+                        "src/test/resources/ss1.xlsx", "src/test/resources/ss2.xlsx"},
+          resultFile("src/test/resources/ss1_xlsx_ss2_xlsx.out"),
+          null);
+      testDiff(
+          "Diff streamed xlsx files with " + run + " cache",
+          new String[] {"--cache_dir=" + cacheDir, "--streaming",
+                        "src/test/resources/ss1.xlsx", "src/test/resources/ss2.xlsx"},
+          resultFile("src/test/resources/ss1_xlsx_ss2_xlsx.out"),
+          null);
+      testDiff(
+          "Numeric and formula xls xlsx parallel with " + run + " cache",
+          new String[] {"--cache_dir=" + cacheDir, "--parallel",
+                        "src/test/resources/numeric_and_formula.xls",
+                        "src/test/resources/numeric_and_formula.xlsx"},
+          resultFile("src/test/resources/numeric_and_formula.xls.xlsx.out"),
+          null);
+      testDiff(
+          "Diff ods files with " + run + " cache of 1 MB",
+          new String[] {"--cache_dir=" + cacheDir, "--cache_max_mb=1",
+                        "src/test/resources/ss1.ods", "src/test/resources/ss2.ods"},
+          resultFile("src/test/resources/ss1_ods_ss2_ods.out"),
+          null);
+    }
+    deleteCache(cacheDir);
+    testDiffToOutputFile(
+        "Diff xlsx files to output file",
+        new String[] {"src/test/resources/ss1.xlsx", "src/test/resources/ss2.xlsx"},
+        resultFile("src/test/resources/ss1_xlsx_ss2_xlsx.out"));
+    testDiffToOutputFile(
+        "Diff ods files to output file with Unified Diff output format",
+        new String[] {"--diff_format=unified",
+                      "src/test/resources/ss1.ods", "src/test/resources/ss2.ods"},
+        resultFile("src/test/resources/ss1_ods_ss2_ods_udiff.out"));
     testDiff(
         "Identical xlsx files with Unified Diff output format",
         new String[] {"--diff_format=unified",
@@ -202,6 +449,75 @@ public class SpreadSheetDifferSmokeTest {
                       "src/test/resources/ss_with_formula.xlsx"},
         resultFile("src/test/resources/ss_with_without_formula_udiff.out"),
         null);
+    testDiff(
+        "Diff xlsx files with aligned rows with Unified Diff output format",
+        new String[] {"--diff_format=unified", "--align_rows",
+                      "src/test/resources/rows1.xlsx", "src/test/resources/rows2.xlsx"},
+        resultFile("src/test/resources/rows1_xlsx_rows2_xlsx_align_rows_udiff.out"),
+        null);
+    testDiff(
+        "Diff xlsx files with aligned columns with Unified Diff output format",
+        new String[] {"--diff_format=unified", "--align_columns",
+                      "src/test/resources/cols1.xlsx", "src/test/resources/cols2.xlsx"},
+        resultFile("src/test/resources/cols1_xlsx_cols2_xlsx_align_columns_udiff.out"),
+        null);
+    testDiff(
+        "Diff xlsx files with rows matched by key columns with Unified Diff output format",
+        new String[] {"--diff_format=unified", "--key_columns=Orders:A-B",
+                      "src/test/resources/keys1.xlsx", "src/test/resources/keys2.xlsx"},
+        resultFile("src/test/resources/keys1_xlsx_keys2_xlsx_key_columns_udiff.out"),
+        null);
+    testBatchDiff(
+        "Diff the workbooks of two directories",
+        new String[] {"--batch", "--diff_numeric_precision=0.0000001",
+                      "src/test/resources/batch1", "src/test/resources/batch2"},
+        resultFile("src/test/resources/batch1_batch2.out"),
+        new File("src/test/resources/batch1_batch2"));
+    testBatchDiff(
+        "Diff the workbooks of a manifest with Unified Diff output format",
+        new String[] {"--batch_manifest=src/test/resources/batch_manifest.txt",
+                      "--diff_format=unified", "--batch_threads=2"},
+        resultFile("src/test/resources/batch_manifest.out"),
+        new File("src/test/resources/batch_manifest_udiff"));
+    testServerDiff(
+        "Diff xlsx files through a diff server",
+        new String[] {"src/test/resources/ss1.xlsx", "src/test/resources/ss2.xlsx"},
+        resultFile("src/test/resources/ss1_xlsx_ss2_xlsx.out"),
+        1);
+    testServerDiff(
+        "Diff xlsx files through a diff server with Unified Diff output format",
+        new String[] {"--diff_format=unified",
+                      "src/test/resources/ss1.xlsx", "src/test/resources/ss2.xlsx"},
+        resultFile("src/test/resources/ss1_xlsx_ss2_xlsx_udiff.out"),
+        1);
+    testConcurrentDiffs(
+        "Diff concurrently with different options",
+        new ConcurrentDiff("src/test/resources/ss1.xlsx", "src/test/resources/ss2.xlsx",
+            DiffOptions.DEFAULT, resultFile("src/test/resources/ss1_xlsx_ss2_xlsx.out")),
+        new ConcurrentDiff("src/test/resources/ss1_numeric_precision.xlsx",
+            "src/test/resources/ss2_numeric_precision.xlsx",
+            DiffOptions.builder().numericPrecision(0.0000001).build(),
+            resultFile("src/test/resources/numeric_precision_no_diff.out")),
+        new ConcurrentDiff("src/test/resources/ss1_numeric_precision.xlsx",
+            "src/test/resources/ss2_numeric_precision.xlsx", DiffOptions.DEFAULT,
+            resultFile("src/test/resources/numeric_precision_diff.out")),
+        new ConcurrentDiff("src/test/resources/numeric_and_formula.ods",
+            "src/test/resources/numeric_and_formula.xlsx",
+            DiffOptions.builder().ignoreFormulas(true).build(),
+            resultFile("src/test/resources/numeric_and_formula_ignoreformulaflag.ods.xlsx.out")),
+        new ConcurrentDiff("src/test/resources/ss3.xlsx", "src/test/resources/ss3.ods",
+            DiffOptions.builder().ignores1(WorkbookIgnores.of("Sheet1:2:B"))
+                .ignores2(WorkbookIgnores.of("Sheet1:2:B")).build(),
+            resultFile("src/test/resources/ss3_xlsx_ss3_ignore2B_ods.out")));
+    testConcurrentDiffs(
+        "Diff xlsx files with rows matched by key columns spilled to disk",
+        new ConcurrentDiff("src/test/resources/keys1.xlsx", "src/test/resources/keys2.xlsx",
+            DiffOptions.builder().keyColumns("Orders", 0, 1).keyMemoryBytes(256L).build(),
+            resultFile("src/test/resources/keys1_xlsx_keys2_xlsx_key_columns.out")),
+        new ConcurrentDiff("src/test/resources/keys1.xlsx", "src/test/resources/keys2.xlsx",
+            DiffOptions.builder().keyColumns("Orders", 0, 1).keyMemoryBytes(256L)
+                .streaming(true).build(),
+            resultFile("src/test/resources/keys1_xlsx_keys2_xlsx_key_columns.out")));
     System.err.println("All tests pass");
   }
 
@@ -214,6 +530,218 @@ public class SpreadSheetDifferSmokeTest {
     }
     return new File(resultFile);
   }
+  private static void deleteCache(File cacheDir) {
+    File[] entries = cacheDir.listFiles();
+    if (entries != null) {
+      for (File entry : entries) {
+        entry.delete();
+      }
+    }
+    cacheDir.delete();
+  }
+
+  /**
+   * Same as testDiff, with the diff written by --output to a file instead of stdout.
+   */
+  public static void testDiffToOutputFile(String testName, String[] args, File expectedOutFile)
+      throws Exception {
+    File outputFile = File.createTempFile("testOutput", "diff");
+    outputFile.deleteOnExit();
+    String[] outputArgs = new String[args.length + 1];
+    outputArgs[0] = "--output=" + outputFile.getPath();
+    System.arraycopy(args, 0, outputArgs, 1, args.length);
+    testDiff(testName, outputArgs, null, null);
+    verifyFileContentsSame("Output file", outputFile, expectedOutFile);
+  }
+
+  /**
+   * Same as testDiff, for --batch: the files written to the --output directory are also compared
+   * with those of expectedOutputDir, leaving out the timings of summary.json.
+   */
+  public static void testBatchDiff(String testName, String[] args, File expectedOutFile,
+      File expectedOutputDir) throws Exception {
+    File outputDir = Files.createTempDirectory("testOutput").toFile();
+    try {
+      String[] outputArgs = new String[args.length + 1];
+      outputArgs[0] = "--output=" + outputDir.getPath();
+      System.arraycopy(args, 0, outputArgs, 1, args.length);
+      testDiff(testName, outputArgs, expectedOutFile, null);
+      verifyDirectoryContentsSame(outputDir, expectedOutputDir);
+    } finally {
+      deleteRecursively(outputDir);
+    }
+  }
+
+  private static void verifyDirectoryContentsSame(File actualDir, File expectedDir)
+      throws Exception {
+    File[] expectedFiles = expectedDir.listFiles();
+    File[] actualFiles = actualDir.listFiles();
+    assertEquals("Files of " + actualDir, actualFiles.length, expectedFiles.length);
+    for (File expected : expectedFiles) {
+      File actual = new File(actualDir, expected.getName());
+      if (expected.isDirectory()) {
+        verifyDirectoryContentsSame(actual, expected);
+      } else if (expected.getName().equals(BatchDiff.SUMMARY_FILENAME)) {
+        File summary = File.createTempFile("testOutput", "json");
+        summary.deleteOnExit();
+        PrintStream out = new PrintStream(summary);
+        try {
+          for (String line : readFileIntoLines(actual)) {
+            out.println(line.replaceAll("\"millis\": \\d+", "\"millis\": 0"));
+          }
+        } finally {
+          out.close();
+        }
+        verifyFileContentsSame(actual.getPath(), summary, expected);
+      } else {
+        verifyFileContentsSame(actual.getPath(), actual, expected);
+      }
+    }
+  }
+
+  private static void deleteRecursively(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        deleteRecursively(child);
+      }
+    }
+    file.delete();
+  }
+
+  /**
+   * Same as testDiff, with the diff requested from a DiffServer serving one request, whose
+   * response is split back into stdout and stderr.
+   */
+  public static void testServerDiff(String testName, String[] args, File expectedOutFile,
+      int expectedExitStatus) throws Exception {
+    System.err.print(testName + "... ");
+    final String secret = "secret";
+    final ServerSocket serverSocket =
+        new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+    Thread serverThread = new Thread("diff-server") {
+      @Override
+      public void run() {
+        try {
+          Socket socket = serverSocket.accept();
+          try {
+            new DiffServer(secret).serve(socket);
+          } finally {
+            socket.close();
+          }
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+    serverThread.start();
+    File outFile = File.createTempFile("testOutput", "out");
+    File errFile = File.createTempFile("testOutput", "err");
+    outFile.deleteOnExit();
+    errFile.deleteOnExit();
+    Integer exitStatus = null;
+    Socket socket = new Socket(serverSocket.getInetAddress(), serverSocket.getLocalPort());
+    try {
+      PrintStream request = new PrintStream(socket.getOutputStream());
+      request.print(secret + "\n" + new File(".").getAbsolutePath() + "\n");
+      for (String arg : args) {
+        request.print(arg + "\n");
+      }
+      request.print("\n");
+      request.flush();
+      BufferedReader response =
+          new BufferedReader(new InputStreamReader(socket.getInputStream()));
+      PrintStream out = new PrintStream(outFile);
+      PrintStream err = new PrintStream(errFile);
+      try {
+        String line;
+        while ((line = response.readLine()) != null) {
+          if (line.startsWith("o ")) {
+            out.println(line.substring(2));
+          } else if (line.startsWith("e ")) {
+            err.println(line.substring(2));
+          } else if (line.startsWith("x ")) {
+            exitStatus = Integer.valueOf(line.substring(2));
+          }
+        }
+      } finally {
+        out.close();
+        err.close();
+      }
+    } finally {
+      socket.close();
+      serverThread.join();
+      serverSocket.close();
+    }
+    assertEquals("Exit status", exitStatus, expectedExitStatus);
+    verifyFileContentsSame("Err", errFile, null);
+    verifyFileContentsSame("Out", outFile, expectedOutFile);
+    System.err.println("passed");
+  }
+
+  private static class ConcurrentDiff {
+
+    private final File file1;
+    private final File file2;
+    private final DiffOptions options;
+    private final File expectedOutFile;
+
+    ConcurrentDiff(String file1, String file2, DiffOptions options, File expectedOutFile) {
+      this.file1 = new File(file1);
+      this.file2 = new File(file2);
+      this.options = options;
+      this.expectedOutFile = expectedOutFile;
+    }
+  }
+
+  /**
+   * Runs each diff twice at the same time with SpreadSheetDiffer.diff, whatever the flags, each
+   * printing to its own file which is compared with its expected output.
+   */
+  public static void testConcurrentDiffs(String testName, ConcurrentDiff... diffs)
+      throws Exception {
+    System.err.print(testName + "... ");
+    final int runs = 2;
+    Thread[] threads = new Thread[diffs.length * runs];
+    final File[] outFiles = new File[threads.length];
+    final Throwable[] failures = new Throwable[threads.length];
+    for (int i = 0; i < threads.length; i++) {
+      final int index = i;
+      final ConcurrentDiff diff = diffs[i / runs];
+      outFiles[i] = File.createTempFile("testOutput", "out");
+      outFiles[i].deleteOnExit();
+      threads[i] = new Thread("concurrent-diff-" + i) {
+        @Override
+        public void run() {
+          try {
+            OutputSink out = OutputSink.toFile(outFiles[index]);
+            try {
+              new SpreadSheetDiffer().diff(diff.file1, diff.file2, diff.options,
+                  new StdoutSpreadSheetDiffCallback(out));
+            } finally {
+              out.close();
+            }
+          } catch (Throwable t) {
+            failures[index] = t;
+          }
+        }
+      };
+    }
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    for (int i = 0; i < threads.length; i++) {
+      if (failures[i] != null) {
+        throw new RuntimeException(threads[i].getName() + " failed", failures[i]);
+      }
+      verifyFileContentsSame("Out " + i, outFiles[i], diffs[i / runs].expectedOutFile);
+    }
+    System.err.println("passed");
+  }
+
   public static void testDiff(String testName, String[] args, @Nullable File expectedOutFile,
       @Nullable File expectedErrFile) throws Exception {
     System.err.print(testName + "... ");
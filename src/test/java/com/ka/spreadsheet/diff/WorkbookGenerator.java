@@ -0,0 +1,509 @@
+package com.ka.spreadsheet.diff;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.annotation.Nullable;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+
+/**
+ * Generates pairs of workbooks of a given shape, the second one being the first one with a
+ * controlled share of changed cells and inserted rows. xlsx files are written with SXSSF and ods
+ * files as a stream of their content.xml, so they may be far bigger than the heap, xls files with
+ * HSSF in memory.
+ *
+ * Every cell is derived from a hash of its sheet, row and column, so both workbooks of a pair
+ * are written row by row without keeping anything, and the same shape always gives the same
+ * workbooks.
+ */
+public class WorkbookGenerator {
+
+  public enum Format {
+    XLSX(".xlsx"),
+    XLS(".xls"),
+    ODS(".ods");
+
+    private final String extension;
+
+    Format(String extension) {
+      this.extension = extension;
+    }
+
+    public String getExtension() {
+      return extension;
+    }
+  }
+
+  /**
+   * What the workbooks hold. Ratios are between 0 and 1, the cells which are neither formulas,
+   * numbers nor strings are booleans.
+   */
+  public static class Shape {
+
+    private int numSheets = 1;
+    private int numRows = 1000;
+    private int numCols = 10;
+    private double formulaRatio = 0.05;
+    private double numberRatio = 0.6;
+    private double stringRatio = 0.3;
+    private double sharedStringRatio = 0.5;
+    private double diffRatio = 0.01;
+    private double insertedRowRatio = 0;
+    private int numIgnoredRows = 0;
+    private long seed = 42;
+
+    public Shape sheets(int numSheets) {
+      this.numSheets = numSheets;
+      return this;
+    }
+
+    public Shape rows(int numRows) {
+      this.numRows = numRows;
+      return this;
+    }
+
+    public Shape cols(int numCols) {
+      this.numCols = numCols;
+      return this;
+    }
+
+    /**
+     * Share of the non formula cells being numbers and strings.
+     */
+    public Shape typeMix(double numberRatio, double stringRatio) {
+      this.numberRatio = numberRatio;
+      this.stringRatio = stringRatio;
+      return this;
+    }
+
+    public Shape formulas(double formulaRatio) {
+      this.formulaRatio = formulaRatio;
+      return this;
+    }
+
+    /**
+     * Share of the strings taken from a small pool of values, the others are all different.
+     */
+    public Shape sharedStrings(double sharedStringRatio) {
+      this.sharedStringRatio = sharedStringRatio;
+      return this;
+    }
+
+    /**
+     * Share of the cells changed in the second workbook.
+     */
+    public Shape diffs(double diffRatio) {
+      this.diffRatio = diffRatio;
+      return this;
+    }
+
+    /**
+     * Share of the rows of the first workbook the second workbook has a new row above.
+     */
+    public Shape insertedRows(double insertedRowRatio) {
+      this.insertedRowRatio = insertedRowRatio;
+      return this;
+    }
+
+    /**
+     * Number of rows at the top of each sheet which are all changed in the second workbook, see
+     * {@link WorkbookGenerator#ignoreSpecs(Shape)}. Rows are only inserted below them.
+     */
+    public Shape ignoredRows(int numIgnoredRows) {
+      this.numIgnoredRows = numIgnoredRows;
+      return this;
+    }
+
+    public Shape seed(long seed) {
+      this.seed = seed;
+      return this;
+    }
+
+    public int getNumSheets() {
+      return numSheets;
+    }
+
+    public int getNumRows() {
+      return numRows;
+    }
+
+    public int getNumCols() {
+      return numCols;
+    }
+
+    @Override
+    public String toString() {
+      return numSheets + "x" + numRows + "x" + numCols + " formulas=" + formulaRatio
+          + " numbers=" + numberRatio + " strings=" + stringRatio + " shared=" + sharedStringRatio
+          + " diffs=" + diffRatio + " inserted=" + insertedRowRatio + " ignored="
+          + numIgnoredRows + " seed=" + seed;
+    }
+  }
+
+  private static final String ODS_MIME_TYPE = "application/vnd.oasis.opendocument.spreadsheet";
+  private static final String MANIFEST_NS = "urn:oasis:names:tc:opendocument:xmlns:manifest:1.0";
+  private static final String OFFICE_NS = "urn:oasis:names:tc:opendocument:xmlns:office:1.0";
+  private static final String TABLE_NS = "urn:oasis:names:tc:opendocument:xmlns:table:1.0";
+  private static final String TEXT_NS = "urn:oasis:names:tc:opendocument:xmlns:text:1.0";
+
+  private static final int NUM_SHARED_STRINGS = 100;
+  // salts of the hashes deciding each thing about a cell or a row
+  private static final int KIND = 1;
+  private static final int TYPE = 2;
+  private static final int VALUE = 3;
+  private static final int SHARED = 4;
+  private static final int CHANGED = 5;
+  private static final int INSERTED = 6;
+
+  private WorkbookGenerator() {
+  }
+
+  /**
+   * Ignore specs for the rows of each sheet changed in whole, to give to both --ignore1 and
+   * --ignore2, none if there are no such rows.
+   */
+  public static String[] ignoreSpecs(Shape shape) {
+    if (shape.numIgnoredRows == 0) {
+      return new String[0];
+    }
+    String[] specs = new String[shape.numSheets];
+    for (int i = 0; i < shape.numSheets; i++) {
+      specs[i] = sheetName(i) + ":1-" + shape.numIgnoredRows;
+    }
+    return specs;
+  }
+
+  /**
+   * Writes the first workbook to file1 and the changed one to file2. Returns the number of cells
+   * written to both.
+   */
+  public static long generate(Shape shape, Format format, File file1, File file2)
+      throws Exception {
+    if ((format == Format.XLS) && ((shape.numRows * (1 + shape.insertedRowRatio) > 65536)
+        || (shape.numCols > 256))) {
+      throw new IllegalArgumentException("Too big for an xls workbook: " + shape);
+    }
+    return write(shape, format, false, file1) + write(shape, format, true, file2);
+  }
+
+  private static long write(Shape shape, Format format, boolean changed, File file)
+      throws Exception {
+    if (format == Format.ODS) {
+      return writeOds(shape, changed, file);
+    }
+    Workbook workbook = (format == Format.XLSX) ? new SXSSFWorkbook(100) : new HSSFWorkbook();
+    try {
+      CellWriter writer = new PoiCellWriter(workbook);
+      long numCells = writeCells(shape, changed, writer);
+      OutputStream out = new FileOutputStream(file);
+      try {
+        workbook.write(out);
+      } finally {
+        out.close();
+      }
+      return numCells;
+    } finally {
+      if (workbook instanceof SXSSFWorkbook) {
+        ((SXSSFWorkbook) workbook).dispose();
+      }
+    }
+  }
+
+  private static long writeOds(Shape shape, boolean changed, File file) throws Exception {
+    ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(file));
+    try {
+      // the mimetype comes first and uncompressed
+      byte[] mimeType = ODS_MIME_TYPE.getBytes(StandardCharsets.US_ASCII);
+      ZipEntry entry = new ZipEntry("mimetype");
+      entry.setMethod(ZipEntry.STORED);
+      entry.setSize(mimeType.length);
+      CRC32 crc = new CRC32();
+      crc.update(mimeType);
+      entry.setCrc(crc.getValue());
+      zip.putNextEntry(entry);
+      zip.write(mimeType);
+      zip.closeEntry();
+
+      zip.putNextEntry(new ZipEntry("META-INF/manifest.xml"));
+      XMLStreamWriter xml = XMLOutputFactory.newInstance().createXMLStreamWriter(zip, "UTF-8");
+      xml.writeStartDocument("UTF-8", "1.0");
+      xml.writeStartElement("manifest", "manifest", MANIFEST_NS);
+      xml.writeNamespace("manifest", MANIFEST_NS);
+      xml.writeAttribute(MANIFEST_NS, "version", "1.2");
+      for (String[] fileEntry : new String[][] {{"/", ODS_MIME_TYPE},
+          {"content.xml", "text/xml"}}) {
+        xml.writeEmptyElement(MANIFEST_NS, "file-entry");
+        xml.writeAttribute(MANIFEST_NS, "full-path", fileEntry[0]);
+        xml.writeAttribute(MANIFEST_NS, "media-type", fileEntry[1]);
+      }
+      xml.writeEndDocument();
+      xml.flush();
+      zip.closeEntry();
+
+      zip.putNextEntry(new ZipEntry("content.xml"));
+      xml = XMLOutputFactory.newInstance().createXMLStreamWriter(zip, "UTF-8");
+      OdsCellWriter writer = new OdsCellWriter(xml, shape.numCols);
+      long numCells = writeCells(shape, changed, writer);
+      writer.end();
+      zip.closeEntry();
+      return numCells;
+    } finally {
+      zip.close();
+    }
+  }
+
+  private static long writeCells(Shape shape, boolean changed, CellWriter writer) {
+    long numCells = 0;
+    for (int sheetIdx = 0; sheetIdx < shape.numSheets; sheetIdx++) {
+      writer.startSheet(sheetName(sheetIdx));
+      int rowIdx = 0;
+      for (int i = 0; i < shape.numRows; i++) {
+        if (changed && (i >= shape.numIgnoredRows)
+            && (uniform(shape.seed, INSERTED, sheetIdx, i, 0) < shape.insertedRowRatio)) {
+          // a row of its own, from the hashes of negative row indexes
+          writer.startRow(rowIdx);
+          for (int j = 0; j < shape.numCols; j++) {
+            writeCell(shape, writer, sheetIdx, -1 - i, j, false);
+            numCells++;
+          }
+          rowIdx++;
+        }
+        writer.startRow(rowIdx);
+        for (int j = 0; j < shape.numCols; j++) {
+          boolean changeCell = changed && ((i < shape.numIgnoredRows)
+              || (uniform(shape.seed, CHANGED, sheetIdx, i, j) < shape.diffRatio));
+          writeCell(shape, writer, sheetIdx, i, j, changeCell);
+          numCells++;
+        }
+        rowIdx++;
+      }
+    }
+    return numCells;
+  }
+
+  private static void writeCell(Shape shape, CellWriter writer, int sheetIdx, int i, int j,
+      boolean changeCell) {
+    long value = hash(shape.seed, VALUE, sheetIdx, i, j);
+    double number = (value & 0xFFFFF) / 8.0;
+    if (uniform(shape.seed, KIND, sheetIdx, i, j) < shape.formulaRatio) {
+      // without any reference, so that the formulas of a row don't change when rows are inserted
+      String formula = number + "*2";
+      if (changeCell) {
+        writer.formula(j, formula + "+1", number * 2 + 1);
+      } else {
+        writer.formula(j, formula, number * 2);
+      }
+      return;
+    }
+    double type = uniform(shape.seed, TYPE, sheetIdx, i, j);
+    if (type < shape.numberRatio) {
+      writer.number(j, changeCell ? (number + 1) : number);
+    } else if (type < shape.numberRatio + shape.stringRatio) {
+      String string = (uniform(shape.seed, SHARED, sheetIdx, i, j) < shape.sharedStringRatio)
+          ? ("shared " + ((value & 0x7FFFFFFF) % NUM_SHARED_STRINGS))
+          : ("value " + Long.toHexString(value));
+      writer.string(j, changeCell ? (string + "*") : string);
+    } else {
+      boolean bool = (value & 1) == 1;
+      writer.bool(j, changeCell != bool);
+    }
+  }
+
+  private static String sheetName(int sheetIdx) {
+    return "Sheet" + (sheetIdx + 1);
+  }
+
+  private static long hash(long seed, int salt, int sheetIdx, int i, int j) {
+    return WorkbookIndex.mix(WorkbookIndex.mix(WorkbookIndex.mix(WorkbookIndex.mix(seed, salt),
+        sheetIdx), i), j);
+  }
+
+  /**
+   * A number in [0, 1) from the hash.
+   */
+  private static double uniform(long seed, int salt, int sheetIdx, int i, int j) {
+    return (hash(seed, salt, sheetIdx, i, j) >>> 11) * 0x1.0p-53;
+  }
+
+  /**
+   * Writes the cells of a workbook, sheet by sheet and row by row.
+   */
+  private interface CellWriter {
+
+    void startSheet(String name);
+
+    void startRow(int rowIdx);
+
+    void number(int colIdx, double value);
+
+    void string(int colIdx, String value);
+
+    void bool(int colIdx, boolean value);
+
+    /**
+     * A formula evaluating to value.
+     */
+    void formula(int colIdx, String formula, double value);
+  }
+
+  private static class PoiCellWriter implements CellWriter {
+
+    private final Workbook workbook;
+    private Sheet sheet;
+    private Row row;
+
+    PoiCellWriter(Workbook workbook) {
+      this.workbook = workbook;
+    }
+
+    @Override
+    public void startSheet(String name) {
+      sheet = workbook.createSheet(name);
+    }
+
+    @Override
+    public void startRow(int rowIdx) {
+      row = sheet.createRow(rowIdx);
+    }
+
+    @Override
+    public void number(int colIdx, double value) {
+      row.createCell(colIdx).setCellValue(value);
+    }
+
+    @Override
+    public void string(int colIdx, String value) {
+      row.createCell(colIdx).setCellValue(value);
+    }
+
+    @Override
+    public void bool(int colIdx, boolean value) {
+      row.createCell(colIdx).setCellValue(value);
+    }
+
+    @Override
+    public void formula(int colIdx, String formula, double value) {
+      row.createCell(colIdx).setCellFormula(formula);
+    }
+  }
+
+  /**
+   * Writes the content.xml of an ods file, a table cell after the other.
+   */
+  private static class OdsCellWriter implements CellWriter {
+
+    private final XMLStreamWriter xml;
+    private final int numCols;
+    private boolean inTable;
+    private boolean inRow;
+
+    OdsCellWriter(XMLStreamWriter xml, int numCols) throws XMLStreamException {
+      this.xml = xml;
+      this.numCols = numCols;
+      xml.writeStartDocument("UTF-8", "1.0");
+      xml.writeStartElement("office", "document-content", OFFICE_NS);
+      xml.writeNamespace("office", OFFICE_NS);
+      xml.writeNamespace("table", TABLE_NS);
+      xml.writeNamespace("text", TEXT_NS);
+      xml.writeAttribute(OFFICE_NS, "version", "1.2");
+      xml.writeStartElement(OFFICE_NS, "body");
+      xml.writeStartElement(OFFICE_NS, "spreadsheet");
+    }
+
+    @Override
+    public void startSheet(String name) {
+      try {
+        endRow();
+        if (inTable) {
+          xml.writeEndElement();
+        }
+        xml.writeStartElement(TABLE_NS, "table");
+        xml.writeAttribute(TABLE_NS, "name", name);
+        // the ODF toolkit finds no cell in rows past the columns declared
+        xml.writeEmptyElement(TABLE_NS, "table-column");
+        xml.writeAttribute(TABLE_NS, "number-columns-repeated", String.valueOf(numCols));
+        inTable = true;
+      } catch (XMLStreamException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    @Override
+    public void startRow(int rowIdx) {
+      // rows are written one after the other, without gaps
+      try {
+        endRow();
+        xml.writeStartElement(TABLE_NS, "table-row");
+        inRow = true;
+      } catch (XMLStreamException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    @Override
+    public void number(int colIdx, double value) {
+      cell(null, "float", "value", String.valueOf(value), String.valueOf(value));
+    }
+
+    @Override
+    public void string(int colIdx, String value) {
+      cell(null, "string", null, null, value);
+    }
+
+    @Override
+    public void bool(int colIdx, boolean value) {
+      cell(null, "boolean", "boolean-value", String.valueOf(value), String.valueOf(value));
+    }
+
+    @Override
+    public void formula(int colIdx, String formula, double value) {
+      cell("of:=" + formula, "float", "value", String.valueOf(value), String.valueOf(value));
+    }
+
+    void end() throws XMLStreamException {
+      endRow();
+      xml.writeEndDocument();
+      xml.flush();
+    }
+
+    private void endRow() throws XMLStreamException {
+      if (inRow) {
+        xml.writeEndElement();
+        inRow = false;
+      }
+    }
+
+    private void cell(@Nullable String formula, String valueType,
+        @Nullable String valueAttribute, @Nullable String value, String text) {
+      try {
+        xml.writeStartElement(TABLE_NS, "table-cell");
+        if (formula != null) {
+          xml.writeAttribute(TABLE_NS, "formula", formula);
+        }
+        xml.writeAttribute(OFFICE_NS, "value-type", valueType);
+        if (valueAttribute != null) {
+          xml.writeAttribute(OFFICE_NS, valueAttribute, value);
+        }
+        xml.writeStartElement(TEXT_NS, "p");
+        xml.writeCharacters(text);
+        xml.writeEndElement();
+        xml.writeEndElement();
+      } catch (XMLStreamException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+  }
+}